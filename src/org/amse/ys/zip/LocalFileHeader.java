@@ -28,6 +28,8 @@ public class LocalFileHeader {
 
 	public String FileName;
 	int DataOffset;
+	// for headers read from the central directory
+	int LocalHeaderOffset = -1;
 
 	LocalFileHeader() {
 	}
@@ -60,7 +62,8 @@ public class LocalFileHeader {
 				NameLength = stream.read2Bytes();
 				ExtraLength = stream.read2Bytes();
 				int comment = stream.read2Bytes();
-				stream.skip(12);
+				stream.skip(8);
+				LocalHeaderOffset = stream.read4Bytes();
 				FileName = stream.readString(NameLength);
 				stream.skip(ExtraLength);
 				stream.skip(comment);
@@ -89,6 +92,8 @@ public class LocalFileHeader {
 				UncompressedSize = stream.read4Bytes();
 				break;
 		}
-		DataOffset = stream.offset();
+		// for central directory headers, data offset is known
+		// only after reading the corresponding local header
+		DataOffset = Signature == FOLDER_HEADER_SIGNATURE ? -1 : stream.offset();
 	}
 }
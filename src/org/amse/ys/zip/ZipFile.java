@@ -53,6 +53,55 @@ public final class ZipFile {
 		return myFileHeaders.values();
 	}
 
+	/**
+	 * Writes all the entry headers in a compact form;
+	 * the result can be passed to readIndex() to avoid reading the archive again
+	 */
+	public void writeIndex(DataOutputStream stream) throws IOException {
+		readAllHeaders();
+		final Collection<LocalFileHeader> headers = myFileHeaders.values();
+		stream.writeInt(headers.size());
+		for (LocalFileHeader header : headers) {
+			stream.writeUTF(header.FileName);
+			stream.writeShort(header.Flags);
+			stream.writeShort(header.CompressionMethod);
+			stream.writeInt(header.CRC32);
+			stream.writeInt(header.CompressedSize);
+			stream.writeInt(header.UncompressedSize);
+			stream.writeInt(header.LocalHeaderOffset);
+			stream.writeInt(header.DataOffset);
+		}
+	}
+
+	/**
+	 * Reads entry headers written by writeIndex();
+	 * the caller is responsible for checking the index is not outdated
+	 */
+	public void readIndex(DataInputStream stream) throws IOException {
+		final int size = stream.readInt();
+		final ArrayList<LocalFileHeader> headers = new ArrayList<LocalFileHeader>(size);
+		for (int i = 0; i < size; ++i) {
+			final LocalFileHeader header = new LocalFileHeader();
+			header.FileName = stream.readUTF();
+			header.Flags = stream.readUnsignedShort();
+			header.CompressionMethod = stream.readUnsignedShort();
+			header.CRC32 = stream.readInt();
+			header.CompressedSize = stream.readInt();
+			header.UncompressedSize = stream.readInt();
+			header.LocalHeaderOffset = stream.readInt();
+			header.DataOffset = stream.readInt();
+			if (header.DataOffset == -1 && header.LocalHeaderOffset == -1) {
+				throw new ZipException("Incorrect index entry for " + header.FileName);
+			}
+			headers.add(header);
+		}
+		myFileHeaders.clear();
+		for (LocalFileHeader header : headers) {
+			myFileHeaders.put(header.FileName, header);
+		}
+		myAllFilesAreRead = true;
+	}
+
 	private boolean readFileHeader(MyBufferedInputStream baseStream, String fileToFind) throws IOException {
 		LocalFileHeader header = new LocalFileHeader();
 		header.readFrom(baseStream);
@@ -80,6 +129,11 @@ public final class ZipFile {
 		}
 		myAllFilesAreRead = true;
 
+		if (readCentralDirectory()) {
+			return;
+		}
+
+		// damaged archive (or archive without central directory): scan local headers
 		MyBufferedInputStream baseStream = getBaseStream();
 		baseStream.setPosition(0);
 		myFileHeaders.clear();
@@ -93,6 +147,131 @@ public final class ZipFile {
 		}
 	}
 
+	private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+	private static int readInt(byte[] data, int offset, int length) {
+		int result = 0;
+		for (int i = length - 1; i >= 0; --i) {
+			result = (result << 8) + (data[offset + i] & 0xFF);
+		}
+		return result;
+	}
+
+	private static int findEndOfCentralDirectory(byte[] tail, int tailLength) {
+		for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; --i) {
+			if (readInt(tail, i, 4) == LocalFileHeader.END_OF_CENTRAL_DIRECTORY_SIGNATURE &&
+				i + END_OF_CENTRAL_DIRECTORY_SIZE + readInt(tail, i + 20, 2) <= tailLength) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static void readFully(MyBufferedInputStream stream, byte[] buffer, int length) throws IOException {
+		for (int offset = 0; offset < length; ) {
+			final int ready = stream.read(buffer, offset, length - offset);
+			if (ready <= 0) {
+				throw new ZipException("unexpected end of file at position " + stream.offset());
+			}
+			offset += ready;
+		}
+	}
+
+	/**
+	 * Reads all the headers from the central directory;
+	 * returns false if the archive has no (correct) central directory
+	 */
+	private boolean readCentralDirectory() throws IOException {
+		final MyBufferedInputStream baseStream = getBaseStream();
+		try {
+			baseStream.setPosition(0);
+			final int archiveLength = baseStream.available();
+			if (archiveLength < END_OF_CENTRAL_DIRECTORY_SIZE) {
+				return false;
+			}
+
+			// in most archives there is no comment, so try short tail first
+			byte[] tail = null;
+			int tailLength = 0;
+			int recordOffset = -1;
+			for (int length : new int[] { 1024, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH }) {
+				if (tailLength == archiveLength) {
+					break;
+				}
+				tailLength = Math.min(length, archiveLength);
+				tail = new byte[tailLength];
+				baseStream.setPosition(archiveLength - tailLength);
+				readFully(baseStream, tail, tailLength);
+				recordOffset = findEndOfCentralDirectory(tail, tailLength);
+				if (recordOffset != -1) {
+					break;
+				}
+			}
+			if (recordOffset == -1) {
+				return false;
+			}
+
+			final int entriesNumber = readInt(tail, recordOffset + 10, 2);
+			final int directorySize = readInt(tail, recordOffset + 12, 4);
+			final int directoryOffset = readInt(tail, recordOffset + 16, 4);
+			final int recordPosition = archiveLength - tailLength + recordOffset;
+			// ZIP64 and multi-volume archives are handled by local headers scanning
+			if (entriesNumber == 0xFFFF || directoryOffset < 0 || directorySize < 0 ||
+				directoryOffset + directorySize > recordPosition) {
+				return false;
+			}
+
+			final ArrayList<LocalFileHeader> headers = new ArrayList<LocalFileHeader>(entriesNumber);
+			baseStream.setPosition(directoryOffset);
+			for (int i = 0; i < entriesNumber; ++i) {
+				final LocalFileHeader header = new LocalFileHeader();
+				header.readFrom(baseStream);
+				if (header.Signature != LocalFileHeader.FOLDER_HEADER_SIGNATURE ||
+					header.LocalHeaderOffset < 0 || header.LocalHeaderOffset >= directoryOffset) {
+					return false;
+				}
+				headers.add(header);
+			}
+
+			myFileHeaders.clear();
+			for (LocalFileHeader header : headers) {
+				if (header.FileName != null) {
+					myFileHeaders.put(header.FileName, header);
+				}
+			}
+			return true;
+		} catch (ZipException e) {
+			return false;
+		} finally {
+			storeBaseStream(baseStream);
+		}
+	}
+
+	/**
+	 * Reads local header of the entry found in the central directory
+	 * to find position of the entry data
+	 */
+	private void readDataOffset(LocalFileHeader header) throws IOException {
+		synchronized (header) {
+			if (header.DataOffset != -1) {
+				return;
+			}
+			final MyBufferedInputStream baseStream = getBaseStream();
+			try {
+				baseStream.setPosition(header.LocalHeaderOffset);
+				final LocalFileHeader localHeader = new LocalFileHeader();
+				localHeader.readFrom(baseStream);
+				if (localHeader.Signature != LocalFileHeader.FILE_HEADER_SIGNATURE) {
+					throw new ZipException("Local header for " + header.FileName + " is not found");
+				}
+				header.DataOffset = localHeader.DataOffset;
+			} finally {
+				storeBaseStream(baseStream);
+			}
+		}
+	}
+
 	/**
 	 * Finds descriptor of the last header and installs sizes of files
 	 */
@@ -122,6 +301,7 @@ public final class ZipFile {
 	}
 
 	private ZipInputStream createZipInputStream(LocalFileHeader header) throws IOException {
+		readDataOffset(header);
 		return new ZipInputStream(this, header);
 	}
 
@@ -151,6 +331,14 @@ public final class ZipFile {
 				throw new ZipException("Entry " + entryName + " is not found");
 			}
 		}
+		if (!myAllFilesAreRead && readCentralDirectory()) {
+			myAllFilesAreRead = true;
+			final LocalFileHeader header = myFileHeaders.get(entryName);
+			if (header != null) {
+				return header;
+			}
+			throw new ZipException("Entry " + entryName + " is not found");
+		}
 		// ready to read file header
 		MyBufferedInputStream baseStream = getBaseStream();
 		baseStream.setPosition(0);
@@ -19,7 +19,19 @@
 
 package org.geometerplus.android.fbreader;
 
+import org.geometerplus.zlibrary.core.filesystem.ZLZipIndexCache;
+
+import org.geometerplus.zlibrary.text.hyphenation.ZLTextHyphenationCache;
+
 import org.geometerplus.zlibrary.ui.android.library.ZLAndroidApplication;
 
+import org.geometerplus.fbreader.Paths;
+
 public class FBReaderApplication extends ZLAndroidApplication {
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		ZLZipIndexCache.setDirectory(Paths.cacheDirectory() + "/zips");
+		ZLTextHyphenationCache.setDirectory(Paths.cacheDirectory() + "/hyphenation");
+	}
 }
@@ -79,7 +79,7 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 
 	private void migrate() {
 		final int version = myDatabase.getVersion();
-		final int currentVersion = 26;
+		final int currentVersion = 27;
 		if (version >= currentVersion) {
 			return;
 		}
@@ -139,6 +139,8 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 				updateTables24();
 			case 25:
 				updateTables25();
+			case 26:
+				updateTables26();
 		}
 		myDatabase.setTransactionSuccessful();
 		myDatabase.setVersion(currentVersion);
@@ -768,6 +770,46 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 		return infos;
 	}
 
+	@Override
+	protected Map<String,DirectorySnapshot> loadDirectorySnapshots() {
+		final Cursor cursor = myDatabase.rawQuery(
+			"SELECT path,modification_time,entries_number FROM DirectorySnapshots", null
+		);
+		final HashMap<String,DirectorySnapshot> snapshots = new HashMap<String,DirectorySnapshot>();
+		while (cursor.moveToNext()) {
+			final String path = cursor.getString(0);
+			snapshots.put(path, new DirectorySnapshot(path, cursor.getLong(1), (int)cursor.getLong(2)));
+		}
+		cursor.close();
+		return snapshots;
+	}
+
+	private SQLiteStatement mySaveDirectorySnapshotStatement;
+	@Override
+	protected void saveDirectorySnapshot(DirectorySnapshot snapshot) {
+		if (mySaveDirectorySnapshotStatement == null) {
+			mySaveDirectorySnapshotStatement = myDatabase.compileStatement(
+				"INSERT OR REPLACE INTO DirectorySnapshots (path,modification_time,entries_number) VALUES (?,?,?)"
+			);
+		}
+		mySaveDirectorySnapshotStatement.bindString(1, snapshot.Path);
+		mySaveDirectorySnapshotStatement.bindLong(2, snapshot.LastModified);
+		mySaveDirectorySnapshotStatement.bindLong(3, snapshot.EntriesNumber);
+		mySaveDirectorySnapshotStatement.execute();
+	}
+
+	private SQLiteStatement myRemoveDirectorySnapshotStatement;
+	@Override
+	protected void removeDirectorySnapshot(String path) {
+		if (myRemoveDirectorySnapshotStatement == null) {
+			myRemoveDirectorySnapshotStatement = myDatabase.compileStatement(
+				"DELETE FROM DirectorySnapshots WHERE path = ?"
+			);
+		}
+		myRemoveDirectorySnapshotStatement.bindString(1, path);
+		myRemoveDirectorySnapshotStatement.execute();
+	}
+
 	private SQLiteStatement mySaveRecentBookStatement;
 	protected void saveRecentBookIds(final List<Long> ids) {
 		if (mySaveRecentBookStatement == null) {
@@ -1480,4 +1522,12 @@ final class SQLiteBooksDatabase extends BooksDatabase {
 				"numerator INTEGER NOT NULL," +
 				"denominator INTEGER NOT NULL)");
 	}
+
+	private void updateTables26() {
+		myDatabase.execSQL(
+			"CREATE TABLE IF NOT EXISTS DirectorySnapshots(" +
+				"path TEXT PRIMARY KEY NOT NULL," +
+				"modification_time INTEGER NOT NULL," +
+				"entries_number INTEGER NOT NULL)");
+	}
 }
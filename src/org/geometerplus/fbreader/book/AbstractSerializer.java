@@ -19,6 +19,8 @@
 
 package org.geometerplus.fbreader.book;
 
+import java.util.*;
+
 abstract class AbstractSerializer {
 	public abstract String serialize(BookQuery query);
 	public abstract BookQuery deserializeBookQuery(String data);
@@ -29,9 +31,54 @@ abstract class AbstractSerializer {
 	public abstract String serialize(Book book);
 	public abstract Book deserializeBook(String data);
 
+	public List<String> serializeBookList(List<Book> books) {
+		final List<String> serialized = new ArrayList<String>(books.size());
+		for (Book b : books) {
+			serialized.add(serialize(b));
+		}
+		return serialized;
+	}
+
+	public void deserializeBookList(String data, List<Book> books) {
+		final Book b = deserializeBook(data);
+		if (b != null) {
+			books.add(b);
+		}
+	}
+
 	public abstract String serialize(Bookmark bookmark);
 	public abstract Bookmark deserializeBookmark(String data);
 
+	public List<String> serializeBookmarkList(List<Bookmark> bookmarks) {
+		final List<String> serialized = new ArrayList<String>(bookmarks.size());
+		for (Bookmark b : bookmarks) {
+			serialized.add(serialize(b));
+		}
+		return serialized;
+	}
+
+	public void deserializeBookmarkList(String data, List<Bookmark> bookmarks) {
+		final Bookmark b = deserializeBookmark(data);
+		if (b != null) {
+			bookmarks.add(b);
+		}
+	}
+
 	public abstract String serialize(HighlightingStyle style);
 	public abstract HighlightingStyle deserializeStyle(String data);
+
+	public List<String> serializeStyleList(List<HighlightingStyle> styles) {
+		final List<String> serialized = new ArrayList<String>(styles.size());
+		for (HighlightingStyle s : styles) {
+			serialized.add(serialize(s));
+		}
+		return serialized;
+	}
+
+	public void deserializeStyleList(String data, List<HighlightingStyle> styles) {
+		final HighlightingStyle s = deserializeStyle(data);
+		if (s != null) {
+			styles.add(s);
+		}
+	}
 }
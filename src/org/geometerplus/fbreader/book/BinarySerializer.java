@@ -0,0 +1,604 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.util.ZLColor;
+
+import org.geometerplus.zlibrary.text.view.ZLTextPosition;
+
+// Serialized data is a sequence of chars (AIDL & intents transfer strings):
+// a format mark, a version, then the fields in a fixed order.
+// Numbers are zigzag-encoded in 14-bit groups, so no number char is a surrogate;
+// every string is stored once per document and referenced by index after that.
+class BinarySerializer extends AbstractSerializer {
+	static final char FORMAT_MARK = '\uFB00';
+	private static final char VERSION = 1;
+
+	private static final int FILTER_EMPTY = 0;
+	private static final int FILTER_AUTHOR = 1;
+	private static final int FILTER_TAG = 2;
+	private static final int FILTER_LABEL = 3;
+	private static final int FILTER_SERIES = 4;
+	private static final int FILTER_PATTERN = 5;
+	private static final int FILTER_TITLE_PREFIX = 6;
+	private static final int FILTER_HAS_BOOKMARK = 7;
+	private static final int FILTER_AND = 8;
+	private static final int FILTER_OR = 9;
+
+	static boolean isBinary(String data) {
+		return data.length() > 0 && data.charAt(0) == FORMAT_MARK;
+	}
+
+	@Override
+	public String serialize(BookQuery query) {
+		final Writer writer = new Writer();
+		writer.writeInt(query.Limit);
+		writer.writeInt(query.Page);
+		writeFilter(writer, query.Filter);
+		return writer.toString();
+	}
+
+	@Override
+	public BookQuery deserializeBookQuery(String data) {
+		try {
+			final Reader reader = new Reader(data);
+			final int limit = reader.readInt();
+			final int page = reader.readInt();
+			return new BookQuery(readFilter(reader), limit, page);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public String serialize(BookmarkQuery query) {
+		final Writer writer = new Writer();
+		writer.writeBoolean(query.Visible);
+		writer.writeInt(query.Limit);
+		writer.writeInt(query.Page);
+		writer.writeBoolean(query.Book != null);
+		if (query.Book != null) {
+			writeBook(writer, query.Book);
+		}
+		return writer.toString();
+	}
+
+	@Override
+	public BookmarkQuery deserializeBookmarkQuery(String data) {
+		try {
+			final Reader reader = new Reader(data);
+			final boolean visible = reader.readBoolean();
+			final int limit = reader.readInt();
+			final int page = reader.readInt();
+			final Book book = reader.readBoolean() ? readBook(reader) : null;
+			return new BookmarkQuery(book, visible, limit, page);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public String serialize(Book book) {
+		final Writer writer = new Writer();
+		writeBook(writer, book);
+		return writer.toString();
+	}
+
+	@Override
+	public Book deserializeBook(String data) {
+		try {
+			return readBook(new Reader(data));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public List<String> serializeBookList(List<Book> books) {
+		final Writer writer = new Writer();
+		writer.writeInt(books.size());
+		for (Book b : books) {
+			writeBook(writer, b);
+		}
+		return Collections.singletonList(writer.toString());
+	}
+
+	@Override
+	public void deserializeBookList(String data, List<Book> books) {
+		try {
+			final Reader reader = new Reader(data);
+			for (int count = reader.readInt(); count > 0; --count) {
+				final Book b = readBook(reader);
+				if (b != null) {
+					books.add(b);
+				}
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public String serialize(Bookmark bookmark) {
+		final Writer writer = new Writer();
+		writeBookmark(writer, bookmark);
+		return writer.toString();
+	}
+
+	@Override
+	public Bookmark deserializeBookmark(String data) {
+		try {
+			return readBookmark(new Reader(data));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public List<String> serializeBookmarkList(List<Bookmark> bookmarks) {
+		final Writer writer = new Writer();
+		writer.writeInt(bookmarks.size());
+		for (Bookmark b : bookmarks) {
+			writeBookmark(writer, b);
+		}
+		return Collections.singletonList(writer.toString());
+	}
+
+	@Override
+	public void deserializeBookmarkList(String data, List<Bookmark> bookmarks) {
+		try {
+			final Reader reader = new Reader(data);
+			for (int count = reader.readInt(); count > 0; --count) {
+				final Bookmark b = readBookmark(reader);
+				if (b != null) {
+					bookmarks.add(b);
+				}
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public String serialize(HighlightingStyle style) {
+		final Writer writer = new Writer();
+		writeStyle(writer, style);
+		return writer.toString();
+	}
+
+	@Override
+	public HighlightingStyle deserializeStyle(String data) {
+		try {
+			return readStyle(new Reader(data));
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	@Override
+	public List<String> serializeStyleList(List<HighlightingStyle> styles) {
+		final Writer writer = new Writer();
+		writer.writeInt(styles.size());
+		for (HighlightingStyle s : styles) {
+			writeStyle(writer, s);
+		}
+		return Collections.singletonList(writer.toString());
+	}
+
+	@Override
+	public void deserializeStyleList(String data, List<HighlightingStyle> styles) {
+		try {
+			final Reader reader = new Reader(data);
+			for (int count = reader.readInt(); count > 0; --count) {
+				final HighlightingStyle s = readStyle(reader);
+				if (s != null) {
+					styles.add(s);
+				}
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void writeFilter(Writer writer, Filter filter) {
+		if (filter instanceof Filter.And) {
+			writer.writeInt(FILTER_AND);
+			writeFilter(writer, ((Filter.And)filter).First);
+			writeFilter(writer, ((Filter.And)filter).Second);
+		} else if (filter instanceof Filter.Or) {
+			writer.writeInt(FILTER_OR);
+			writeFilter(writer, ((Filter.Or)filter).First);
+			writeFilter(writer, ((Filter.Or)filter).Second);
+		} else if (filter instanceof Filter.ByAuthor) {
+			final Author author = ((Filter.ByAuthor)filter).Author;
+			writer.writeInt(FILTER_AUTHOR);
+			writer.writeString(author.DisplayName);
+			writer.writeString(author.SortKey);
+		} else if (filter instanceof Filter.ByTag) {
+			writer.writeInt(FILTER_TAG);
+			writeTag(writer, ((Filter.ByTag)filter).Tag);
+		} else if (filter instanceof Filter.ByLabel) {
+			writer.writeInt(FILTER_LABEL);
+			writer.writeString(((Filter.ByLabel)filter).Label);
+		} else if (filter instanceof Filter.BySeries) {
+			writer.writeInt(FILTER_SERIES);
+			writer.writeString(((Filter.BySeries)filter).Series.getTitle());
+		} else if (filter instanceof Filter.ByPattern) {
+			writer.writeInt(FILTER_PATTERN);
+			writer.writeString(((Filter.ByPattern)filter).Pattern);
+		} else if (filter instanceof Filter.ByTitlePrefix) {
+			writer.writeInt(FILTER_TITLE_PREFIX);
+			writer.writeString(((Filter.ByTitlePrefix)filter).Prefix);
+		} else if (filter instanceof Filter.HasBookmark) {
+			writer.writeInt(FILTER_HAS_BOOKMARK);
+		} else {
+			writer.writeInt(FILTER_EMPTY);
+		}
+	}
+
+	private static Filter readFilter(Reader reader) {
+		switch (reader.readInt()) {
+			case FILTER_AND:
+			{
+				final Filter first = readFilter(reader);
+				return new Filter.And(first, readFilter(reader));
+			}
+			case FILTER_OR:
+			{
+				final Filter first = readFilter(reader);
+				return new Filter.Or(first, readFilter(reader));
+			}
+			case FILTER_AUTHOR:
+			{
+				final String displayName = reader.readString();
+				return new Filter.ByAuthor(new Author(displayName, reader.readString()));
+			}
+			case FILTER_TAG:
+				return new Filter.ByTag(readTag(reader));
+			case FILTER_LABEL:
+				return new Filter.ByLabel(reader.readString());
+			case FILTER_SERIES:
+				return new Filter.BySeries(new Series(reader.readString()));
+			case FILTER_PATTERN:
+				return new Filter.ByPattern(reader.readString());
+			case FILTER_TITLE_PREFIX:
+				return new Filter.ByTitlePrefix(reader.readString());
+			case FILTER_HAS_BOOKMARK:
+				return new Filter.HasBookmark();
+			default:
+				// unknown filters are read as empty ones, as in the XML format
+				return new Filter.Empty();
+		}
+	}
+
+	private static void writeTag(Writer writer, Tag tag) {
+		int depth = 0;
+		for (Tag t = tag; t != null; t = t.Parent) {
+			++depth;
+		}
+		final String[] names = new String[depth];
+		for (Tag t = tag; t != null; t = t.Parent) {
+			names[--depth] = t.Name;
+		}
+		writer.writeInt(names.length);
+		for (String n : names) {
+			writer.writeString(n);
+		}
+	}
+
+	private static Tag readTag(Reader reader) {
+		Tag tag = null;
+		for (int depth = reader.readInt(); depth > 0; --depth) {
+			tag = Tag.getTag(tag, reader.readString());
+		}
+		return tag;
+	}
+
+	private static void writeBook(Writer writer, Book book) {
+		writer.writeLong(book.getId());
+		writer.writeString(book.File.getUrl());
+		writer.writeString(book.getTitle());
+		writer.writeString(book.getEncodingNoDetection());
+		writer.writeString(book.getLanguage());
+
+		final Collection<UID> uids = book.uids();
+		writer.writeInt(uids.size());
+		for (UID uid : uids) {
+			writer.writeString(uid.Type);
+			writer.writeString(uid.Id);
+		}
+
+		final List<Author> authors = book.authors();
+		writer.writeInt(authors.size());
+		for (Author author : authors) {
+			writer.writeString(author.DisplayName);
+			writer.writeString(author.SortKey);
+		}
+
+		final List<Tag> tags = book.tags();
+		writer.writeInt(tags.size());
+		for (Tag tag : tags) {
+			writeTag(writer, tag);
+		}
+
+		final List<String> labels = book.labels();
+		writer.writeInt(labels.size());
+		for (String label : labels) {
+			writer.writeString(label);
+		}
+
+		final SeriesInfo seriesInfo = book.getSeriesInfo();
+		if (seriesInfo != null) {
+			writer.writeString(seriesInfo.Series.getTitle());
+			writer.writeString(seriesInfo.Index != null ? seriesInfo.Index.toPlainString() : null);
+		} else {
+			writer.writeString(null);
+		}
+
+		writer.writeBoolean(book.HasBookmark);
+	}
+
+	private static Book readBook(Reader reader) {
+		final long id = reader.readLong();
+		final String url = reader.readString();
+		final String title = reader.readString();
+		final String encoding = reader.readString();
+		final String language = reader.readString();
+		final ZLFile file = url != null ? ZLFile.createFileByUrl(url) : null;
+		final Book book = id != -1 && file != null
+			? new Book(id, file, title, encoding, language) : null;
+
+		for (int count = reader.readInt(); count > 0; --count) {
+			final String type = reader.readString();
+			final String uid = reader.readString();
+			if (book != null) {
+				book.addUid(type, uid);
+			}
+		}
+		for (int count = reader.readInt(); count > 0; --count) {
+			final String displayName = reader.readString();
+			final String sortKey = reader.readString();
+			if (book != null) {
+				book.addAuthorWithNoCheck(new Author(displayName, sortKey));
+			}
+		}
+		for (int count = reader.readInt(); count > 0; --count) {
+			final Tag tag = readTag(reader);
+			if (book != null && tag != null) {
+				book.addTagWithNoCheck(tag);
+			}
+		}
+		for (int count = reader.readInt(); count > 0; --count) {
+			final String label = reader.readString();
+			if (book != null) {
+				book.addLabelWithNoCheck(label);
+			}
+		}
+		final String seriesTitle = reader.readString();
+		if (seriesTitle != null) {
+			final String seriesIndex = reader.readString();
+			if (book != null) {
+				book.setSeriesInfoWithNoCheck(seriesTitle, seriesIndex);
+			}
+		}
+		final boolean hasBookmark = reader.readBoolean();
+		if (book != null) {
+			book.HasBookmark = hasBookmark;
+		}
+		return book;
+	}
+
+	private static void writeBookmark(Writer writer, Bookmark bookmark) {
+		writer.writeLong(bookmark.getId());
+		writer.writeBoolean(bookmark.IsVisible);
+		writer.writeLong(bookmark.getBookId());
+		writer.writeString(bookmark.getBookTitle());
+		writer.writeString(bookmark.getText());
+		writer.writeDate(bookmark.getDate(Bookmark.DateType.Creation));
+		writer.writeDate(bookmark.getDate(Bookmark.DateType.Modification));
+		writer.writeDate(bookmark.getDate(Bookmark.DateType.Access));
+		writer.writeInt(bookmark.getAccessCount());
+		writer.writeString(bookmark.ModelId);
+		writer.writeInt(bookmark.getParagraphIndex());
+		writer.writeInt(bookmark.getElementIndex());
+		writer.writeInt(bookmark.getCharIndex());
+		final ZLTextPosition end = bookmark.getEnd();
+		if (end != null) {
+			writer.writeInt(end.getParagraphIndex());
+			writer.writeInt(end.getElementIndex());
+			writer.writeInt(end.getCharIndex());
+		} else {
+			writer.writeInt(bookmark.getLength());
+			writer.writeInt(-1);
+			writer.writeInt(-1);
+		}
+		writer.writeInt(bookmark.getStyleId());
+	}
+
+	private static Bookmark readBookmark(Reader reader) {
+		final long id = reader.readLong();
+		final boolean visible = reader.readBoolean();
+		final long bookId = reader.readLong();
+		final String bookTitle = reader.readString();
+		final String text = reader.readString();
+		final Date creationDate = reader.readDate();
+		final Date modificationDate = reader.readDate();
+		final Date accessDate = reader.readDate();
+		final int accessCount = reader.readInt();
+		final String modelId = reader.readString();
+		final int startParagraph = reader.readInt();
+		final int startElement = reader.readInt();
+		final int startChar = reader.readInt();
+		final int endParagraph = reader.readInt();
+		final int endElement = reader.readInt();
+		final int endChar = reader.readInt();
+		final int styleId = reader.readInt();
+		if (bookId == -1) {
+			return null;
+		}
+		return new Bookmark(
+			id, bookId, bookTitle, text,
+			creationDate, modificationDate, accessDate, accessCount,
+			modelId,
+			startParagraph, startElement, startChar,
+			endParagraph, endElement, endChar,
+			visible,
+			styleId
+		);
+	}
+
+	private static void writeStyle(Writer writer, HighlightingStyle style) {
+		final ZLColor bgColor = style.getBackgroundColor();
+		writer.writeInt(style.Id);
+		writer.writeString(style.getName());
+		writer.writeInt(bgColor != null ? bgColor.intValue() : -1);
+	}
+
+	private static HighlightingStyle readStyle(Reader reader) {
+		final int id = reader.readInt();
+		final String name = reader.readString();
+		final int rgb = reader.readInt();
+		if (id == -1) {
+			return null;
+		}
+		return new HighlightingStyle(id, name, rgb != -1 ? new ZLColor(rgb) : null);
+	}
+
+	private static final class Writer {
+		private final StringBuilder myBuffer = new StringBuilder();
+		private final HashMap<String,Integer> myStrings = new HashMap<String,Integer>();
+
+		Writer() {
+			myBuffer.append(FORMAT_MARK).append(VERSION);
+		}
+
+		void writeBoolean(boolean value) {
+			myBuffer.append(value ? '\001' : '\000');
+		}
+
+		void writeInt(int value) {
+			writeLong(value);
+		}
+
+		void writeLong(long value) {
+			long bits = (value << 1) ^ (value >> 63);
+			while ((bits & ~0x3FFFL) != 0) {
+				myBuffer.append((char)(0x4000 | (bits & 0x3FFF)));
+				bits >>>= 14;
+			}
+			myBuffer.append((char)bits);
+		}
+
+		void writeDate(Date date) {
+			writeBoolean(date != null);
+			if (date != null) {
+				writeLong(date.getTime());
+			}
+		}
+
+		// 0 means null, 1 means a new string (length & chars follow),
+		// other values are references to strings written earlier
+		void writeString(String value) {
+			if (value == null) {
+				writeInt(0);
+				return;
+			}
+			final Integer index = myStrings.get(value);
+			if (index != null) {
+				writeInt(index + 2);
+				return;
+			}
+			myStrings.put(value, myStrings.size());
+			writeInt(1);
+			writeInt(value.length());
+			myBuffer.append(value);
+		}
+
+		@Override
+		public String toString() {
+			return myBuffer.toString();
+		}
+	}
+
+	private static final class Reader {
+		private final String myData;
+		private int myOffset;
+		private final ArrayList<String> myStrings = new ArrayList<String>();
+
+		Reader(String data) {
+			if (!isBinary(data) || data.length() < 2 || data.charAt(1) != VERSION) {
+				throw new IllegalArgumentException("Unsupported data format");
+			}
+			myData = data;
+			myOffset = 2;
+		}
+
+		boolean readBoolean() {
+			return myData.charAt(myOffset++) != '\000';
+		}
+
+		int readInt() {
+			return (int)readLong();
+		}
+
+		long readLong() {
+			long bits = 0;
+			for (int shift = 0; ; shift += 14) {
+				final char ch = myData.charAt(myOffset++);
+				bits |= (long)(ch & 0x3FFF) << shift;
+				if ((ch & 0x4000) == 0) {
+					break;
+				}
+			}
+			return (bits >>> 1) ^ -(bits & 1);
+		}
+
+		Date readDate() {
+			return readBoolean() ? new Date(readLong()) : null;
+		}
+
+		String readString() {
+			final int code = readInt();
+			switch (code) {
+				case 0:
+					return null;
+				case 1:
+				{
+					final int length = readInt();
+					final String value = myData.substring(myOffset, myOffset + length);
+					myOffset += length;
+					myStrings.add(value);
+					return value;
+				}
+				default:
+					return myStrings.get(code - 2);
+			}
+		}
+	}
+}
@@ -19,7 +19,6 @@
 
 package org.geometerplus.fbreader.book;
 
-import java.io.File;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.filesystem.ZLFile;
@@ -39,10 +38,18 @@ public class BookCollection extends AbstractBookCollection {
 		Collections.synchronizedMap(new LinkedHashMap<ZLFile,Book>());
 	private final Map<Long,Book> myBooksById =
 		Collections.synchronizedMap(new HashMap<Long,Book>());
+	// guarded by myBooksByFile
+	private final BookIndex myIndex = new BookIndex();
 	private final List<String> myFilesToRescan =
 		Collections.synchronizedList(new LinkedList<String>());
 
 	private volatile Status myStatus = Status.NotStarted;
+	private volatile int myScanThreadsNumber = Runtime.getRuntime().availableProcessors();
+	private volatile BuildProgressListener myBuildProgressListener;
+
+	public interface BuildProgressListener {
+		void onBuildProgress(int filesFound, int filesProcessed);
+	}
 
 	private final Map<Integer,HighlightingStyle> myStyles =
 		Collections.synchronizedMap(new TreeMap<Integer,HighlightingStyle>());
@@ -56,6 +63,18 @@ public class BookCollection extends AbstractBookCollection {
 		return myBooksByFile.size();
 	}
 
+	/**
+	 * Sets number of threads reading book metadata during the library build;
+	 * takes effect if called before startBuild()
+	 */
+	public void setScanThreadsNumber(int number) {
+		myScanThreadsNumber = Math.max(1, number);
+	}
+
+	public void setBuildProgressListener(BuildProgressListener listener) {
+		myBuildProgressListener = listener;
+	}
+
 	public Book getBookByFile(ZLFile bookFile) {
 		if (bookFile == null) {
 			return null;
@@ -170,9 +189,11 @@ public class BookCollection extends AbstractBookCollection {
 			if (existing == null) {
 				myBooksByFile.put(book.File, book);
 				myBooksById.put(book.getId(), book);
+				myIndex.add(book);
 				fireBookEvent(BookEvent.Added, book);
 			} else if (force) {
 				existing.updateFrom(book);
+				myIndex.add(existing);
 				fireBookEvent(BookEvent.Updated, existing);
 			}
 		}
@@ -192,6 +213,7 @@ public class BookCollection extends AbstractBookCollection {
 		synchronized (myBooksByFile) {
 			myBooksByFile.remove(book.File);
 			myBooksById.remove(book.getId());
+			myIndex.remove(book.File);
 
 			final List<Long> ids = myDatabase.loadRecentBookIds();
 			if (ids.remove(book.getId())) {
@@ -209,22 +231,18 @@ public class BookCollection extends AbstractBookCollection {
 	}
 
 	public List<Book> books(BookQuery query) {
-		final List<Book> allBooks;
-		synchronized (myBooksByFile) {
-			allBooks = new ArrayList<Book>(myBooksByFile.values());
-		}
 		final int start = query.Page * query.Limit;
-		if (start >= allBooks.size()) {
-			return Collections.emptyList();
-		}
 		final int end = start + query.Limit;
-		if (query.Filter instanceof Filter.Empty) {
-			return allBooks.subList(start, Math.min(end, allBooks.size()));
-		} else {
+		final boolean checkFilter = !(query.Filter instanceof Filter.Empty);
+		synchronized (myBooksByFile) {
+			final Collection<Book> candidates = myIndex.candidates(query.Filter).values();
+			if (start >= candidates.size()) {
+				return Collections.emptyList();
+			}
 			int count = 0;
-			final List<Book> filtered = new ArrayList<Book>(query.Limit);
-			for (Book b : allBooks) {
-				if (query.Filter.matches(b)) {
+			final List<Book> filtered = new ArrayList<Book>(Math.min(query.Limit, candidates.size() - start));
+			for (Book b : candidates) {
+				if (!checkFilter || query.Filter.matches(b)) {
 					if (count >= start) {
 						filtered.add(b);
 					}
@@ -238,13 +256,11 @@ public class BookCollection extends AbstractBookCollection {
 	}
 
 	public boolean hasBooks(Filter filter) {
-		final List<Book> allBooks;
 		synchronized (myBooksByFile) {
-			allBooks = new ArrayList<Book>(myBooksByFile.values());
-		}
-		for (Book b : allBooks) {
-			if (filter.matches(b)) {
-				return true;
+			for (Book b : myIndex.candidates(filter).values()) {
+				if (filter.matches(b)) {
+					return true;
+				}
 			}
 		}
 		return false;
@@ -275,33 +291,17 @@ public class BookCollection extends AbstractBookCollection {
 	}
 
 	public List<Author> authors() {
-		final Set<Author> authors = new TreeSet<Author>();
 		synchronized (myBooksByFile) {
-			for (Book book : myBooksByFile.values()) {
-				final List<Author> bookAuthors = book.authors();
-				if (bookAuthors.isEmpty()) {
-					authors.add(Author.NULL);
-				} else {
-					authors.addAll(bookAuthors);
-				}
-			}
+			return new ArrayList<Author>(new TreeSet<Author>(myIndex.authors()));
 		}
-		return new ArrayList<Author>(authors);
 	}
 
 	public List<Tag> tags() {
 		final Set<Tag> tags = new HashSet<Tag>();
 		synchronized (myBooksByFile) {
-			for (Book book : myBooksByFile.values()) {
-				final List<Tag> bookTags = book.tags();
-				if (bookTags.isEmpty()) {
-					tags.add(Tag.NULL);
-				} else {
-					for (Tag t : bookTags) {
-						for (; t != null; t = t.Parent) {
-							tags.add(t);
-						}
-					}
+			for (Tag t : myIndex.tags()) {
+				for (; t != null; t = t.Parent) {
+					tags.add(t);
 				}
 			}
 		}
@@ -309,34 +309,22 @@ public class BookCollection extends AbstractBookCollection {
 	}
 
 	public List<String> labels() {
-		final Set<String> labels = new HashSet<String>();
 		synchronized (myBooksByFile) {
-			for (Book book : myBooksByFile.values()) {
-				labels.addAll(book.labels());
-			}
+			return new ArrayList<String>(myIndex.labels());
 		}
-		return new ArrayList<String>(labels);
 	}
 
 	public boolean hasSeries() {
 		synchronized (myBooksByFile) {
-			for (Book book : myBooksByFile.values()) {
-				if (book.getSeriesInfo() != null) {
-					return true;
-				}
-			}
+			return !myIndex.series().isEmpty();
 		}
-		return false;
 	}
 
 	public List<String> series() {
 		final Set<String> series = new TreeSet<String>();
 		synchronized (myBooksByFile) {
-			for (Book book : myBooksByFile.values()) {
-				final SeriesInfo info = book.getSeriesInfo();
-				if (info != null) {
-					series.add(info.Series.getTitle());
-				}
+			for (Series s : myIndex.series()) {
+				series.add(s.getTitle());
 			}
 		}
 		return new ArrayList<String>(series);
@@ -344,14 +332,7 @@ public class BookCollection extends AbstractBookCollection {
 
 	public List<String> firstTitleLetters() {
 		synchronized (myBooksByFile) {
-			final TreeSet<String> letters = new TreeSet<String>();
-			for (Book book : myBooksByFile.values()) {
-				final String l = book.firstTitleLetter();
-				if (l != null) {
-					letters.add(l);
-				}
-			}
-			return new ArrayList<String>(letters);
+			return new ArrayList<String>(new TreeSet<String>(myIndex.titlePrefixes()));
 		}
 	}
 
@@ -413,44 +394,35 @@ public class BookCollection extends AbstractBookCollection {
 				return;
 			}
 
-			final Set<ZLFile> filesToRemove = new HashSet<ZLFile>();
-			for (String path : myFilesToRescan) {
-				path = new ZLPhysicalFile(new File(path)).getPath();
-				synchronized (myBooksByFile) {
-					for (ZLFile f : myBooksByFile.keySet()) {
-						if (f.getPath().startsWith(path)) {
-							filesToRemove.add(f);
-						}
-					}
-				}
+			final DirectoryRescanner rescanner = new DirectoryRescanner(this, myDatabase);
+			for (String path : new LinkedHashSet<String>(myFilesToRescan)) {
+				rescanner.rescan(path);
 			}
+			rescanner.finish();
 
-			for (ZLFile file : collectPhysicalFiles(myFilesToRescan)) {
-				// TODO:
-				// collect books from archives
-				// rescan files and check book id
-				filesToRemove.remove(file);
-				final Book book = getBookByFile(file);
-				if (book != null) {
-					saveBook(book, false);
-				}
-			}
+			myFilesToRescan.clear();
+		}
+	}
 
-			for (ZLFile f : filesToRemove) {
-				synchronized (myBooksByFile) {
-					final Book book = myBooksByFile.remove(f);
-					if (book != null) {
-						myBooksById.remove(book.getId());
-						fireBookEvent(BookEvent.Removed, book);
-					}
-				}
-			}
+	List<Book> allBooks() {
+		synchronized (myBooksByFile) {
+			return new ArrayList<Book>(myBooksByFile.values());
+		}
+	}
 
-			myFilesToRescan.clear();
+	// removes book from the collection, but keeps it in the database
+	void forgetBook(Book book) {
+		synchronized (myBooksByFile) {
+			if (myBooksByFile.remove(book.File) == null) {
+				return;
+			}
+			myBooksById.remove(book.getId());
+			myIndex.remove(book.File);
 		}
+		fireBookEvent(BookEvent.Removed, book);
 	}
 
-	private void build() {
+	private void build() throws InterruptedException {
 		// Step 0: get database books marked as "existing"
 		final FileInfoSet fileInfos = new FileInfoSet(myDatabase);
 		final Map<Long,Book> savedBooksByFileId = myDatabase.loadBooks(fileInfos, true);
@@ -499,23 +471,15 @@ public class BookCollection extends AbstractBookCollection {
 		myDatabase.setExistingFlag(orphanedBooks, false);
 
 		// Step 2: collect books from physical files; add new, update already added,
-		//         unmark orphaned as existing again, collect newly added
+		//         unmark orphaned as existing again, collect newly added;
+		//         new books are saved in batches while scanning
 		final Map<Long,Book> orphanedBooksByFileId = myDatabase.loadBooks(fileInfos, false);
-		final Set<Book> newBooks = new HashSet<Book>();
-
-		final List<ZLPhysicalFile> physicalFilesList = collectPhysicalFiles(BookDirectories);
-		for (ZLPhysicalFile file : physicalFilesList) {
-			if (physicalFiles.contains(file)) {
-				continue;
-			}
-			collectBooks(
-				file, fileInfos,
-				savedBooksByFileId, orphanedBooksByFileId,
-				newBooks,
-				!fileInfos.check(file, true)
-			);
-			file.setCached(false);
-		}
+		final BookScanPipeline pipeline = new BookScanPipeline(
+			this, myDatabase, fileInfos,
+			savedBooksByFileId, orphanedBooksByFileId, physicalFiles,
+			myScanThreadsNumber, myBuildProgressListener
+		);
+		final Set<Book> newBooks = pipeline.run(BookDirectories);
 
 		// Step 3: add help file
 		final ZLFile helpFile = BookUtil.getHelpFile();
@@ -529,87 +493,26 @@ public class BookCollection extends AbstractBookCollection {
 
 		// Step 4: save changes into database
 		fileInfos.save();
-
-		myDatabase.executeAsTransaction(new Runnable() {
-			public void run() {
-				for (Book book : newBooks) {
-					saveBook(book, false);
-				}
-			}
-		});
 		myDatabase.setExistingFlag(newBooks, true);
+		saveDirectorySnapshots(pipeline.directorySnapshots());
 	}
 
-	private List<ZLPhysicalFile> collectPhysicalFiles(List<String> paths) {
-		final Queue<ZLPhysicalFile> fileQueue = new LinkedList<ZLPhysicalFile>();
-		final HashSet<ZLPhysicalFile> dirSet = new HashSet<ZLPhysicalFile>();
-		final LinkedList<ZLPhysicalFile> fileList = new LinkedList<ZLPhysicalFile>();
-
-		for (String p : paths) {
-			fileQueue.offer(new ZLPhysicalFile(new File(p)));
-		}
-
-		while (!fileQueue.isEmpty()) {
-			final ZLPhysicalFile entry = fileQueue.poll();
-			if (!entry.exists()) {
-				continue;
-			}
-			if (entry.isDirectory()) {
-				if (dirSet.contains(entry)) {
-					continue;
+	// snapshots are used by DirectoryRescanner to skip unchanged directories
+	private void saveDirectorySnapshots(final Collection<DirectorySnapshot> snapshots) {
+		final Set<String> oldPaths = myDatabase.loadDirectorySnapshots().keySet();
+		myDatabase.executeAsTransaction(new Runnable() {
+			public void run() {
+				for (DirectorySnapshot snapshot : snapshots) {
+					oldPaths.remove(snapshot.Path);
+					myDatabase.saveDirectorySnapshot(snapshot);
 				}
-				dirSet.add(entry);
-				for (ZLFile file : entry.children()) {
-					fileQueue.add((ZLPhysicalFile)file);
+				for (String path : oldPaths) {
+					myDatabase.removeDirectorySnapshot(path);
 				}
-			} else {
-				entry.setCached(true);
-				fileList.add(entry);
 			}
-		}
-
-		return fileList;
+		});
 	}
 
-	private void collectBooks(
-		ZLFile file, FileInfoSet fileInfos,
-		Map<Long,Book> savedBooksByFileId, Map<Long,Book> orphanedBooksByFileId,
-		Set<Book> newBooks,
-		boolean doReadMetaInfo
-	) {
-		final long fileId = fileInfos.getId(file);
-		if (savedBooksByFileId.get(fileId) != null) {
-			return;
-		}
-
-		try {
-			final Book book = orphanedBooksByFileId.get(fileId);
-			if (book != null) {
-				if (doReadMetaInfo) {
-					book.readMetaInfo();
-				}
-				newBooks.add(book);
-				return;
-			}
-		} catch (BookReadingException e) {
-			// ignore
-		}
-
-		final Book book = getBookByFile(file);
-		if (book != null) {
-			newBooks.add(book);
-		} else if (file.isArchive()) {
-			for (ZLFile entry : fileInfos.archiveEntries(file)) {
-				collectBooks(
-					entry, fileInfos,
-					savedBooksByFileId, orphanedBooksByFileId,
-					newBooks,
-					doReadMetaInfo
-				);
-			}
-		}
-	}
-	
 	@Override
 	public boolean saveCover(Book book, String url) {
 		if (getBookById(book.getId()) == null) {
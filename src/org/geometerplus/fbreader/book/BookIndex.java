@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// Secondary indexes of BookCollection; every posting list is ordered
+// by the order of adding books to the collection, so paging is stable.
+// Not synchronized: BookCollection calls it under own lock.
+final class BookIndex {
+	private static final class Index<K> {
+		private final HashMap<K,TreeMap<Long,Book>> myMap = new HashMap<K,TreeMap<Long,Book>>();
+
+		void add(K key, long order, Book book) {
+			TreeMap<Long,Book> books = myMap.get(key);
+			if (books == null) {
+				books = new TreeMap<Long,Book>();
+				myMap.put(key, books);
+			}
+			books.put(order, book);
+		}
+
+		void remove(K key, long order) {
+			final TreeMap<Long,Book> books = myMap.get(key);
+			if (books != null) {
+				books.remove(order);
+				if (books.isEmpty()) {
+					myMap.remove(key);
+				}
+			}
+		}
+
+		SortedMap<Long,Book> get(K key) {
+			final SortedMap<Long,Book> books = myMap.get(key);
+			return books != null ? books : EMPTY;
+		}
+
+		Set<K> keys() {
+			return myMap.keySet();
+		}
+	}
+
+	// sorted list of book orders; for the trigram index, where postings
+	// are many and long, TreeMaps would take too much memory
+	private static final class OrderList {
+		private int[] myOrders = new int[4];
+		private int mySize;
+
+		void add(int order) {
+			int index = find(order);
+			if (index >= 0) {
+				return;
+			}
+			index = -index - 1;
+			if (mySize == myOrders.length) {
+				myOrders = ZLArrayUtils.createCopy(myOrders, mySize, mySize * 2);
+			}
+			System.arraycopy(myOrders, index, myOrders, index + 1, mySize - index);
+			myOrders[index] = order;
+			++mySize;
+		}
+
+		void remove(int order) {
+			final int index = find(order);
+			if (index >= 0) {
+				System.arraycopy(myOrders, index + 1, myOrders, index, mySize - index - 1);
+				--mySize;
+			}
+		}
+
+		int find(int order) {
+			return Arrays.binarySearch(myOrders, 0, mySize, order);
+		}
+
+		int size() {
+			return mySize;
+		}
+
+		int get(int index) {
+			return myOrders[index];
+		}
+	}
+
+	// values the book was indexed with; book fields can be changed before re-indexing
+	private static final class Record {
+		final long Order;
+		final List<Author> Authors;
+		final List<Tag> Tags;
+		final List<String> Labels;
+		final Series Series;
+		final String TitlePrefix;
+		// sorted, without duplicates
+		final long[] Trigrams;
+
+		Record(long order, Book book) {
+			Order = order;
+			final List<Author> authors = book.authors();
+			Authors = authors.isEmpty()
+				? Collections.singletonList(Author.NULL) : new ArrayList<Author>(authors);
+			final List<Tag> tags = book.tags();
+			Tags = tags.isEmpty()
+				? Collections.singletonList(Tag.NULL) : new ArrayList<Tag>(tags);
+			Labels = new ArrayList<String>(book.labels());
+			final SeriesInfo info = book.getSeriesInfo();
+			Series = info != null ? info.Series : null;
+			TitlePrefix = book.firstTitleLetter();
+
+			// the same fields as in Book.matches(String)
+			final List<String> texts = new ArrayList<String>();
+			texts.add(book.getTitle());
+			if (Series != null) {
+				texts.add(Series.getTitle());
+			}
+			for (Author a : authors) {
+				texts.add(a.DisplayName);
+			}
+			for (Tag t : tags) {
+				texts.add(t.Name);
+			}
+			texts.add(book.File.getLongName());
+			Trigrams = trigrams(texts);
+		}
+	}
+
+	private static long trigram(String text, int index) {
+		return
+			((long)text.charAt(index) << 32) +
+			((long)text.charAt(index + 1) << 16) +
+			text.charAt(index + 2);
+	}
+
+	// sorted trigrams of all the texts, without duplicates;
+	// texts are lower-cased exactly like in MiscUtil.matchesIgnoreCase()
+	private static long[] trigrams(List<String> texts) {
+		int count = 0;
+		for (String text : texts) {
+			if (text != null) {
+				count += Math.max(text.length() - 2, 0);
+			}
+		}
+		final long[] trigrams = new long[count];
+		int size = 0;
+		for (String text : texts) {
+			if (text == null) {
+				continue;
+			}
+			text = text.toLowerCase();
+			for (int i = 0; i + 3 <= text.length(); ++i) {
+				trigrams[size++] = trigram(text, i);
+			}
+		}
+		Arrays.sort(trigrams, 0, size);
+		int unique = 0;
+		for (int i = 0; i < size; ++i) {
+			if (unique == 0 || trigrams[unique - 1] != trigrams[i]) {
+				trigrams[unique++] = trigrams[i];
+			}
+		}
+		if (unique == trigrams.length) {
+			return trigrams;
+		}
+		final long[] result = new long[unique];
+		System.arraycopy(trigrams, 0, result, 0, unique);
+		return result;
+	}
+
+	private static final SortedMap<Long,Book> EMPTY =
+		Collections.unmodifiableSortedMap(new TreeMap<Long,Book>());
+
+	private long myNextOrder;
+	private final HashMap<ZLFile,Record> myRecords = new HashMap<ZLFile,Record>();
+	private final TreeMap<Long,Book> myAllBooks = new TreeMap<Long,Book>();
+
+	private final Index<Author> myByAuthor = new Index<Author>();
+	private final Index<Tag> myByTag = new Index<Tag>();
+	private final Index<String> myByLabel = new Index<String>();
+	private final Index<Series> myBySeries = new Index<Series>();
+	private final Index<String> myByTitlePrefix = new Index<String>();
+	private final HashMap<Long,OrderList> myByTrigram = new HashMap<Long,OrderList>();
+
+	/**
+	 * Adds the book or updates its index entries;
+	 * the book keeps its position in the collection order
+	 */
+	void add(Book book) {
+		final Record old = removeRecord(book.File);
+		final Record record = new Record(old != null ? old.Order : myNextOrder++, book);
+		myRecords.put(book.File, record);
+		final long order = record.Order;
+		myAllBooks.put(order, book);
+		for (Author a : record.Authors) {
+			myByAuthor.add(a, order, book);
+		}
+		for (Tag t : record.Tags) {
+			myByTag.add(t, order, book);
+		}
+		for (String l : record.Labels) {
+			myByLabel.add(l, order, book);
+		}
+		if (record.Series != null) {
+			myBySeries.add(record.Series, order, book);
+		}
+		if (record.TitlePrefix != null) {
+			myByTitlePrefix.add(record.TitlePrefix, order, book);
+		}
+		for (long t : record.Trigrams) {
+			OrderList orders = myByTrigram.get(t);
+			if (orders == null) {
+				orders = new OrderList();
+				myByTrigram.put(t, orders);
+			}
+			orders.add((int)order);
+		}
+	}
+
+	void remove(ZLFile file) {
+		removeRecord(file);
+	}
+
+	private Record removeRecord(ZLFile file) {
+		final Record record = myRecords.remove(file);
+		if (record == null) {
+			return null;
+		}
+		final long order = record.Order;
+		myAllBooks.remove(order);
+		for (Author a : record.Authors) {
+			myByAuthor.remove(a, order);
+		}
+		for (Tag t : record.Tags) {
+			myByTag.remove(t, order);
+		}
+		for (String l : record.Labels) {
+			myByLabel.remove(l, order);
+		}
+		if (record.Series != null) {
+			myBySeries.remove(record.Series, order);
+		}
+		if (record.TitlePrefix != null) {
+			myByTitlePrefix.remove(record.TitlePrefix, order);
+		}
+		for (long t : record.Trigrams) {
+			final OrderList orders = myByTrigram.get(t);
+			if (orders != null) {
+				orders.remove((int)order);
+				if (orders.size() == 0) {
+					myByTrigram.remove(t);
+				}
+			}
+		}
+		return record;
+	}
+
+	SortedMap<Long,Book> all() {
+		return myAllBooks;
+	}
+
+	/**
+	 * Returns books in collection order; the result is a superset of books
+	 * matching the filter, and the caller should check every book with
+	 * Filter.matches(). Returns all books for filters that are not indexed.
+	 */
+	SortedMap<Long,Book> candidates(Filter filter) {
+		final SortedMap<Long,Book> candidates = plan(filter);
+		return candidates != null ? candidates : myAllBooks;
+	}
+
+	// returns null if the filter cannot be planned against indexes
+	private SortedMap<Long,Book> plan(Filter filter) {
+		if (filter instanceof Filter.ByAuthor) {
+			return myByAuthor.get(((Filter.ByAuthor)filter).Author);
+		} else if (filter instanceof Filter.ByTag) {
+			return myByTag.get(((Filter.ByTag)filter).Tag);
+		} else if (filter instanceof Filter.ByLabel) {
+			return myByLabel.get(((Filter.ByLabel)filter).Label);
+		} else if (filter instanceof Filter.BySeries) {
+			return myBySeries.get(((Filter.BySeries)filter).Series);
+		} else if (filter instanceof Filter.ByTitlePrefix) {
+			return myByTitlePrefix.get(((Filter.ByTitlePrefix)filter).Prefix);
+		} else if (filter instanceof Filter.ByPattern) {
+			return byPattern(((Filter.ByPattern)filter).Pattern);
+		} else if (filter instanceof Filter.And) {
+			final Filter.And and = (Filter.And)filter;
+			final SortedMap<Long,Book> first = plan(and.First);
+			final SortedMap<Long,Book> second = plan(and.Second);
+			if (first == null) {
+				return second;
+			} else if (second == null) {
+				return first;
+			} else {
+				return first.size() <= second.size() ? first : second;
+			}
+		} else if (filter instanceof Filter.Or) {
+			final Filter.Or or = (Filter.Or)filter;
+			final SortedMap<Long,Book> first = plan(or.First);
+			if (first == null) {
+				return null;
+			}
+			final SortedMap<Long,Book> second = plan(or.Second);
+			if (second == null) {
+				return null;
+			}
+			if (first.isEmpty()) {
+				return second;
+			} else if (second.isEmpty()) {
+				return first;
+			}
+			final TreeMap<Long,Book> union = new TreeMap<Long,Book>(first);
+			union.putAll(second);
+			return union;
+		}
+		return null;
+	}
+
+	// books containing all trigrams of the pattern;
+	// the pattern is lower-cased already (see Filter.ByPattern)
+	private SortedMap<Long,Book> byPattern(String pattern) {
+		if (pattern.length() < 3) {
+			return pattern.length() == 0 ? EMPTY : null;
+		}
+
+		final long[] trigrams = trigrams(Collections.singletonList(pattern));
+		final List<OrderList> lists = new ArrayList<OrderList>(trigrams.length);
+		for (long t : trigrams) {
+			final OrderList orders = myByTrigram.get(t);
+			if (orders == null) {
+				return EMPTY;
+			}
+			lists.add(orders);
+		}
+		Collections.sort(lists, new Comparator<OrderList>() {
+			public int compare(OrderList l0, OrderList l1) {
+				return l0.size() - l1.size();
+			}
+		});
+
+		final TreeMap<Long,Book> books = new TreeMap<Long,Book>();
+		final OrderList shortest = lists.get(0);
+		for (int i = 0; i < shortest.size(); ++i) {
+			final int order = shortest.get(i);
+			boolean found = true;
+			for (int j = 1; j < lists.size(); ++j) {
+				if (lists.get(j).find(order) < 0) {
+					found = false;
+					break;
+				}
+			}
+			if (found) {
+				books.put((long)order, myAllBooks.get((long)order));
+			}
+		}
+		return books;
+	}
+
+	Set<Author> authors() {
+		return myByAuthor.keys();
+	}
+
+	Set<Tag> tags() {
+		return myByTag.keys();
+	}
+
+	Set<String> labels() {
+		return myByLabel.keys();
+	}
+
+	Set<Series> series() {
+		return myBySeries.keys();
+	}
+
+	Set<String> titlePrefixes() {
+		return myByTitlePrefix.keys();
+	}
+}
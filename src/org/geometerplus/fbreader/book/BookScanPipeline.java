@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+import org.geometerplus.fbreader.bookmodel.BookReadingException;
+
+// Step 2 of the library build as a pipeline of bounded stages:
+//   enumerator thread: walks book directories;
+//   calling thread: checks file fingerprints (FileInfoSet is not thread-safe),
+//                   finds known books and dispatches metadata reading;
+//   worker threads: read metadata via format plugins;
+//   writer thread: saves books in batches, one transaction per batch
+final class BookScanPipeline {
+	private static final int FILE_QUEUE_SIZE = 256;
+	private static final int TASK_QUEUE_SIZE = 64;
+	private static final int BOOK_QUEUE_SIZE = 128;
+	private static final int BATCH_SIZE = 32;
+
+	private static final ZLPhysicalFile END_OF_FILES = new ZLPhysicalFile(new File("/"));
+	private static final Book[] END_OF_BOOKS = new Book[0];
+
+	private final BookCollection myCollection;
+	private final BooksDatabase myDatabase;
+	private final FileInfoSet myFileInfos;
+	private final Map<Long,Book> mySavedBooksByFileId;
+	private final Map<Long,Book> myOrphanedBooksByFileId;
+	private final Set<ZLPhysicalFile> myKnownFiles;
+	private final int myWorkersNumber;
+	private final BookCollection.BuildProgressListener myProgressListener;
+
+	private final BlockingQueue<ZLPhysicalFile> myFileQueue =
+		new ArrayBlockingQueue<ZLPhysicalFile>(FILE_QUEUE_SIZE);
+	// pairs (book, scanned file); end of stream is marked by END_OF_BOOKS
+	private final BlockingQueue<Object[]> myBookQueue =
+		new ArrayBlockingQueue<Object[]>(BOOK_QUEUE_SIZE);
+	// archives to be processed entry by entry; filled by workers, read by calling thread
+	private final Queue<ScanTask> myArchivesToExpand = new ConcurrentLinkedQueue<ScanTask>();
+	private final AtomicInteger myPendingTasksNumber = new AtomicInteger();
+	// number of unfinished tasks for every physical file; updated under own lock
+	private final Map<ZLPhysicalFile,Integer> myTasksByFile = new HashMap<ZLPhysicalFile,Integer>();
+
+	private final AtomicInteger myFilesFound = new AtomicInteger();
+	private final AtomicInteger myFilesProcessed = new AtomicInteger();
+
+	private final Set<Book> myNewBooks = new HashSet<Book>();
+	// filled by enumerator thread
+	private final List<DirectorySnapshot> myDirectorySnapshots = new ArrayList<DirectorySnapshot>();
+	private volatile Throwable myError;
+
+	BookScanPipeline(
+		BookCollection collection, BooksDatabase database,
+		FileInfoSet fileInfos,
+		Map<Long,Book> savedBooksByFileId, Map<Long,Book> orphanedBooksByFileId,
+		Set<ZLPhysicalFile> knownFiles,
+		int workersNumber, BookCollection.BuildProgressListener listener
+	) {
+		myCollection = collection;
+		myDatabase = database;
+		myFileInfos = fileInfos;
+		mySavedBooksByFileId = savedBooksByFileId;
+		myOrphanedBooksByFileId = orphanedBooksByFileId;
+		myKnownFiles = knownFiles;
+		myWorkersNumber = Math.max(1, workersNumber);
+		myProgressListener = listener;
+	}
+
+	/**
+	 * Runs the pipeline on the calling thread;
+	 * returns the set of books that should be marked as existing
+	 */
+	Set<Book> run(final List<String> directories) throws InterruptedException {
+		final Thread enumerator = new Thread("Library.build.files") {
+			public void run() {
+				try {
+					enumerateFiles(directories);
+				} catch (Throwable t) {
+					setError(t);
+				} finally {
+					finishEnumeration();
+				}
+			}
+		};
+		final Thread writer = new Thread("Library.build.writer") {
+			public void run() {
+				try {
+					writeBooks();
+				} catch (Throwable t) {
+					setError(t);
+				}
+			}
+		};
+		final ThreadPoolExecutor workers = new ThreadPoolExecutor(
+			myWorkersNumber, myWorkersNumber, 0L, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(TASK_QUEUE_SIZE),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					final Thread th = new Thread(r, "Library.build.worker");
+					th.setPriority(Thread.MIN_PRIORITY);
+					return th;
+				}
+			},
+			// full queue: the dispatching thread reads metadata itself
+			new ThreadPoolExecutor.CallerRunsPolicy()
+		);
+
+		enumerator.setPriority(Thread.MIN_PRIORITY);
+		writer.setPriority(Thread.MIN_PRIORITY);
+		enumerator.start();
+		writer.start();
+		try {
+			dispatchFiles(workers);
+		} finally {
+			workers.shutdown();
+			workers.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			final Object[] end = new Object[] { END_OF_BOOKS, null };
+			while (writer.isAlive() && !myBookQueue.offer(end, 100, TimeUnit.MILLISECONDS)) {
+			}
+			writer.join();
+			enumerator.interrupt();
+			enumerator.join();
+		}
+
+		if (myError instanceof RuntimeException) {
+			throw (RuntimeException)myError;
+		} else if (myError instanceof Error) {
+			throw (Error)myError;
+		}
+		return myNewBooks;
+	}
+
+	/**
+	 * Snapshots of all the scanned directories; valid after run()
+	 */
+	List<DirectorySnapshot> directorySnapshots() {
+		return myDirectorySnapshots;
+	}
+
+	private void setError(Throwable t) {
+		if (myError == null) {
+			myError = t;
+		}
+	}
+
+	private void finishEnumeration() {
+		try {
+			while (!myFileQueue.offer(END_OF_FILES, 100, TimeUnit.MILLISECONDS)) {
+				// after an error, the files are not read any more
+				if (myError != null) {
+					myFileQueue.clear();
+				}
+			}
+		} catch (InterruptedException e) {
+			// the pipeline is already stopped
+		}
+	}
+
+	private void enumerateFiles(List<String> directories) throws InterruptedException {
+		final Queue<ZLPhysicalFile> dirQueue = new LinkedList<ZLPhysicalFile>();
+		final Set<ZLPhysicalFile> dirSet = new HashSet<ZLPhysicalFile>();
+
+		for (String p : directories) {
+			dirQueue.offer(new ZLPhysicalFile(new File(p)));
+		}
+
+		while (!dirQueue.isEmpty() && myError == null) {
+			final ZLPhysicalFile entry = dirQueue.poll();
+			if (!entry.exists()) {
+				continue;
+			}
+			if (entry.isDirectory()) {
+				if (dirSet.add(entry)) {
+					myDirectorySnapshots.add(DirectorySnapshot.take(entry));
+					for (ZLFile file : entry.children()) {
+						dirQueue.add((ZLPhysicalFile)file);
+					}
+				}
+			} else {
+				myFileQueue.put(entry);
+				myFilesFound.incrementAndGet();
+			}
+		}
+	}
+
+	private void dispatchFiles(ThreadPoolExecutor workers) throws InterruptedException {
+		boolean allFilesFound = false;
+		while (myError == null) {
+			for (ScanTask task = myArchivesToExpand.poll(); task != null; task = myArchivesToExpand.poll()) {
+				for (ZLFile entry : myFileInfos.archiveEntries(task.File)) {
+					dispatch(workers, entry, task.PhysicalFile, task.DoReadMetaInfo);
+				}
+				finishTask(task.PhysicalFile);
+			}
+
+			if (allFilesFound) {
+				if (myPendingTasksNumber.get() == 0 && myArchivesToExpand.isEmpty()) {
+					break;
+				}
+				Thread.sleep(10);
+				continue;
+			}
+
+			final ZLPhysicalFile file = myFileQueue.poll(10, TimeUnit.MILLISECONDS);
+			if (file == END_OF_FILES) {
+				allFilesFound = true;
+			} else if (file != null) {
+				if (myKnownFiles.contains(file)) {
+					myFilesProcessed.incrementAndGet();
+					continue;
+				}
+				startTask(file);
+				// caching keeps the archive table in memory while its entries are processed
+				file.setCached(true);
+				dispatch(workers, file, file, !myFileInfos.check(file, true));
+				finishTask(file);
+			}
+		}
+	}
+
+	private void dispatch(ThreadPoolExecutor workers, ZLFile file, ZLPhysicalFile physicalFile, boolean doReadMetaInfo) {
+		final long fileId = myFileInfos.getId(file);
+		if (mySavedBooksByFileId.get(fileId) != null) {
+			return;
+		}
+		startTask(physicalFile);
+		myPendingTasksNumber.incrementAndGet();
+		workers.execute(new ScanTask(
+			file, physicalFile, myOrphanedBooksByFileId.get(fileId), doReadMetaInfo
+		));
+	}
+
+	private void startTask(ZLPhysicalFile physicalFile) {
+		synchronized (myTasksByFile) {
+			final Integer count = myTasksByFile.get(physicalFile);
+			myTasksByFile.put(physicalFile, count != null ? count + 1 : 1);
+		}
+	}
+
+	private void finishTask(ZLPhysicalFile physicalFile) {
+		synchronized (myTasksByFile) {
+			final int count = myTasksByFile.get(physicalFile) - 1;
+			if (count > 0) {
+				myTasksByFile.put(physicalFile, count);
+				return;
+			}
+			myTasksByFile.remove(physicalFile);
+		}
+		physicalFile.setCached(false);
+		if (myProgressListener != null) {
+			myProgressListener.onBuildProgress(myFilesFound.get(), myFilesProcessed.incrementAndGet());
+		} else {
+			myFilesProcessed.incrementAndGet();
+		}
+	}
+
+	private final class ScanTask implements Runnable {
+		final ZLFile File;
+		final ZLPhysicalFile PhysicalFile;
+		final Book OrphanedBook;
+		final boolean DoReadMetaInfo;
+
+		ScanTask(ZLFile file, ZLPhysicalFile physicalFile, Book orphanedBook, boolean doReadMetaInfo) {
+			File = file;
+			PhysicalFile = physicalFile;
+			OrphanedBook = orphanedBook;
+			DoReadMetaInfo = doReadMetaInfo;
+		}
+
+		public void run() {
+			try {
+				if (myError == null) {
+					final Book book = readBook();
+					if (book != null) {
+						final Object[] pair = new Object[] { book, File };
+						// after an error, the writer can stop reading the queue
+						while (myError == null && !myBookQueue.offer(pair, 100, TimeUnit.MILLISECONDS)) {
+						}
+					} else if (File.isArchive()) {
+						// will be finished after the expansion
+						startTask(PhysicalFile);
+						myArchivesToExpand.add(this);
+					}
+				}
+			} catch (Throwable t) {
+				setError(t);
+			} finally {
+				finishTask(PhysicalFile);
+				myPendingTasksNumber.decrementAndGet();
+			}
+		}
+
+		private Book readBook() {
+			if (OrphanedBook != null) {
+				try {
+					if (DoReadMetaInfo) {
+						OrphanedBook.readMetaInfo();
+					}
+					return OrphanedBook;
+				} catch (BookReadingException e) {
+					// ignore
+				}
+			}
+			try {
+				return new Book(File);
+			} catch (BookReadingException e) {
+				return null;
+			}
+		}
+	}
+
+	private void writeBooks() throws InterruptedException {
+		final List<Object[]> batch = new ArrayList<Object[]>(BATCH_SIZE);
+		boolean finished = false;
+		while (!finished) {
+			batch.add(myBookQueue.take());
+			myBookQueue.drainTo(batch, BATCH_SIZE - 1);
+			if (batch.get(batch.size() - 1)[0] == END_OF_BOOKS) {
+				batch.remove(batch.size() - 1);
+				finished = true;
+			}
+			myDatabase.executeAsTransaction(new Runnable() {
+				public void run() {
+					for (Object[] pair : batch) {
+						final Book book = knownBook((Book)pair[0], (ZLFile)pair[1]);
+						myCollection.saveBook(book, false);
+						myNewBooks.add(book);
+					}
+				}
+			});
+			batch.clear();
+		}
+	}
+
+	// plugin can replace the scanned file by another one (e.g. archive by its entry);
+	// book for the replacement file can be already in the database
+	private Book knownBook(Book book, ZLFile scannedFile) {
+		if (book.getId() != -1 || book.File.equals(scannedFile)) {
+			return book;
+		}
+		final FileInfoSet fileInfos = new FileInfoSet(myDatabase, book.File);
+		final Book saved = myDatabase.loadBookByFile(fileInfos.getId(book.File), book.File);
+		if (saved == null) {
+			return book;
+		}
+		saved.loadLists(myDatabase);
+		return saved;
+	}
+}
@@ -82,6 +82,11 @@ public abstract class BooksDatabase {
 	protected abstract void removeFileInfo(long fileId);
 	protected abstract void saveFileInfo(FileInfo fileInfo);
 
+	// returns map path -> snapshot
+	protected abstract Map<String,DirectorySnapshot> loadDirectorySnapshots();
+	protected abstract void saveDirectorySnapshot(DirectorySnapshot snapshot);
+	protected abstract void removeDirectorySnapshot(String path);
+
 	protected abstract List<Long> loadRecentBookIds();
 	protected abstract void saveRecentBookIds(final List<Long> ids);
 
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.io.File;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+import org.geometerplus.fbreader.bookmodel.BookReadingException;
+
+// Rescans changed parts of the library; a directory is listed only
+// if its modification time or number of entries differs from the snapshot
+// stored in the database, unchanged directories are just traversed
+final class DirectoryRescanner {
+	private final BookCollection myCollection;
+	private final BooksDatabase myDatabase;
+
+	private Map<String,DirectorySnapshot> mySnapshots;
+	private Map<String,Set<String>> mySubdirectories;
+
+	private Map<ZLPhysicalFile,List<Book>> myBooksByPhysicalFile;
+	private Map<String,Set<ZLPhysicalFile>> myFilesByDirectory;
+
+	private final Set<Book> myAddedBooks = new HashSet<Book>();
+	private final Set<Book> myRemovedBooks = new HashSet<Book>();
+
+	DirectoryRescanner(BookCollection collection, BooksDatabase database) {
+		myCollection = collection;
+		myDatabase = database;
+	}
+
+	void rescan(String path) {
+		final ZLPhysicalFile file = new ZLPhysicalFile(new File(path));
+		if (!file.exists()) {
+			removeTree(file.getPath());
+		} else if (file.isDirectory()) {
+			scanDirectory(file);
+		} else {
+			processFile(file);
+		}
+	}
+
+	/**
+	 * Saves existence flags of added/removed books
+	 */
+	void finish() {
+		myDatabase.setExistingFlag(myRemovedBooks, false);
+		myDatabase.setExistingFlag(myAddedBooks, true);
+		myRemovedBooks.clear();
+		myAddedBooks.clear();
+	}
+
+	private static String parentPath(String path) {
+		final int index = path.lastIndexOf('/');
+		return index > 0 ? path.substring(0, index) : "/";
+	}
+
+	private static boolean isInTree(String path, String treePath) {
+		return path.startsWith(treePath) &&
+			(path.length() == treePath.length() || path.charAt(treePath.length()) == '/');
+	}
+
+	private Map<String,DirectorySnapshot> snapshots() {
+		if (mySnapshots == null) {
+			mySnapshots = myDatabase.loadDirectorySnapshots();
+			mySubdirectories = new HashMap<String,Set<String>>();
+			for (String path : mySnapshots.keySet()) {
+				subdirectories(parentPath(path)).add(path);
+			}
+		}
+		return mySnapshots;
+	}
+
+	private Set<String> subdirectories(String path) {
+		Set<String> subdirectories = mySubdirectories.get(path);
+		if (subdirectories == null) {
+			subdirectories = new HashSet<String>();
+			mySubdirectories.put(path, subdirectories);
+		}
+		return subdirectories;
+	}
+
+	private void saveSnapshot(DirectorySnapshot snapshot) {
+		snapshots().put(snapshot.Path, snapshot);
+		subdirectories(parentPath(snapshot.Path)).add(snapshot.Path);
+		myDatabase.saveDirectorySnapshot(snapshot);
+	}
+
+	private Map<ZLPhysicalFile,List<Book>> booksByPhysicalFile() {
+		if (myBooksByPhysicalFile == null) {
+			myBooksByPhysicalFile = new HashMap<ZLPhysicalFile,List<Book>>();
+			myFilesByDirectory = new HashMap<String,Set<ZLPhysicalFile>>();
+			for (Book book : myCollection.allBooks()) {
+				final ZLPhysicalFile file = book.File.getPhysicalFile();
+				if (file != null) {
+					booksByPhysicalFile(file).add(book);
+				}
+			}
+		}
+		return myBooksByPhysicalFile;
+	}
+
+	private List<Book> booksByPhysicalFile(ZLPhysicalFile file) {
+		List<Book> books = myBooksByPhysicalFile.get(file);
+		if (books == null) {
+			books = new ArrayList<Book>(1);
+			myBooksByPhysicalFile.put(file, books);
+			filesByDirectory(parentPath(file.getPath())).add(file);
+		}
+		return books;
+	}
+
+	private Set<ZLPhysicalFile> filesByDirectory(String path) {
+		Set<ZLPhysicalFile> files = myFilesByDirectory.get(path);
+		if (files == null) {
+			files = new HashSet<ZLPhysicalFile>();
+			myFilesByDirectory.put(path, files);
+		}
+		return files;
+	}
+
+	private void scanDirectory(ZLPhysicalFile directory) {
+		final String path = directory.getPath();
+		final DirectorySnapshot snapshot = DirectorySnapshot.take(directory);
+		if (snapshot.sameState(snapshots().get(path))) {
+			for (String subPath : new ArrayList<String>(subdirectories(path))) {
+				final ZLPhysicalFile subdirectory = new ZLPhysicalFile(new File(subPath));
+				if (subdirectory.isDirectory()) {
+					scanDirectory(subdirectory);
+				} else {
+					removeTree(subPath);
+				}
+			}
+			return;
+		}
+
+		booksByPhysicalFile();
+		final Set<ZLPhysicalFile> removedFiles = new HashSet<ZLPhysicalFile>(filesByDirectory(path));
+		final Set<String> removedSubdirectories = new HashSet<String>(subdirectories(path));
+		for (ZLFile child : directory.children()) {
+			final ZLPhysicalFile file = (ZLPhysicalFile)child;
+			if (file.isDirectory()) {
+				removedSubdirectories.remove(file.getPath());
+				scanDirectory(file);
+			} else {
+				removedFiles.remove(file);
+				processFile(file);
+			}
+		}
+		for (ZLPhysicalFile file : removedFiles) {
+			removeBooks(file);
+		}
+		for (String subPath : removedSubdirectories) {
+			removeTree(subPath);
+		}
+		saveSnapshot(snapshot);
+	}
+
+	private void processFile(ZLPhysicalFile file) {
+		final List<Book> knownBooks = booksByPhysicalFile().get(file);
+		final FileInfoSet fileInfos = new FileInfoSet(myDatabase, file);
+		final boolean changed = !fileInfos.check(file, true);
+		if (!changed && knownBooks != null && !knownBooks.isEmpty()) {
+			return;
+		}
+		fileInfos.save();
+
+		final Set<Book> books = new LinkedHashSet<Book>();
+		file.setCached(true);
+		try {
+			collectBooks(file, changed, knownBooks, books);
+		} finally {
+			file.setCached(false);
+		}
+
+		if (knownBooks != null) {
+			for (Book book : knownBooks) {
+				if (!books.contains(book)) {
+					myCollection.forgetBook(book);
+					myRemovedBooks.add(book);
+				}
+			}
+			knownBooks.clear();
+		}
+		if (!books.isEmpty()) {
+			booksByPhysicalFile(file).addAll(books);
+			myAddedBooks.addAll(books);
+			myRemovedBooks.removeAll(books);
+		}
+	}
+
+	private void collectBooks(ZLFile file, boolean changed, List<Book> knownBooks, Set<Book> books) {
+		final Book book = myCollection.getBookByFile(file);
+		if (book != null) {
+			if (changed && knownBooks != null && knownBooks.contains(book)) {
+				try {
+					book.readMetaInfo();
+				} catch (BookReadingException e) {
+					return;
+				}
+				// fires Updated event
+				myCollection.saveBook(book, false);
+			}
+			books.add(book);
+		} else if (file.isArchive()) {
+			for (ZLFile entry : file.children()) {
+				collectBooks(entry, changed, knownBooks, books);
+			}
+		}
+	}
+
+	private void removeBooks(ZLPhysicalFile file) {
+		final List<Book> books = booksByPhysicalFile().remove(file);
+		filesByDirectory(parentPath(file.getPath())).remove(file);
+		if (books != null) {
+			for (Book book : books) {
+				myCollection.forgetBook(book);
+				myRemovedBooks.add(book);
+			}
+		}
+	}
+
+	private void removeTree(String path) {
+		for (ZLPhysicalFile file : new ArrayList<ZLPhysicalFile>(booksByPhysicalFile().keySet())) {
+			if (isInTree(file.getPath(), path)) {
+				removeBooks(file);
+			}
+		}
+		for (String snapshotPath : new ArrayList<String>(snapshots().keySet())) {
+			if (isInTree(snapshotPath, path)) {
+				mySnapshots.remove(snapshotPath);
+				subdirectories(parentPath(snapshotPath)).remove(snapshotPath);
+				myDatabase.removeDirectorySnapshot(snapshotPath);
+			}
+		}
+	}
+}
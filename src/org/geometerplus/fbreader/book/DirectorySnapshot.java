@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.book;
+
+import java.io.File;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLPhysicalFile;
+
+public final class DirectorySnapshot {
+	public static DirectorySnapshot take(ZLPhysicalFile directory) {
+		final File javaFile = directory.javaFile();
+		final String[] names = javaFile.list();
+		return new DirectorySnapshot(
+			directory.getPath(), javaFile.lastModified(), names != null ? names.length : 0
+		);
+	}
+
+	public final String Path;
+	public final long LastModified;
+	public final int EntriesNumber;
+
+	public DirectorySnapshot(String path, long lastModified, int entriesNumber) {
+		Path = path;
+		LastModified = lastModified;
+		EntriesNumber = entriesNumber;
+	}
+
+	public boolean sameState(DirectorySnapshot snapshot) {
+		return
+			snapshot != null &&
+			LastModified == snapshot.LastModified &&
+			EntriesNumber == snapshot.EntriesNumber;
+	}
+}
@@ -25,47 +25,56 @@ public abstract class SerializerUtil {
 	private SerializerUtil() {
 	}
 
-	private static final AbstractSerializer defaultSerializer = new XMLSerializer();
+	public static enum Format {
+		XML,
+		Binary
+	}
+
+	private static final AbstractSerializer ourXMLSerializer = new XMLSerializer();
+	private static final AbstractSerializer ourBinarySerializer = new BinarySerializer();
+	private static volatile AbstractSerializer defaultSerializer = ourBinarySerializer;
+
+	// selects the format of serialized data; deserialization accepts both formats
+	public static void setFormat(Format format) {
+		defaultSerializer = format == Format.XML ? ourXMLSerializer : ourBinarySerializer;
+	}
+
+	private static AbstractSerializer serializerFor(String data) {
+		return BinarySerializer.isBinary(data) ? ourBinarySerializer : ourXMLSerializer;
+	}
 
 	public static String serialize(BookQuery query) {
 		return query != null ? defaultSerializer.serialize(query) : null;
 	}
 
-	public static BookQuery deserializeBookQuery(String xml) {
-		return xml != null ? defaultSerializer.deserializeBookQuery(xml) : null;
+	public static BookQuery deserializeBookQuery(String data) {
+		return data != null ? serializerFor(data).deserializeBookQuery(data) : null;
 	}
 
 	public static String serialize(BookmarkQuery query) {
 		return query != null ? defaultSerializer.serialize(query) : null;
 	}
 
-	public static BookmarkQuery deserializeBookmarkQuery(String xml) {
-		return xml != null ? defaultSerializer.deserializeBookmarkQuery(xml) : null;
+	public static BookmarkQuery deserializeBookmarkQuery(String data) {
+		return data != null ? serializerFor(data).deserializeBookmarkQuery(data) : null;
 	}
 
 	public static String serialize(Book book) {
 		return book != null ? defaultSerializer.serialize(book) : null;
 	}
 
-	public static Book deserializeBook(String xml) {
-		return xml != null ? defaultSerializer.deserializeBook(xml) : null;
+	public static Book deserializeBook(String data) {
+		return data != null ? serializerFor(data).deserializeBook(data) : null;
 	}
 
 	public static List<String> serializeBookList(List<Book> books) {
-		final List<String> serialized = new ArrayList<String>(books.size());
-		for (Book b : books) {
-			serialized.add(defaultSerializer.serialize(b));
-		}
-		return serialized;
+		return defaultSerializer.serializeBookList(books);
 	}
 
-	public static List<Book> deserializeBookList(List<String> xmlList) {
-		final List<Book> books = new ArrayList<Book>(xmlList.size());
-		for (String xml : xmlList) {
-			final Book b = defaultSerializer.deserializeBook(xml);
-			if (b != null) {
-				books.add(b);
-			}
+	public static List<Book> deserializeBookList(List<String> dataList) {
+		final List<Book> books = new ArrayList<Book>(dataList.size());
+		for (String data : dataList) {
+			serializerFor(data).deserializeBookList(data, books);
 		}
 		return books;
 	}
@@ -74,25 +83,18 @@ public abstract class SerializerUtil {
 		return bookmark != null ? defaultSerializer.serialize(bookmark) : null;
 	}
 
-	public static Bookmark deserializeBookmark(String xml) {
-		return xml != null ? defaultSerializer.deserializeBookmark(xml) : null;
+	public static Bookmark deserializeBookmark(String data) {
+		return data != null ? serializerFor(data).deserializeBookmark(data) : null;
 	}
 
 	public static List<String> serializeBookmarkList(List<Bookmark> bookmarks) {
-		final List<String> serialized = new ArrayList<String>(bookmarks.size());
-		for (Bookmark b : bookmarks) {
-			serialized.add(defaultSerializer.serialize(b));
-		}
-		return serialized;
+		return defaultSerializer.serializeBookmarkList(bookmarks);
 	}
 
-	public static List<Bookmark> deserializeBookmarkList(List<String> xmlList) {
-		final List<Bookmark> bookmarks = new ArrayList<Bookmark>(xmlList.size());
-		for (String xml : xmlList) {
-			final Bookmark b = defaultSerializer.deserializeBookmark(xml);
-			if (b != null) {
-				bookmarks.add(b);
-			}
+	public static List<Bookmark> deserializeBookmarkList(List<String> dataList) {
+		final List<Bookmark> bookmarks = new ArrayList<Bookmark>(dataList.size());
+		for (String data : dataList) {
+			serializerFor(data).deserializeBookmarkList(data, bookmarks);
 		}
 		return bookmarks;
 	}
@@ -101,25 +103,18 @@ public abstract class SerializerUtil {
 		return style != null ? defaultSerializer.serialize(style) : null;
 	}
 
-	public static HighlightingStyle deserializeStyle(String xml) {
-		return xml != null ? defaultSerializer.deserializeStyle(xml) : null;
+	public static HighlightingStyle deserializeStyle(String data) {
+		return data != null ? serializerFor(data).deserializeStyle(data) : null;
 	}
 
 	public static List<String> serializeStyleList(List<HighlightingStyle> styles) {
-		final List<String> serialized = new ArrayList<String>(styles.size());
-		for (HighlightingStyle s : styles) {
-			serialized.add(defaultSerializer.serialize(s));
-		}
-		return serialized;
+		return defaultSerializer.serializeStyleList(styles);
 	}
 
-	public static List<HighlightingStyle> deserializeStyleList(List<String> xmlList) {
-		final List<HighlightingStyle> styles = new ArrayList<HighlightingStyle>(xmlList.size());
-		for (String xml : xmlList) {
-			final HighlightingStyle s = defaultSerializer.deserializeStyle(xml);
-			if (s != null) {
-				styles.add(s);
-			}
+	public static List<HighlightingStyle> deserializeStyleList(List<String> dataList) {
+		final List<HighlightingStyle> styles = new ArrayList<HighlightingStyle>(dataList.size());
+		for (String data : dataList) {
+			serializerFor(data).deserializeStyleList(data, styles);
 		}
 		return styles;
 	}
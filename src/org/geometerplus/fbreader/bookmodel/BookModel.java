@@ -32,19 +32,29 @@ public abstract class BookModel {
 
 		System.err.println("using plugin: " + plugin.supportedFileType() + "/" + plugin.type());
 
-		final BookModel model;
-		switch (plugin.type()) {
-			case NATIVE:
-				model = new NativeBookModel(book);
-				break;
-			case JAVA:
-				model = new JavaBookModel(book);
-				break;
-			default:
-				throw new BookReadingException("unknownPluginType", plugin.type().toString(), null);
+		BookModel model = BookModelCache.load(book, plugin);
+		if (model == null) {
+			switch (plugin.type()) {
+				case NATIVE:
+					model = new NativeBookModel(book);
+					break;
+				case JAVA:
+					model = new JavaBookModel(book);
+					break;
+				default:
+					throw new BookReadingException("unknownPluginType", plugin.type().toString(), null);
+			}
+
+			plugin.readModel(model);
+			model.storeInBackground(plugin);
+		} else {
+			model.attachSearchIndex();
 		}
 
-		plugin.readModel(model);
+		final LabelResolver resolver = plugin.labelResolver();
+		if (resolver != null) {
+			model.setLabelResolver(resolver);
+		}
 		return model;
 	}
 
@@ -65,8 +75,60 @@ public abstract class BookModel {
 		Book = book;
 	}
 
+	private Thread myCacheWriter;
+
+	// writing the cache entry takes as long as parsing does, so the book is shown
+	// before it is stored; the search index is put into the entry after the store
+	// has re-created the entry directory
+	private void storeInBackground(final FormatPlugin plugin) {
+		final Thread thread = new Thread("BookModelCache.store") {
+			public void run() {
+				BookModelCache.store(BookModel.this, plugin);
+				attachSearchIndex();
+			}
+		};
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		synchronized (this) {
+			myCacheWriter = thread;
+		}
+		thread.start();
+	}
+
+	// the index is stored in the model cache entry and is removed with it
+	private void attachSearchIndex() {
+		final ZLTextModel textModel = getTextModel();
+		if (textModel instanceof ZLTextPlainModel) {
+			((ZLTextPlainModel)textModel).attachSearchIndex(BookModelCache.searchIndexFileName(Book));
+		}
+	}
+
 	public abstract ZLTextModel getTextModel();
 	public abstract ZLTextModel getFootnoteModel(String id);
+
+	// releases the text models; is called when the model is not shown anymore;
+	// waits for the cache writer, so must not be called with the model lock held
+	public final void close() {
+		final Thread writer;
+		synchronized (this) {
+			writer = myCacheWriter;
+			myCacheWriter = null;
+		}
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		closeInternal();
+	}
+
+	protected abstract void closeInternal();
+
+	public String getLayoutCacheFileName(ZLTextModel model) {
+		return BookModelCache.layoutFileName(Book, model.getId());
+	}
 	protected abstract Label getLabelInternal(String id);
 
 	public interface LabelResolver {
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.geometerplus.zlibrary.core.filesystem.*;
+import org.geometerplus.zlibrary.core.image.*;
+import org.geometerplus.zlibrary.core.util.MimeType;
+
+import org.geometerplus.zlibrary.text.model.*;
+
+import org.geometerplus.fbreader.Paths;
+import org.geometerplus.fbreader.book.Book;
+import org.geometerplus.fbreader.formats.FormatPlugin;
+
+// Parsed book models are stored in <cache>/models/<SHA-1 of book path>;
+// an entry is valid while the book file has the same size & modification time
+abstract class BookModelCache {
+	private static final int VERSION = 6;
+	private static final int MAX_ENTRIES = 16;
+	private static final int HASHED_PART_SIZE = 65536;
+
+	private static final String INFO_FILE_NAME = "model.info";
+	private static final String TEXT_FILE_NAME = "text.blocks";
+	private static final String FOOTNOTES_INDEX_FILE_NAME = "notes.index";
+	private static final String FOOTNOTES_BLOCKS_FILE_NAME = "notes.blocks";
+	private static final String LINKS_EXTENSION = "links";
+	private static final String LAYOUT_FILE_PREFIX = "layout";
+	private static final String LAYOUT_FILE_SUFFIX = ".cache";
+	private static final String SEARCH_INDEX_FILE_NAME = "search.index";
+
+	private static String cacheDirectory() {
+		return Paths.cacheDirectory() + "/models";
+	}
+
+	// a 32-bit hash is not enough: books with colliding paths would replace
+	// each other's entry on every opening
+	private static String entryDirectory(Book book) {
+		final String path = book.File.getPath();
+		try {
+			final MessageDigest hash = MessageDigest.getInstance("SHA-1");
+			hash.update(path.getBytes("UTF-8"));
+			final Formatter f = new Formatter();
+			for (byte b : hash.digest()) {
+				f.format("%02x", b & 0xFF);
+			}
+			return cacheDirectory() + "/" + f.toString();
+		} catch (NoSuchAlgorithmException e) {
+		} catch (UnsupportedEncodingException e) {
+		}
+		return cacheDirectory() + "/" + String.format("%08x-%d", path.hashCode(), path.length());
+	}
+
+	// line breaking results are kept by ZLTextView in the model entry directory,
+	// so they are removed together with the model
+	static String layoutFileName(Book book, String modelId) {
+		final String suffix = modelId != null
+			? String.format("-%08x", modelId.hashCode()) + LAYOUT_FILE_SUFFIX : LAYOUT_FILE_SUFFIX;
+		return entryDirectory(book) + "/" + LAYOUT_FILE_PREFIX + suffix;
+	}
+
+	static String searchIndexFileName(Book book) {
+		return entryDirectory(book) + "/" + SEARCH_INDEX_FILE_NAME;
+	}
+
+	private static String fingerprint(Book book, FormatPlugin plugin) {
+		final ZLPhysicalFile physicalFile = book.File.getPhysicalFile();
+		if (physicalFile == null) {
+			return null;
+		}
+		final File javaFile = physicalFile.javaFile();
+		final StringBuilder buffer = new StringBuilder();
+		buffer.append(book.File.getPath()).append('\000');
+		buffer.append(book.File.size()).append('\000');
+		buffer.append(javaFile.length()).append('\000');
+		buffer.append(javaFile.lastModified()).append('\000');
+		buffer.append(contentHash(javaFile)).append('\000');
+		buffer.append(plugin.type()).append('\000');
+		buffer.append(plugin.supportedFileType()).append('\000');
+		buffer.append(book.getEncodingNoDetection()).append('\000');
+		buffer.append(book.getLanguage());
+		return buffer.toString();
+	}
+
+	// a checksum of the head & tail of the file: a file replaced by another one
+	// with the same size and modification time is detected without reading it all
+	private static String contentHash(File file) {
+		RandomAccessFile input = null;
+		try {
+			input = new RandomAccessFile(file, "r");
+			final long length = input.length();
+			final byte[] buffer = new byte[(int)Math.min(length, HASHED_PART_SIZE)];
+			final CRC32 crc = new CRC32();
+			input.readFully(buffer);
+			crc.update(buffer);
+			if (length > HASHED_PART_SIZE) {
+				input.seek(Math.max(length - HASHED_PART_SIZE, HASHED_PART_SIZE));
+				final int tailLength = (int)(length - input.getFilePointer());
+				input.readFully(buffer, 0, tailLength);
+				crc.update(buffer, 0, tailLength);
+			}
+			return String.format("%08x", crc.getValue());
+		} catch (IOException e) {
+			return "";
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static BookModel load(Book book, FormatPlugin plugin) {
+		final String fingerprint = fingerprint(book, plugin);
+		if (fingerprint == null) {
+			return null;
+		}
+		final String directoryName = entryDirectory(book);
+		final File infoFile = new File(directoryName, INFO_FILE_NAME);
+		if (!infoFile.exists()) {
+			return null;
+		}
+
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(infoFile)));
+			if (stream.readInt() != VERSION || !fingerprint.equals(stream.readUTF())) {
+				return null;
+			}
+
+			final NativeBookModel model = new NativeBookModel(book);
+
+			final int imagesNumber = stream.readInt();
+			for (int i = 0; i < imagesNumber; ++i) {
+				final String id = stream.readUTF();
+				final MimeType mimeType = MimeType.get(stream.readUTF());
+				final ZLFileImage image = ZLFileImage.byUrlPath(stream.readUTF(), mimeType);
+				if (image == null) {
+					return null;
+				}
+				model.addImage(id, image);
+			}
+
+			final int linksBlocksNumber = stream.readInt();
+			model.initInternalHyperlinks(directoryName, LINKS_EXTENSION, linksBlocksNumber);
+			model.myLabelIndex = LabelIndex.read(stream, linksBlocksNumber);
+
+			final ZLTextModel textModel = ZLTextPlainModel.load(
+				stream, directoryName + "/" + TEXT_FILE_NAME, model.myImageMap
+			);
+			model.setBookTextModel(textModel);
+			// footnote models are read on the first access
+			final int footnotesNumber = stream.readInt();
+			if (footnotesNumber > 0) {
+				final CachedFootnotes footnotes = new CachedFootnotes(
+					directoryName + "/" + FOOTNOTES_INDEX_FILE_NAME,
+					directoryName + "/" + FOOTNOTES_BLOCKS_FILE_NAME,
+					model.myImageMap
+				);
+				for (int i = 0; i < footnotesNumber; ++i) {
+					final String id = stream.readUTF();
+					footnotes.add(id, stream.readInt());
+				}
+				model.setCachedFootnotes(footnotes);
+			}
+
+			readTOC(stream, model.TOCTree, textModel);
+
+			new File(directoryName).setLastModified(System.currentTimeMillis());
+			return model;
+		} catch (Exception e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static void store(BookModel model, FormatPlugin plugin) {
+		if (!(model instanceof BookModelImpl)) {
+			return;
+		}
+		final BookModelImpl modelImpl = (BookModelImpl)model;
+		final String fingerprint = fingerprint(model.Book, plugin);
+		if (fingerprint == null || modelImpl.myInternalHyperlinks == null) {
+			return;
+		}
+		if (!(model.getTextModel() instanceof ZLTextPlainModel)) {
+			return;
+		}
+		for (ZLImage image : modelImpl.myImageMap.values()) {
+			if (!(image instanceof ZLFileImage)) {
+				return;
+			}
+		}
+		// the store runs in background, and footnote models are added on demand
+		final Map<String,ZLTextModel> footnotes;
+		synchronized (model) {
+			footnotes = new HashMap<String,ZLTextModel>(modelImpl.myFootnotes);
+		}
+		for (Map.Entry<String,ZLTextModel> entry : footnotes.entrySet()) {
+			if (entry.getKey() == null || !(entry.getValue() instanceof ZLTextPlainModel)) {
+				return;
+			}
+		}
+
+		final File directory = new File(entryDirectory(model.Book));
+		removeDirectory(directory);
+		removeOldEntries();
+		directory.mkdirs();
+
+		final String directoryName = directory.getPath();
+		final File tempFile = new File(directory, INFO_FILE_NAME + ".tmp");
+		DataOutputStream stream = null;
+		DataOutputStream footnotesStream = null;
+		SegmentedCharStorage footnoteBlocks = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			stream.writeInt(VERSION);
+			stream.writeUTF(fingerprint);
+
+			stream.writeInt(modelImpl.myImageMap.size());
+			for (Map.Entry<String,ZLImage> entry : modelImpl.myImageMap.entrySet()) {
+				final ZLFileImage image = (ZLFileImage)entry.getValue();
+				stream.writeUTF(entry.getKey());
+				stream.writeUTF(image.mimeType().toString());
+				stream.writeUTF(image.getUrlPath());
+			}
+
+			final CharStorage links = modelImpl.myInternalHyperlinks;
+			stream.writeInt(links.size());
+			CachedCharStorage.copy(links, directoryName, LINKS_EXTENSION);
+			modelImpl.labelIndex().write(stream);
+
+			((ZLTextPlainModel)model.getTextModel()).save(stream, directoryName + "/" + TEXT_FILE_NAME);
+			// all the footnotes are stored in two files: paragraph indices & text blocks;
+			// the info file keeps footnote ids and their offsets in the index file
+			stream.writeInt(footnotes.size());
+			if (!footnotes.isEmpty()) {
+				footnotesStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(
+					new File(directory, FOOTNOTES_INDEX_FILE_NAME)
+				)));
+				footnoteBlocks = SegmentedCharStorage.create(directoryName + "/" + FOOTNOTES_BLOCKS_FILE_NAME);
+				for (Map.Entry<String,ZLTextModel> entry : footnotes.entrySet()) {
+					stream.writeUTF(entry.getKey());
+					stream.writeInt(footnotesStream.size());
+					((ZLTextPlainModel)entry.getValue()).save(footnotesStream, footnoteBlocks);
+				}
+				footnotesStream.close();
+				footnotesStream = null;
+				footnoteBlocks.close();
+				footnoteBlocks = null;
+			}
+
+			writeTOC(stream, model.TOCTree);
+
+			stream.close();
+			stream = null;
+			tempFile.renameTo(new File(directory, INFO_FILE_NAME));
+		} catch (Exception e) {
+			// the cache is optional; a broken entry must not prevent reading the book
+			e.printStackTrace();
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException ioe) {
+				}
+			}
+			if (footnotesStream != null) {
+				try {
+					footnotesStream.close();
+				} catch (IOException ioe) {
+				}
+			}
+			if (footnoteBlocks != null) {
+				footnoteBlocks.close();
+			}
+			removeDirectory(directory);
+		}
+	}
+
+	private static void writeTOC(DataOutputStream stream, TOCTree tree) throws IOException {
+		final List<TOCTree> subTrees = tree.subTrees();
+		stream.writeInt(subTrees.size());
+		for (TOCTree subTree : subTrees) {
+			final String text = subTree.getText();
+			stream.writeBoolean(text != null);
+			if (text != null) {
+				stream.writeUTF(text);
+			}
+			final TOCTree.Reference reference = subTree.getReference();
+			stream.writeInt(reference != null ? reference.ParagraphIndex : -1);
+			writeTOC(stream, subTree);
+		}
+	}
+
+	private static void readTOC(DataInputStream stream, TOCTree tree, ZLTextModel model) throws IOException {
+		final int size = stream.readInt();
+		for (int i = 0; i < size; ++i) {
+			final TOCTree subTree = new TOCTree(tree);
+			if (stream.readBoolean()) {
+				subTree.setText(stream.readUTF());
+			}
+			final int reference = stream.readInt();
+			if (reference != -1) {
+				subTree.setReference(model, reference);
+			}
+			readTOC(stream, subTree, model);
+		}
+	}
+
+	private static void removeOldEntries() {
+		final File[] entries = new File(cacheDirectory()).listFiles();
+		if (entries == null || entries.length < MAX_ENTRIES) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long diff = f1.lastModified() - f0.lastModified();
+				return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+			}
+		});
+		for (int i = MAX_ENTRIES - 1; i < entries.length; ++i) {
+			removeDirectory(entries[i]);
+		}
+	}
+
+	private static void removeDirectory(File directory) {
+		final File[] children = directory.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				child.delete();
+			}
+		}
+		directory.delete();
+	}
+}
@@ -29,6 +29,7 @@ import org.geometerplus.fbreader.book.Book;
 
 abstract class BookModelImpl extends BookModel {
 	protected CharStorage myInternalHyperlinks;
+	protected LabelIndex myLabelIndex;
 	protected final HashMap<String,ZLImage> myImageMap = new HashMap<String,ZLImage>();
 	protected final HashMap<String,ZLTextModel> myFootnotes = new HashMap<String,ZLTextModel>();
 
@@ -36,31 +37,34 @@ abstract class BookModelImpl extends BookModel {
 		super(book);
 	}
 
+	// is built on the first use if not created by the model reader or loaded from cache
+	synchronized LabelIndex labelIndex() {
+		if (myLabelIndex == null) {
+			myLabelIndex = LabelIndex.build(myInternalHyperlinks);
+		}
+		return myLabelIndex;
+	}
+
 	@Override
 	protected Label getLabelInternal(String id) {
-		final int len = id.length();
-		final int size = myInternalHyperlinks.size();
+		return labelIndex().getLabel(myInternalHyperlinks, id);
+	}
+
+	@Override
+	protected synchronized void closeInternal() {
+		closeModel(getTextModel());
+		for (ZLTextModel model : myFootnotes.values()) {
+			closeModel(model);
+		}
+		if (myInternalHyperlinks != null) {
+			myInternalHyperlinks.close();
+		}
+	}
 
-		for (int i = 0; i < size; ++i) {
-			final char[] block = myInternalHyperlinks.block(i);
-			for (int offset = 0; offset < block.length; ) {
-				final int labelLength = (int)block[offset++];
-				if (labelLength == 0) {
-					break;
-				}
-				final int idLength = (int)block[offset + labelLength];
-				if ((labelLength != len) || !id.equals(new String(block, offset, labelLength))) {
-					offset += labelLength + idLength + 3;
-					continue;
-				}
-				offset += labelLength + 1;
-				final String modelId = (idLength > 0) ? new String(block, offset, idLength) : null;
-				offset += idLength;
-				final int paragraphNumber = (int)block[offset] + (((int)block[offset + 1]) << 16);
-				return new Label(modelId, paragraphNumber);
-			}
+	private static void closeModel(ZLTextModel model) {
+		if (model instanceof ZLTextPlainModel) {
+			((ZLTextPlainModel)model).close();
 		}
-		return null;
 	}
 
 	public void addImage(String id, ZLImage image) {
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.geometerplus.zlibrary.core.image.ZLImage;
+
+import org.geometerplus.zlibrary.text.model.*;
+
+// Footnote models of a book restored from the model cache; a model is read
+// on the first access: its paragraph index is read from the index file at stored
+// offset, the text blocks of all the footnotes are mapped from one shared file
+final class CachedFootnotes {
+	private final String myIndexFileName;
+	private final String myBlocksFileName;
+	private final Map<String,ZLImage> myImageMap;
+	private final HashMap<String,Integer> myOffsets = new HashMap<String,Integer>();
+	private SegmentedCharStorage myBlocks;
+	private boolean myIsClosed;
+
+	CachedFootnotes(String indexFileName, String blocksFileName, Map<String,ZLImage> imageMap) {
+		myIndexFileName = indexFileName;
+		myBlocksFileName = blocksFileName;
+		myImageMap = imageMap;
+	}
+
+	void add(String id, int offset) {
+		myOffsets.put(id, offset);
+	}
+
+	// returns null if the cache entry is broken
+	synchronized ZLTextModel load(String id) {
+		final Integer offset = myOffsets.get(id);
+		if (offset == null || myIsClosed) {
+			return null;
+		}
+		FileInputStream input = null;
+		try {
+			if (myBlocks == null) {
+				myBlocks = SegmentedCharStorage.open(myBlocksFileName);
+			}
+			input = new FileInputStream(myIndexFileName);
+			input.getChannel().position(offset);
+			return ZLTextPlainModel.load(
+				new DataInputStream(new BufferedInputStream(input)), myBlocks, myImageMap
+			);
+		} catch (Exception e) {
+			return null;
+		} finally {
+			if (input != null) {
+				try {
+					input.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	synchronized void close() {
+		myIsClosed = true;
+		if (myBlocks != null) {
+			myBlocks.close();
+			myBlocks = null;
+		}
+	}
+}
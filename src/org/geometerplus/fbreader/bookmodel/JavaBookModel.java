@@ -26,10 +26,13 @@ import org.geometerplus.fbreader.book.Book;
 
 public class JavaBookModel extends BookModelImpl {
 	public final ZLTextModel BookTextModel;
+	// text blocks of all the footnote models
+	private SegmentedCharStorage myFootnoteBlocks;
 
 	JavaBookModel(Book book) {
 		super(book);
 		myInternalHyperlinks = new CachedCharStorage(32768, Paths.cacheDirectory(), "links");
+		myLabelIndex = new LabelIndex();
 		BookTextModel = new ZLTextWritablePlainModel(null, book.getLanguage(), 1024, 65536, Paths.cacheDirectory(), "cache", myImageMap);
 	}
 
@@ -39,10 +42,22 @@ public class JavaBookModel extends BookModelImpl {
 	}
 
 	@Override
-	public ZLTextModel getFootnoteModel(String id) {
+	protected synchronized void closeInternal() {
+		super.closeInternal();
+		if (myFootnoteBlocks != null) {
+			myFootnoteBlocks.close();
+			myFootnoteBlocks = null;
+		}
+	}
+
+	@Override
+	public synchronized ZLTextModel getFootnoteModel(String id) {
 		ZLTextModel model = myFootnotes.get(id);
 		if (model == null) {
-			model = new ZLTextWritablePlainModel(id, Book.getLanguage(), 8, 512, Paths.cacheDirectory(), "cache" + myFootnotes.size(), myImageMap);
+			if (myFootnoteBlocks == null) {
+				myFootnoteBlocks = SegmentedCharStorage.create(Paths.cacheDirectory(), "notes");
+			}
+			model = new ZLTextWritablePlainModel(id, Book.getLanguage(), 8, myFootnoteBlocks.createSegment(512), myImageMap);
 			myFootnotes.put(id, model);
 		}
 		return model;
@@ -67,6 +82,7 @@ public class JavaBookModel extends BookModelImpl {
 			myCurrentLinkBlock = block;
 			offset = 0;
 		}
+		final int recordOffset = offset;
 		block[offset++] = (char)labelLength;
 		label.getChars(0, labelLength, block, offset);
 		offset += labelLength;
@@ -78,5 +94,6 @@ public class JavaBookModel extends BookModelImpl {
 		block[offset++] = (char)paragraphNumber;
 		block[offset++] = (char)(paragraphNumber >> 16);
 		myCurrentLinkBlockOffset = offset;
+		myLabelIndex.add(myInternalHyperlinks, block, myInternalHyperlinks.size() - 1, recordOffset);
 	}
 }
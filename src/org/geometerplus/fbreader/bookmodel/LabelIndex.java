@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.fbreader.bookmodel;
+
+import java.io.*;
+import java.util.Arrays;
+
+import org.geometerplus.zlibrary.text.model.CharStorage;
+
+// Open addressing hash table over the internal hyperlinks storage:
+// label hash code -> (block index, offset) of the label record.
+// A record is (label length, label, model id length, model id,
+// paragraph number as 2 chars); for equal labels the first one is kept.
+final class LabelIndex {
+	private static final int VERSION = 1;
+
+	private int mySize;
+	private int[] myHashes;
+	private int[] myBlocks;
+	private int[] myOffsets;
+
+	LabelIndex() {
+		allocate(64);
+	}
+
+	private void allocate(int capacity) {
+		myHashes = new int[capacity];
+		myBlocks = new int[capacity];
+		myOffsets = new int[capacity];
+		Arrays.fill(myBlocks, -1);
+	}
+
+	private static boolean labelEquals(char[] block, int offset, String label) {
+		final int length = label.length();
+		if (block[offset] != length) {
+			return false;
+		}
+		++offset;
+		for (int i = 0; i < length; ++i) {
+			if (block[offset + i] != label.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean labelEquals(char[] block0, int offset0, char[] block1, int offset1) {
+		final int length = block0[offset0];
+		if (block1[offset1] != length) {
+			return false;
+		}
+		for (int i = 1; i <= length; ++i) {
+			if (block0[offset0 + i] != block1[offset1 + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int hash(char[] block, int offset) {
+		final int length = block[offset];
+		int hash = 0;
+		for (int i = 1; i <= length; ++i) {
+			hash = 31 * hash + block[offset + i];
+		}
+		return hash;
+	}
+
+	private static int mix(int hash) {
+		hash ^= (hash >>> 20) ^ (hash >>> 12);
+		return hash ^ (hash >>> 7) ^ (hash >>> 4);
+	}
+
+	private void insert(int hash, int blockIndex, int offset) {
+		final int mask = myHashes.length - 1;
+		int slot = mix(hash) & mask;
+		while (myBlocks[slot] != -1) {
+			slot = (slot + 1) & mask;
+		}
+		myHashes[slot] = hash;
+		myBlocks[slot] = blockIndex;
+		myOffsets[slot] = offset;
+		++mySize;
+	}
+
+	private void ensureCapacity() {
+		if (2 * (mySize + 1) <= myHashes.length) {
+			return;
+		}
+		final int[] hashes = myHashes;
+		final int[] blocks = myBlocks;
+		final int[] offsets = myOffsets;
+		allocate(hashes.length * 2);
+		mySize = 0;
+		for (int i = 0; i < hashes.length; ++i) {
+			if (blocks[i] != -1) {
+				insert(hashes[i], blocks[i], offsets[i]);
+			}
+		}
+	}
+
+	// slot of the record for the label, -1 if there is no such record
+	private int find(CharStorage storage, String label, int hash) {
+		final int mask = myHashes.length - 1;
+		for (int slot = mix(hash) & mask; myBlocks[slot] != -1; slot = (slot + 1) & mask) {
+			if (myHashes[slot] == hash && labelEquals(storage.block(myBlocks[slot]), myOffsets[slot], label)) {
+				return slot;
+			}
+		}
+		return -1;
+	}
+
+	// block is the block blockIndex, passed since it may be not frozen yet
+	void add(CharStorage storage, char[] block, int blockIndex, int offset) {
+		final int hash = hash(block, offset);
+		final int mask = myHashes.length - 1;
+		for (int slot = mix(hash) & mask; myBlocks[slot] != -1; slot = (slot + 1) & mask) {
+			if (myHashes[slot] == hash) {
+				final char[] other = myBlocks[slot] == blockIndex ? block : storage.block(myBlocks[slot]);
+				if (labelEquals(other, myOffsets[slot], block, offset)) {
+					return;
+				}
+			}
+		}
+		ensureCapacity();
+		insert(hash, blockIndex, offset);
+	}
+
+	static LabelIndex build(CharStorage storage) {
+		final LabelIndex index = new LabelIndex();
+		final int size = storage.size();
+		for (int i = 0; i < size; ++i) {
+			final char[] block = storage.block(i);
+			for (int offset = 0; offset < block.length; ) {
+				final int labelLength = (int)block[offset];
+				if (labelLength == 0) {
+					break;
+				}
+				index.add(storage, block, i, offset);
+				final int idLength = (int)block[offset + labelLength + 1];
+				offset += labelLength + idLength + 4;
+			}
+		}
+		return index;
+	}
+
+	BookModel.Label getLabel(CharStorage storage, String id) {
+		final int slot = find(storage, id, id.hashCode());
+		if (slot == -1) {
+			return null;
+		}
+		final char[] block = storage.block(myBlocks[slot]);
+		int offset = myOffsets[slot] + id.length() + 1;
+		final int idLength = (int)block[offset++];
+		final String modelId = (idLength > 0) ? new String(block, offset, idLength) : null;
+		offset += idLength;
+		final int paragraphNumber = (int)block[offset] + (((int)block[offset + 1]) << 16);
+		return new BookModel.Label(modelId, paragraphNumber);
+	}
+
+	void write(DataOutputStream stream) throws IOException {
+		stream.writeInt(VERSION);
+		stream.writeInt(mySize);
+		for (int i = 0; i < myBlocks.length; ++i) {
+			if (myBlocks[i] != -1) {
+				stream.writeInt(myHashes[i]);
+				stream.writeInt(myBlocks[i]);
+				stream.writeInt(myOffsets[i]);
+			}
+		}
+	}
+
+	static LabelIndex read(DataInputStream stream, int blocksNumber) throws IOException {
+		if (stream.readInt() != VERSION) {
+			throw new IOException("Unsupported label index version");
+		}
+		final int size = stream.readInt();
+		final LabelIndex index = new LabelIndex();
+		int capacity = 64;
+		while (capacity < 2 * (size + 1)) {
+			capacity <<= 1;
+		}
+		index.allocate(capacity);
+		for (int i = 0; i < size; ++i) {
+			final int hash = stream.readInt();
+			final int blockIndex = stream.readInt();
+			final int offset = stream.readInt();
+			if (blockIndex < 0 || blockIndex >= blocksNumber || offset < 0) {
+				throw new IOException("Invalid label index entry");
+			}
+			index.insert(hash, blockIndex, offset);
+		}
+		return index;
+	}
+}
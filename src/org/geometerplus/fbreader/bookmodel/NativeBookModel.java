@@ -25,6 +25,7 @@ import org.geometerplus.fbreader.book.Book;
 
 public class NativeBookModel extends BookModelImpl {
 	private ZLTextModel myBookTextModel;
+	private CachedFootnotes myCachedFootnotes;
 
 	NativeBookModel(Book book) {
 		super(book);
@@ -71,13 +72,32 @@ public class NativeBookModel extends BookModelImpl {
 		myFootnotes.put(model.getId(), model);
 	}
 
+	void setCachedFootnotes(CachedFootnotes footnotes) {
+		myCachedFootnotes = footnotes;
+	}
+
 	@Override
 	public ZLTextModel getTextModel() {
 		return myBookTextModel;
 	}
 
 	@Override
-	public ZLTextModel getFootnoteModel(String id) {
-		return myFootnotes.get(id);
+	protected synchronized void closeInternal() {
+		super.closeInternal();
+		if (myCachedFootnotes != null) {
+			myCachedFootnotes.close();
+		}
+	}
+
+	@Override
+	public synchronized ZLTextModel getFootnoteModel(String id) {
+		ZLTextModel model = myFootnotes.get(id);
+		if (model == null && myCachedFootnotes != null) {
+			model = myCachedFootnotes.load(id);
+			if (model != null) {
+				myFootnotes.put(id, model);
+			}
+		}
+		return model;
 	}
 }
@@ -250,6 +250,11 @@ public final class FBReaderApp extends ZLApplication {
 		FootnoteView.clearCaches();
 	}
 
+	String getLayoutCacheFileName(ZLTextModel model) {
+		final BookModel bookModel = Model;
+		return bookModel != null ? bookModel.getLayoutCacheFileName(model) : null;
+	}
+
 	public Bookmark addSelectionBookmark() {
 		final FBView fbView = getTextView();
 		final String text = fbView.getSelectedText();
@@ -321,6 +326,9 @@ public final class FBReaderApp extends ZLApplication {
 		FootnoteView.setModel(null);
 		clearTextCaches();
 
+		if (Model != null) {
+			Model.close();
+		}
 		Model = null;
 		System.gc();
 		System.gc();
@@ -420,6 +428,8 @@ public final class FBReaderApp extends ZLApplication {
 
 	public void onWindowClosing() {
 		storePosition();
+		BookTextView.saveLayoutCache();
+		FootnoteView.saveLayoutCache();
 	}
 
 	public void storePosition() {
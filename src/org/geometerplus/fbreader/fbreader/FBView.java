@@ -49,6 +49,11 @@ public final class FBView extends ZLTextView {
 		}
 	}
 
+	@Override
+	protected String getLayoutCacheFileName(ZLTextModel model) {
+		return myReader.getLayoutCacheFileName(model);
+	}
+
 	private int myStartY;
 	private boolean myIsBrightnessAdjustmentInProgress;
 	private int myStartBrightness;
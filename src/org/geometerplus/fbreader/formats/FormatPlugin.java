@@ -24,6 +24,7 @@ import org.geometerplus.zlibrary.core.encodings.AutoEncodingCollection;
 import org.geometerplus.zlibrary.core.encodings.EncodingCollection;
 
 import org.geometerplus.fbreader.book.Book;
+import org.geometerplus.fbreader.bookmodel.BookModel;
 import org.geometerplus.fbreader.bookmodel.BookReadingException;
 
 public abstract class FormatPlugin implements FormatPluginReadAction{
@@ -49,6 +50,11 @@ public abstract class FormatPlugin implements FormatPluginReadAction{
 		return new AutoEncodingCollection();
 	}
 
+	// resolver to be installed into each model created by this plugin
+	public BookModel.LabelResolver labelResolver() {
+		return null;
+	}
+
 	public enum Type {
 		ANY,
 		JAVA,
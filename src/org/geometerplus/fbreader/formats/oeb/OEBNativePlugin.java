@@ -19,11 +19,7 @@
 
 package org.geometerplus.fbreader.formats.oeb;
 
-import java.util.Collections;
-import java.util.List;
-
 import org.geometerplus.fbreader.bookmodel.BookModel;
-import org.geometerplus.fbreader.bookmodel.BookReadingException;
 import org.geometerplus.fbreader.formats.NativeFormatPlugin;
 
 public class OEBNativePlugin extends NativeFormatPlugin {
@@ -32,15 +28,7 @@ public class OEBNativePlugin extends NativeFormatPlugin {
 	}
 
 	@Override
-	public void readModel(BookModel model) throws BookReadingException {
-		super.readModel(model);
-		model.setLabelResolver(new BookModel.LabelResolver() {
-			public List<String> getCandidates(String id) {
-				final int index = id.indexOf("#");
-				return index > 0
-					? Collections.<String>singletonList(id.substring(0, index))
-					: Collections.<String>emptyList();
-			}
-		});
+	public BookModel.LabelResolver labelResolver() {
+		return new OEBLabelResolver();
 	}
 }
@@ -23,7 +23,8 @@ import java.io.*;
 import java.util.*;
 
 public abstract class ZLFile {
-	private final static HashMap<String,ZLFile> ourCachedFiles = new HashMap<String,ZLFile>();
+	private final static Map<String,ZLFile> ourCachedFiles =
+		Collections.synchronizedMap(new HashMap<String,ZLFile>());
 
 	protected interface ArchiveType {
 		int	NONE = 0;
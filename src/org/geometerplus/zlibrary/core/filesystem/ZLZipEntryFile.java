@@ -42,25 +42,47 @@ final class ZLZipEntryFile extends ZLArchiveEntryFile {
 
 	private static HashMap<ZLFile,ZipFile> ourZipFileMap = new HashMap<ZLFile,ZipFile>();
 
+	// the index is read (or stored) outside of the lock, so reading of one archive
+	// does not block others; if two threads open the same archive at once,
+	// the first stored ZipFile is used by both
 	private static ZipFile getZipFile(final ZLFile file) throws IOException {
-		synchronized (ourZipFileMap) {
-			ZipFile zf = file.isCached() ? ourZipFileMap.get(file) : null;
-			if (zf == null) {
-				zf = new ZipFile(new ZipFile.InputStreamHolder() {
-					public InputStream getInputStream() throws IOException {
-						return file.getInputStream();
-					}
-				});
-				if (file.isCached()) {
-					ourZipFileMap.put(file, zf);
+		if (file.isCached()) {
+			synchronized (ourZipFileMap) {
+				final ZipFile zf = ourZipFileMap.get(file);
+				if (zf != null) {
+					return zf;
 				}
 			}
-			return zf;
 		}
+		final ZipFile zf = new ZipFile(new ZipFile.InputStreamHolder() {
+			public InputStream getInputStream() throws IOException {
+				return file.getInputStream();
+			}
+		});
+		if (file instanceof ZLPhysicalFile) {
+			final ZLPhysicalFile archive = (ZLPhysicalFile)file;
+			// all the headers of a cached archive are read anyway; to open
+			// a single entry of any other one it is enough to find that entry
+			if (!ZLZipIndexCache.load(archive, zf) && file.isCached()) {
+				ZLZipIndexCache.store(archive, zf);
+			}
+		}
+		if (file.isCached()) {
+			synchronized (ourZipFileMap) {
+				final ZipFile stored = ourZipFileMap.get(file);
+				if (stored != null) {
+					return stored;
+				}
+				ourZipFileMap.put(file, zf);
+			}
+		}
+		return zf;
 	}
 
 	static void removeFromCache(ZLFile file) {
-		ourZipFileMap.remove(file);
+		synchronized (ourZipFileMap) {
+			ourZipFileMap.remove(file);
+		}
 	}
 
 	ZLZipEntryFile(ZLFile parent, String name) {
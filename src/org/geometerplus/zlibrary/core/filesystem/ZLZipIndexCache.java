@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.core.filesystem;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.amse.ys.zip.ZipFile;
+
+// Entry tables of zip archives are stored in <directory>/<hash of archive path>;
+// an index is valid while the archive has the same size & modification time.
+// The directory is set by the application; nothing is stored until it is set.
+// Recently used indices are kept in memory as well, so opening entries of
+// an archive one by one does not read the index file every time.
+public abstract class ZLZipIndexCache {
+	private static final int VERSION = 1;
+	// an index of a single-book archive takes about a hundred bytes
+	private static final long MAX_DIRECTORY_SIZE = 8 * 1024 * 1024;
+	private static final int CLEANUP_PERIOD = 64;
+	private static final int MAX_MEMORY_SIZE = 256 * 1024;
+
+	private static volatile String ourDirectory;
+	private static final AtomicInteger ourStoresNumber = new AtomicInteger();
+
+	// fingerprint -> index written by ZipFile.writeIndex()
+	private static final LinkedHashMap<String,byte[]> ourRecentIndices =
+		new LinkedHashMap<String,byte[]>(64, 0.75f, true);
+	private static int ourRecentIndicesSize;
+
+	public static void setDirectory(String directory) {
+		ourDirectory = directory;
+	}
+
+	private static File indexFile(String directory, ZLPhysicalFile archive) {
+		return new File(directory, String.format("%08x", archive.getPath().hashCode()));
+	}
+
+	private static String fingerprint(ZLPhysicalFile archive) {
+		final File javaFile = archive.javaFile();
+		return archive.getPath() + '\000' + javaFile.length() + '\000' + javaFile.lastModified();
+	}
+
+	private static byte[] recentIndex(String fingerprint) {
+		synchronized (ourRecentIndices) {
+			return ourRecentIndices.get(fingerprint);
+		}
+	}
+
+	private static void rememberIndex(String fingerprint, byte[] index) {
+		synchronized (ourRecentIndices) {
+			final byte[] old = ourRecentIndices.put(fingerprint, index);
+			if (old != null) {
+				ourRecentIndicesSize -= old.length;
+			}
+			ourRecentIndicesSize += index.length;
+			final Iterator<byte[]> it = ourRecentIndices.values().iterator();
+			while (it.hasNext() && ourRecentIndicesSize > MAX_MEMORY_SIZE) {
+				ourRecentIndicesSize -= it.next().length;
+				it.remove();
+			}
+		}
+	}
+
+	private static void forgetIndex(String fingerprint) {
+		synchronized (ourRecentIndices) {
+			final byte[] old = ourRecentIndices.remove(fingerprint);
+			if (old != null) {
+				ourRecentIndicesSize -= old.length;
+			}
+		}
+	}
+
+	static boolean load(ZLPhysicalFile archive, ZipFile zipFile) {
+		final String fingerprint = fingerprint(archive);
+		byte[] index = recentIndex(fingerprint);
+		if (index == null) {
+			index = readIndex(archive, fingerprint);
+			if (index == null) {
+				return false;
+			}
+			rememberIndex(fingerprint, index);
+		}
+		try {
+			zipFile.readIndex(new DataInputStream(new ByteArrayInputStream(index)));
+			return true;
+		} catch (IOException e) {
+			forgetIndex(fingerprint);
+			return false;
+		}
+	}
+
+	private static byte[] readIndex(ZLPhysicalFile archive, String fingerprint) {
+		final String directory = ourDirectory;
+		if (directory == null) {
+			return null;
+		}
+		final File file = indexFile(directory, archive);
+		if (!file.exists()) {
+			return null;
+		}
+
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (stream.readInt() != VERSION || !fingerprint.equals(stream.readUTF())) {
+				return null;
+			}
+			final ByteArrayOutputStream index = new ByteArrayOutputStream();
+			final byte[] buffer = new byte[4096];
+			for (int len = stream.read(buffer); len > 0; len = stream.read(buffer)) {
+				index.write(buffer, 0, len);
+			}
+			file.setLastModified(System.currentTimeMillis());
+			return index.toByteArray();
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static void store(ZLPhysicalFile archive, ZipFile zipFile) {
+		final String fingerprint = fingerprint(archive);
+		final byte[] index;
+		try {
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final DataOutputStream indexStream = new DataOutputStream(bytes);
+			zipFile.writeIndex(indexStream);
+			indexStream.flush();
+			index = bytes.toByteArray();
+		} catch (IOException e) {
+			// the index is optional; archive is read directly if there is no index
+			return;
+		}
+		rememberIndex(fingerprint, index);
+
+		final String directoryName = ourDirectory;
+		if (directoryName == null) {
+			return;
+		}
+		final File directory = new File(directoryName);
+		directory.mkdirs();
+		// listing of a directory with thousands of files is not cheap
+		if (ourStoresNumber.getAndIncrement() % CLEANUP_PERIOD == 0) {
+			removeOldEntries(directory);
+		}
+
+		final File file = indexFile(directoryName, archive);
+		final File tempFile = new File(directory, file.getName() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			stream.writeInt(VERSION);
+			stream.writeUTF(fingerprint);
+			stream.write(index);
+			stream.close();
+			stream = null;
+			tempFile.renameTo(file);
+		} catch (IOException e) {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException ioe) {
+				}
+			}
+			tempFile.delete();
+		}
+	}
+
+	// the limit is by size, not by number of files: a collection
+	// of single-book archives has thousands of small indices
+	private static void removeOldEntries(File directory) {
+		final File[] entries = directory.listFiles();
+		if (entries == null) {
+			return;
+		}
+		long size = 0;
+		for (File entry : entries) {
+			size += entry.length();
+		}
+		if (size <= MAX_DIRECTORY_SIZE) {
+			return;
+		}
+		Arrays.sort(entries, new Comparator<File>() {
+			public int compare(File f0, File f1) {
+				final long diff = f1.lastModified() - f0.lastModified();
+				return diff > 0 ? 1 : (diff < 0 ? -1 : 0);
+			}
+		});
+		size = 0;
+		for (File entry : entries) {
+			size += entry.length();
+			if (size > MAX_DIRECTORY_SIZE) {
+				entry.delete();
+			}
+		}
+	}
+}
@@ -32,6 +32,10 @@ public class ZLFileImage extends ZLSingleImage {
 	public static final String ENCODING_BASE64 = "base64";
 
 	public static ZLFileImage byUrlPath(String urlPath) {
+		return byUrlPath(urlPath, MimeType.IMAGE_AUTO);
+	}
+
+	public static ZLFileImage byUrlPath(String urlPath, MimeType mimeType) {
 		try {
 			final String[] data = urlPath.split("\000");
 			int count = Integer.parseInt(data[2]);
@@ -42,7 +46,7 @@ public class ZLFileImage extends ZLSingleImage {
 				lengths[i] = Integer.parseInt(data[3 + count + i]);
 			}
 			return new ZLFileImage(
-					MimeType.IMAGE_AUTO,
+					mimeType,
 					ZLFile.createFileByPath(data[0]),
 					data[1],
 					offsets,
@@ -90,7 +94,11 @@ public class ZLFileImage extends ZLSingleImage {
 	}
 
 	public String getURI() {
-		String result = SCHEME + "://" + myFile.getPath() + "\000" + myEncoding + "\000" + myOffsets.length;
+		return SCHEME + "://" + getUrlPath();
+	}
+
+	public String getUrlPath() {
+		String result = myFile.getPath() + "\000" + myEncoding + "\000" + myOffsets.length;
 		for (int offset : myOffsets) {
 			result += "\000" + offset;
 		}
@@ -19,20 +19,40 @@
 
 package org.geometerplus.zlibrary.core.util;
 
+import java.util.Arrays;
+
 public class ZLSearchPattern {
 	final boolean IgnoreCase;
 	final char[] LowerCasePattern;
 	final char[] UpperCasePattern;
+	// Horspool shifts indexed by the low byte of the last char in the window;
+	// chars with the same low byte share the smallest shift, so no match is skipped
+	final int[] Shifts = new int[256];
 
 	public ZLSearchPattern(String pattern, boolean ignoreCase) {
 		IgnoreCase = ignoreCase;
+		final int length = pattern.length();
 		if (IgnoreCase) {
-			LowerCasePattern = pattern.toLowerCase().toCharArray();
-			UpperCasePattern = pattern.toUpperCase().toCharArray();
+			// case is folded per char, so both patterns have the same length
+			LowerCasePattern = new char[length];
+			UpperCasePattern = new char[length];
+			for (int i = 0; i < length; ++i) {
+				final char ch = pattern.charAt(i);
+				LowerCasePattern[i] = Character.toLowerCase(ch);
+				UpperCasePattern[i] = Character.toUpperCase(ch);
+			}
 		} else {
 			LowerCasePattern = pattern.toCharArray();
 			UpperCasePattern = null;
 		}
+
+		Arrays.fill(Shifts, length);
+		for (int i = 0; i < length - 1; ++i) {
+			Shifts[LowerCasePattern[i] & 0xFF] = length - 1 - i;
+			if (IgnoreCase) {
+				Shifts[UpperCasePattern[i] & 0xFF] = length - 1 - i;
+			}
+		}
 	}
 
 	public int getLength() {
@@ -33,40 +33,34 @@ public abstract class ZLSearchUtil {
 		}
 		final char[] lower = pattern.LowerCasePattern;
 		final int patternLength = lower.length;
+		if (patternLength == 0) {
+			return -1;
+		}
+		final int lastIndex = patternLength - 1;
 		final int last = offset + length - patternLength;
+		final int[] shifts = pattern.Shifts;
 		if (pattern.IgnoreCase) {
 			final char[] upper = pattern.UpperCasePattern;
-			final char firstCharLower = lower[0];
-			final char firstCharUpper = upper[0];
-			for (int i = offset + pos; i <= last; i++) {
-				final char current = text[i];
-				if ((current == firstCharLower) || (current == firstCharUpper)) {
-					int j = 1;
-					for (int k = i + 1; j < patternLength; ++j, ++k) {
-						final char symbol = text[k];
-						if ((lower[j] != symbol) &&
-								(upper[j] != symbol)) {
-							break;
-						}
-					}
-					if (j >= patternLength) {
-						return i - offset;
+			for (int i = offset + pos; i <= last; i += shifts[text[i + lastIndex] & 0xFF]) {
+				int j = lastIndex;
+				for (int k = i + lastIndex; j >= 0; --j, --k) {
+					final char symbol = text[k];
+					if ((lower[j] != symbol) && (upper[j] != symbol)) {
+						break;
 					}
 				}
+				if (j < 0) {
+					return i - offset;
+				}
 			}
 		} else {
-			final char firstChar = lower[0];
-			for (int i = offset + pos; i <= last; i++) {
-				if (text[i] == firstChar) {
-					int j = 1;
-					for (int k = i + 1; j < patternLength; ++j, ++k) {
-						if (lower[j] != text[k]) {
-							break;
-						}
-					}
-					if (j >= patternLength) {
-						return i - offset;
-					}
+			for (int i = offset + pos; i <= last; i += shifts[text[i + lastIndex] & 0xFF]) {
+				int j = lastIndex;
+				while (j >= 0 && lower[j] == text[i + j]) {
+					--j;
+				}
+				if (j < 0) {
+					return i - offset;
 				}
 			}
 		}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.core.view;
+
+import java.util.*;
+
+// Text widths measured with one font (paint context class, family, size, bold, italic)
+// and text rendering flags of the context.
+// Strings of "simple" characters (Latin, Greek, Cyrillic, general punctuation)
+// are measured as a sum of character advances; widths of other strings
+// (combining marks, complex scripts, ligatures) are stored for whole strings.
+// With kerning, the sum of advances is wrong, so nothing is cached.
+final class ZLFontWidthCache {
+	private static final int MAX_FONTS = 16;
+	private static final int MAX_STRINGS = 512;
+
+	private static final int TABLE_SIZE = 0x500 + 0x70;
+
+	private static final class Key {
+		final Class<?> ContextClass;
+		final String Family;
+		final int Size;
+		final boolean Bold;
+		final boolean Italic;
+		final int Flags;
+
+		Key(Class<?> contextClass, String family, int size, boolean bold, boolean italic, int flags) {
+			ContextClass = contextClass;
+			Family = family;
+			Size = size;
+			Bold = bold;
+			Italic = italic;
+			Flags = flags;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			final Key k = (Key)o;
+			return
+				ContextClass == k.ContextClass &&
+				Family.equals(k.Family) &&
+				Size == k.Size &&
+				Bold == k.Bold &&
+				Italic == k.Italic &&
+				Flags == k.Flags;
+		}
+
+		@Override
+		public int hashCode() {
+			return Family.hashCode() + 31 * Size + 4 * Flags + (Bold ? 2 : 0) + (Italic ? 1 : 0);
+		}
+	}
+
+	private static final LinkedHashMap<Key,ZLFontWidthCache> ourCaches =
+		new LinkedHashMap<Key,ZLFontWidthCache>(MAX_FONTS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,ZLFontWidthCache> eldest) {
+				return size() > MAX_FONTS;
+			}
+		};
+
+	static ZLFontWidthCache get(ZLPaintContext context, String family, int size, boolean bold, boolean italic, int flags) {
+		final Key key = new Key(context.getClass(), family, size, bold, italic, flags);
+		synchronized (ourCaches) {
+			ZLFontWidthCache cache = ourCaches.get(key);
+			if (cache == null) {
+				cache = new ZLFontWidthCache((flags & ZLPaintContext.TEXT_KERNING) != 0);
+				ourCaches.put(key, cache);
+			}
+			return cache;
+		}
+	}
+
+	static void clearAll() {
+		synchronized (ourCaches) {
+			ourCaches.clear();
+		}
+	}
+
+	private final boolean myIsBypassed;
+
+	private final float[] myCharWidths = new float[TABLE_SIZE];
+	private final LinkedHashMap<String,Integer> myStringWidths =
+		new LinkedHashMap<String,Integer>(MAX_STRINGS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String,Integer> eldest) {
+				return size() > MAX_STRINGS;
+			}
+		};
+
+	private ZLFontWidthCache(boolean bypass) {
+		myIsBypassed = bypass;
+		Arrays.fill(myCharWidths, -1f);
+	}
+
+	private static int tableIndex(char ch) {
+		if (ch < 0x300) {
+			return ch;
+		} else if (ch < 0x370) {
+			// combining diacritical marks
+			return -1;
+		} else if (ch < 0x500) {
+			return ch;
+		} else if (ch >= 0x2000 && ch < 0x2070) {
+			return ch - 0x2000 + 0x500;
+		} else {
+			return -1;
+		}
+	}
+
+	// context must use the font of this cache
+	synchronized int getStringWidth(ZLPaintContext context, char[] string, int offset, int length) {
+		if (myIsBypassed) {
+			return context.getStringWidthInternal(string, offset, length);
+		}
+		final float[] charWidths = myCharWidths;
+		float width = 0;
+		for (int i = offset; i < offset + length; ++i) {
+			final char ch = string[i];
+			final int index = tableIndex(ch);
+			if (index == -1) {
+				return getComplexStringWidth(context, string, offset, length);
+			}
+			float charWidth = charWidths[index];
+			if (charWidth < 0) {
+				// soft hyphens are not drawn
+				charWidth = ch == (char)0xAD ? 0 : context.getCharWidthInternal(ch);
+				charWidths[index] = charWidth;
+			}
+			width += charWidth;
+		}
+		return (int)(width + 0.5f);
+	}
+
+	private int getComplexStringWidth(ZLPaintContext context, char[] string, int offset, int length) {
+		final String key = new String(string, offset, length);
+		Integer width = myStringWidths.get(key);
+		if (width == null) {
+			width = context.getStringWidthInternal(string, offset, length);
+			myStringWidths.put(key, width);
+		}
+		return width;
+	}
+}
@@ -75,6 +75,7 @@ abstract public class ZLPaintContext {
 		if (myResetFont) {
 			myResetFont = false;
 			setFontInternal(myFontFamily, size, bold, italic, underline, strikeThrough);
+			myWidthCache = ZLFontWidthCache.get(this, myFontFamily, size, bold, italic, getTextRenderingFlags());
 			mySpaceWidth = -1;
 			myStringHeight = -1;
 			myDescent = -1;
@@ -98,7 +99,42 @@ abstract public class ZLPaintContext {
 	public final int getStringWidth(String string) {
 		return getStringWidth(string.toCharArray(), 0, string.length());
 	}
-	abstract public int getStringWidth(char[] string, int offset, int length);
+
+	public static final int TEXT_KERNING = 1;
+	public static final int TEXT_SUBPIXEL = 2;
+	public static final int TEXT_ANTIALIAS = 4;
+
+	// rendering flags changing text widths, TEXT_* constants
+	public int getTextRenderingFlags() {
+		return 0;
+	}
+
+	// is called when the rendering options are changed
+	protected static void clearFontWidthCaches() {
+		ZLFontWidthCache.clearAll();
+	}
+
+	private ZLFontWidthCache myWidthCache;
+
+	public final int getStringWidth(char[] string, int offset, int length) {
+		final ZLFontWidthCache cache = myWidthCache;
+		return cache != null
+			? cache.getStringWidth(this, string, offset, length)
+			: getStringWidthInternal(string, offset, length);
+	}
+
+	// widths measured with the same font id are equal; the id changes with the font
+	public final Object getFontId() {
+		return myWidthCache;
+	}
+
+	abstract protected int getStringWidthInternal(char[] string, int offset, int length);
+
+	private final char[] myCharBuffer = new char[1];
+	protected float getCharWidthInternal(char ch) {
+		myCharBuffer[0] = ch;
+		return getStringWidthInternal(myCharBuffer, 0, 1);
+	}
 
 	private int mySpaceWidth = -1;
 	public final int getSpaceWidth() {
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.hyphenation;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.geometerplus.zlibrary.core.filesystem.ZLFile;
+import org.geometerplus.zlibrary.core.library.ZLibrary;
+
+// Compiled hyphenation patterns are stored in <directory>/<language>.trie;
+// a file is valid while the pattern resource has the same size & application version.
+// The directory is set by the application; nothing is stored until it is set.
+public abstract class ZLTextHyphenationCache {
+	private static final int VERSION = 1;
+
+	private static volatile String ourDirectory;
+
+	public static void setDirectory(String directory) {
+		ourDirectory = directory;
+	}
+
+	private static File trieFile(String directory, String language) {
+		return new File(directory, language + ".trie");
+	}
+
+	private static String fingerprint(ZLFile patterns) {
+		return patterns.getPath() + '\000' + patterns.size() + '\000' + ZLibrary.Instance().getVersionName();
+	}
+
+	// returns null if there is no valid file, the patterns are parsed then
+	static ZLTextHyphenationTrie load(String language, ZLFile patterns) {
+		final String directory = ourDirectory;
+		if (directory == null) {
+			return null;
+		}
+		final File file = trieFile(directory, language);
+		if (!file.exists()) {
+			return null;
+		}
+
+		FileInputStream stream = null;
+		try {
+			stream = new FileInputStream(file);
+			final FileChannel channel = stream.getChannel();
+			final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != VERSION) {
+				return null;
+			}
+			final int fingerprintLength = buffer.getInt();
+			if (fingerprintLength < 0 || fingerprintLength > buffer.remaining() / 2) {
+				return null;
+			}
+			final char[] fingerprint = new char[fingerprintLength];
+			for (int i = 0; i < fingerprint.length; ++i) {
+				fingerprint[i] = buffer.getChar();
+			}
+			if (!fingerprint(patterns).equals(new String(fingerprint))) {
+				return null;
+			}
+			return ZLTextHyphenationTrie.read(buffer);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			// a broken file must not prevent hyphenation
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	static void store(String language, ZLFile patterns, ZLTextHyphenationTrie trie) {
+		final String directory = ourDirectory;
+		if (directory == null) {
+			return;
+		}
+		final File file = trieFile(directory, language);
+		file.getParentFile().mkdirs();
+		final File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			stream.writeInt(VERSION);
+			final String fingerprint = fingerprint(patterns);
+			stream.writeInt(fingerprint.length());
+			stream.writeChars(fingerprint);
+			trie.write(stream);
+			stream.close();
+			stream = null;
+			tempFile.renameTo(file);
+		} catch (IOException e) {
+			// the compiled file is optional; patterns are parsed again next time
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException ioe) {
+				}
+			}
+			tempFile.delete();
+		}
+	}
+}
@@ -30,6 +30,8 @@ final class ZLTextHyphenationReader extends ZLXMLReaderAdapter {
 	private boolean myReadPattern;
 	private char[] myBuffer = new char[10];
 	private int myBufferLength;
+	private char[] mySymbols = new char[10];
+	private byte[] myValues = new byte[11];
 
 	ZLTextHyphenationReader(ZLTextTeXHyphenator hyphenator) {
 		myHyphenator = hyphenator;
@@ -49,13 +51,35 @@ final class ZLTextHyphenationReader extends ZLXMLReaderAdapter {
 			myReadPattern = false;
 			final int len = myBufferLength;
 			if (len != 0) {
-				myHyphenator.addPattern(new ZLTextTeXHyphenationPattern(myBuffer, 0, len, true));
+				addPattern(myBuffer, len);
 			}
 			myBufferLength = 0;
 		}
 		return false;
 	}
 
+	// splits pattern like "a1b2c" into symbols "abc" & values {0, 1, 2, 0}
+	private void addPattern(char[] pattern, int length) {
+		if (mySymbols.length < length) {
+			mySymbols = new char[length];
+			myValues = new byte[length + 1];
+		}
+		final char[] symbols = mySymbols;
+		final byte[] values = myValues;
+		int k = 0;
+		values[0] = 0;
+		for (int i = 0; i < length; ++i) {
+			final char sym = pattern[i];
+			if ((sym <= '9') && (sym >= '0')) {
+				values[k] = (byte)(sym - '0');
+			} else {
+				symbols[k] = sym;
+				values[++k] = 0;
+			}
+		}
+		myHyphenator.addPattern(symbols, k, values);
+	}
+
 	@Override
 	public void characterDataHandler(char[] ch, int start, int length) {
 		if (myReadPattern) {
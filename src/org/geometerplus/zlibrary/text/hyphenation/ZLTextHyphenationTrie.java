@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.hyphenation;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// TeX hyphenation patterns compiled into a trie stored in flat arrays:
+// edges of node n are myEdgeChars/myEdgeTargets[myFirstEdges[n] .. myFirstEdges[n + 1]),
+// sorted by char; a node ending a pattern of length L has L + 1 values
+// in myValues starting at myValueOffsets[n] (-1 for other nodes); 0 is the root
+final class ZLTextHyphenationTrie {
+	static final class Builder {
+		// while building, children are kept in linked lists
+		private int myNodesNumber = 1;
+		private int[] myFirstChild = new int[1024];
+		private int[] myNextSibling = new int[1024];
+		private char[] myChars = new char[1024];
+		private int[] myValueOffsets = new int[1024];
+		private byte[] myValues = new byte[4096];
+		private int myValuesLength;
+
+		Builder() {
+			myFirstChild[0] = -1;
+			myNextSibling[0] = -1;
+			myValueOffsets[0] = -1;
+		}
+
+		private int addNode(int parent, char ch) {
+			final int node = myNodesNumber++;
+			if (node == myFirstChild.length) {
+				final int newLength = node * 2;
+				myFirstChild = ZLArrayUtils.createCopy(myFirstChild, node, newLength);
+				myNextSibling = ZLArrayUtils.createCopy(myNextSibling, node, newLength);
+				myChars = ZLArrayUtils.createCopy(myChars, node, newLength);
+				myValueOffsets = ZLArrayUtils.createCopy(myValueOffsets, node, newLength);
+			}
+			myFirstChild[node] = -1;
+			myNextSibling[node] = myFirstChild[parent];
+			myChars[node] = ch;
+			myValueOffsets[node] = -1;
+			myFirstChild[parent] = node;
+			return node;
+		}
+
+		void add(char[] symbols, int length, byte[] values) {
+			int node = 0;
+			for (int i = 0; i < length; ++i) {
+				final char ch = symbols[i];
+				int child = myFirstChild[node];
+				while (child != -1 && myChars[child] != ch) {
+					child = myNextSibling[child];
+				}
+				node = child != -1 ? child : addNode(node, ch);
+			}
+			if (myValuesLength + length + 1 > myValues.length) {
+				myValues = ZLArrayUtils.createCopy(
+					myValues, myValuesLength, Math.max(myValues.length * 2, myValuesLength + length + 1)
+				);
+			}
+			myValueOffsets[node] = myValuesLength;
+			System.arraycopy(values, 0, myValues, myValuesLength, length + 1);
+			myValuesLength += length + 1;
+		}
+
+		ZLTextHyphenationTrie build() {
+			final int nodesNumber = myNodesNumber;
+			final int[] firstEdges = new int[nodesNumber + 1];
+			final char[] edgeChars = new char[nodesNumber - 1];
+			final int[] edgeTargets = new int[nodesNumber - 1];
+			final int[] valueOffsets = new int[nodesNumber];
+
+			// nodes are renumbered in breadth-first order
+			final int[] queue = new int[nodesNumber];
+			int queueLength = 1;
+			int edgesNumber = 0;
+			char[] chars = new char[16];
+			int[] children = new int[16];
+			for (int index = 0; index < queueLength; ++index) {
+				final int node = queue[index];
+				valueOffsets[index] = myValueOffsets[node];
+				firstEdges[index] = edgesNumber;
+				int count = 0;
+				for (int child = myFirstChild[node]; child != -1; child = myNextSibling[child]) {
+					if (count == chars.length) {
+						chars = ZLArrayUtils.createCopy(chars, count, count * 2);
+						children = ZLArrayUtils.createCopy(children, count, count * 2);
+					}
+					// insertion sort by char
+					int i = count++;
+					final char ch = myChars[child];
+					for (; i > 0 && chars[i - 1] > ch; --i) {
+						chars[i] = chars[i - 1];
+						children[i] = children[i - 1];
+					}
+					chars[i] = ch;
+					children[i] = child;
+				}
+				for (int i = 0; i < count; ++i) {
+					edgeChars[edgesNumber] = chars[i];
+					edgeTargets[edgesNumber] = queueLength;
+					++edgesNumber;
+					queue[queueLength++] = children[i];
+				}
+			}
+			firstEdges[nodesNumber] = edgesNumber;
+
+			return new ZLTextHyphenationTrie(
+				firstEdges, edgeChars, edgeTargets, valueOffsets,
+				ZLArrayUtils.createCopy(myValues, myValuesLength, myValuesLength)
+			);
+		}
+	}
+
+	private final int[] myFirstEdges;
+	private final char[] myEdgeChars;
+	private final int[] myEdgeTargets;
+	private final int[] myValueOffsets;
+	private final byte[] myValues;
+
+	ZLTextHyphenationTrie(int[] firstEdges, char[] edgeChars, int[] edgeTargets, int[] valueOffsets, byte[] values) {
+		myFirstEdges = firstEdges;
+		myEdgeChars = edgeChars;
+		myEdgeTargets = edgeTargets;
+		myValueOffsets = valueOffsets;
+		myValues = values;
+	}
+
+	// format: numbers of nodes, edges & values followed by the arrays in
+	// big-endian order, so that read() copies each array with a single bulk get
+	void write(DataOutputStream stream) throws IOException {
+		final int nodesNumber = myValueOffsets.length;
+		stream.writeInt(nodesNumber);
+		stream.writeInt(myEdgeChars.length);
+		stream.writeInt(myValues.length);
+		for (int i = 0; i <= nodesNumber; ++i) {
+			stream.writeInt(myFirstEdges[i]);
+		}
+		for (int i = 0; i < nodesNumber; ++i) {
+			stream.writeInt(myValueOffsets[i]);
+		}
+		for (int target : myEdgeTargets) {
+			stream.writeInt(target);
+		}
+		for (char ch : myEdgeChars) {
+			stream.writeChar(ch);
+		}
+		stream.write(myValues);
+	}
+
+	// returns null if the data are not a valid trie; sizes are checked
+	// against the buffer length before allocating the arrays
+	static ZLTextHyphenationTrie read(ByteBuffer buffer) {
+		if (buffer.remaining() < 12) {
+			return null;
+		}
+		final int nodesNumber = buffer.getInt();
+		final int edgesNumber = buffer.getInt();
+		final int valuesLength = buffer.getInt();
+		if (nodesNumber <= 0 || edgesNumber != nodesNumber - 1 || valuesLength < 0) {
+			return null;
+		}
+		final long dataLength =
+			4L * (2L * nodesNumber + 1 + edgesNumber) + 2L * edgesNumber + valuesLength;
+		if (dataLength != buffer.remaining()) {
+			return null;
+		}
+
+		final int[] firstEdges = new int[nodesNumber + 1];
+		final int[] valueOffsets = new int[nodesNumber];
+		final int[] edgeTargets = new int[edgesNumber];
+		final char[] edgeChars = new char[edgesNumber];
+		final byte[] values = new byte[valuesLength];
+
+		int position = buffer.position();
+		buffer.asIntBuffer().get(firstEdges).get(valueOffsets).get(edgeTargets);
+		position += 4 * (firstEdges.length + valueOffsets.length + edgeTargets.length);
+		buffer.position(position);
+		buffer.asCharBuffer().get(edgeChars);
+		position += 2 * edgeChars.length;
+		buffer.position(position);
+		buffer.get(values);
+
+		if (!isValid(firstEdges, edgeChars, edgeTargets, valueOffsets, values.length)) {
+			return null;
+		}
+		return new ZLTextHyphenationTrie(firstEdges, edgeChars, edgeTargets, valueOffsets, values);
+	}
+
+	// checks everything apply() relies on: edges of each node are sorted by char,
+	// nodes form a tree numbered in breadth-first order (every edge goes to
+	// a greater node number), and values of a node of depth L fit into the values array
+	private static boolean isValid(int[] firstEdges, char[] edgeChars, int[] edgeTargets, int[] valueOffsets, int valuesLength) {
+		final int nodesNumber = valueOffsets.length;
+		if (firstEdges[0] != 0 || firstEdges[nodesNumber] != edgeChars.length) {
+			return false;
+		}
+		final int[] depths = new int[nodesNumber];
+		for (int node = 0; node < nodesNumber; ++node) {
+			final int first = firstEdges[node];
+			final int last = firstEdges[node + 1];
+			if (first > last || last > edgeChars.length) {
+				return false;
+			}
+			for (int e = first; e < last; ++e) {
+				if (e > first && edgeChars[e - 1] >= edgeChars[e]) {
+					return false;
+				}
+				final int target = edgeTargets[e];
+				// every node but the root has exactly one parent
+				if (target <= node || target >= nodesNumber || depths[target] != 0) {
+					return false;
+				}
+				depths[target] = depths[node] + 1;
+			}
+			final int valueOffset = valueOffsets[node];
+			if (valueOffset != -1 &&
+				(valueOffset < 0 || (long)valueOffset + depths[node] + 1 > valuesLength)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private int child(int node, char ch) {
+		final char[] edgeChars = myEdgeChars;
+		int low = myFirstEdges[node];
+		int high = myFirstEdges[node + 1] - 1;
+		while (low <= high) {
+			final int middle = (low + high) >>> 1;
+			final char middleChar = edgeChars[middle];
+			if (middleChar < ch) {
+				low = middle + 1;
+			} else if (middleChar > ch) {
+				high = middle - 1;
+			} else {
+				return myEdgeTargets[middle];
+			}
+		}
+		return -1;
+	}
+
+	// values must contain at least length + 1 elements, all the matching
+	// patterns raise values[offset .. offset + pattern length] to pattern values
+	void apply(char[] string, int length, byte[] values) {
+		final int[] valueOffsets = myValueOffsets;
+		final byte[] patternValues = myValues;
+		for (int offset = 0; offset < length - 1; ++offset) {
+			int node = 0;
+			for (int i = offset; i < length; ++i) {
+				node = child(node, string[i]);
+				if (node == -1) {
+					break;
+				}
+				final int valueOffset = valueOffsets[node];
+				if (valueOffset != -1) {
+					for (int j = offset, k = valueOffset; j <= i + 1; ++j, ++k) {
+						if (values[j] < patternValues[k]) {
+							values[j] = patternValues[k];
+						}
+					}
+				}
+			}
+		}
+	}
+}
@@ -25,14 +25,76 @@ import org.geometerplus.zlibrary.core.language.Language;
 import org.geometerplus.zlibrary.core.language.ZLLanguageUtil;
 import org.geometerplus.zlibrary.core.filesystem.ZLFile;
 import org.geometerplus.zlibrary.core.filesystem.ZLResourceFile;
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
 
 final class ZLTextTeXHyphenator extends ZLTextHyphenator {
-	private final HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern> myPatternTable =
-		new HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern>();
+	private static final int MAX_CACHED_WORDS = 2048;
+
+	private ZLTextHyphenationTrie.Builder myTrieBuilder;
+	private ZLTextHyphenationTrie myTrie;
 	private String myLanguage;
 
-	void addPattern(ZLTextTeXHyphenationPattern pattern) {
-		myPatternTable.put(pattern, pattern);
+	// a word of the cache; the probe key refers to the chars of the word
+	// being hyphenated (and is cleared after the lookup), stored keys own a copy
+	private static final class WordKey {
+		private char[] myData;
+		private int myLength;
+		private int myHashCode;
+
+		void set(char[] data, int length) {
+			myData = data;
+			myLength = length;
+			int hash = 0;
+			for (int i = 0; i < length; ++i) {
+				hash = hash * 31 + data[i];
+			}
+			myHashCode = hash;
+		}
+
+		WordKey copy() {
+			final WordKey key = new WordKey();
+			key.myData = ZLArrayUtils.createCopy(myData, myLength, myLength);
+			key.myLength = myLength;
+			key.myHashCode = myHashCode;
+			return key;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			final WordKey k = (WordKey)o;
+			if (myHashCode != k.myHashCode || myLength != k.myLength) {
+				return false;
+			}
+			for (int i = 0; i < myLength; ++i) {
+				if (myData[i] != k.myData[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return myHashCode;
+		}
+	}
+
+	// hyphenation results for recently used words of the current language
+	private final LinkedHashMap<WordKey,boolean[]> myMaskCache =
+		new LinkedHashMap<WordKey,boolean[]>(MAX_CACHED_WORDS, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<WordKey,boolean[]> eldest) {
+				return size() > MAX_CACHED_WORDS;
+			}
+		};
+	private final WordKey myProbeKey = new WordKey();
+	private byte[] myValues = new byte[64];
+
+	void addPattern(char[] symbols, int length, byte[] values) {
+		if (myTrieBuilder == null) {
+			myTrieBuilder = new ZLTextHyphenationTrie.Builder();
+		}
+		myTrieBuilder.add(symbols, length, values);
 	}
 
 	private List<String> myLanguageCodes;
@@ -54,7 +116,7 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
 		return Collections.unmodifiableList(myLanguageCodes);
 	}
 
-	public void load(String language) {
+	public synchronized void load(String language) {
 		if (language == null || Language.OTHER_CODE.equals(language)) {
 			language = ZLLanguageUtil.defaultLanguageCode();
 		}
@@ -65,45 +127,58 @@ final class ZLTextTeXHyphenator extends ZLTextHyphenator {
 		unload();
 
 		if (language != null) {
-			new ZLTextHyphenationReader(this).readQuietly(ZLResourceFile.createResourceFile(
+			final ZLFile patterns = ZLResourceFile.createResourceFile(
 				"hyphenationPatterns/" + language + ".pattern"
-			));
+			);
+			// XML patterns are parsed only once; the compiled trie is stored in cache
+			myTrie = ZLTextHyphenationCache.load(language, patterns);
+			if (myTrie == null) {
+				new ZLTextHyphenationReader(this).readQuietly(patterns);
+				if (myTrieBuilder != null) {
+					myTrie = myTrieBuilder.build();
+					myTrieBuilder = null;
+					ZLTextHyphenationCache.store(language, patterns, myTrie);
+				}
+			}
 		}
 	}
 
-	public void unload() {
-		myPatternTable.clear();
+	public synchronized void unload() {
+		myTrieBuilder = null;
+		myTrie = null;
+		myMaskCache.clear();
 	}
 
-	public void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
-		if (myPatternTable.isEmpty()) {
+	// called for every word while laying out the text, so a cached word
+	// is found without temporary objects; the key is copied on a miss only
+	public synchronized void hyphenate(char[] stringToHyphenate, boolean[] mask, int length) {
+		if (myTrie == null) {
 			for (int i = 0; i < length - 1; i++) {
 				mask[i] = false;
 			}
 			return;
 		}
 
-		byte[] values = new byte[length + 1];
-
-		final HashMap<ZLTextTeXHyphenationPattern,ZLTextTeXHyphenationPattern> table = myPatternTable;
-		ZLTextTeXHyphenationPattern pattern =
-			new ZLTextTeXHyphenationPattern(stringToHyphenate, 0, length, false);
-		for (int offset = 0; offset < length - 1; offset++) {
-			int len = length - offset + 1;
-			pattern.update(stringToHyphenate, offset, len - 1);
-			while (--len > 0) {
-				pattern.myLength = len;
-				pattern.myHashCode = 0;
-				ZLTextTeXHyphenationPattern toApply =
-					(ZLTextTeXHyphenationPattern)table.get(pattern);
-				if (toApply != null) {
-					toApply.apply(values, offset);
-				}
-			}
+		final WordKey probe = myProbeKey;
+		probe.set(stringToHyphenate, length);
+		final boolean[] cached = myMaskCache.get(probe);
+		if (cached != null) {
+			probe.set(null, 0);
+			System.arraycopy(cached, 0, mask, 0, length - 1);
+			return;
+		}
+
+		if (myValues.length < length + 1) {
+			myValues = new byte[Math.max(length + 1, myValues.length * 2)];
 		}
+		final byte[] values = myValues;
+		Arrays.fill(values, 0, length + 1, (byte)0);
+		myTrie.apply(stringToHyphenate, length, values);
 
 		for (int i = 0; i < length - 1; i++) {
 			mask[i] = (values[i + 1] % 2) == 1;
 		}
+		myMaskCache.put(probe.copy(), ZLArrayUtils.createCopy(mask, length - 1, length - 1));
+		probe.set(null, 0);
 	}
 }
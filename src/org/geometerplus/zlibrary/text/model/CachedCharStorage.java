@@ -31,7 +31,7 @@ public final class CachedCharStorage extends CachedCharStorageBase {
 		new File(directoryName).mkdirs();
 	}
 
-	public char[] createNewBlock(int minimumLength) {
+	public synchronized char[] createNewBlock(int minimumLength) {
 		int blockSize = myBlockSize;
 		if (minimumLength > blockSize) {
 			blockSize = minimumLength;
@@ -41,24 +41,37 @@ public final class CachedCharStorage extends CachedCharStorageBase {
 		return block;
 	}
 
-	public void freezeLastBlock() {
+	public synchronized void freezeLastBlock() {
 		int index = myArray.size() - 1;
 		if (index >= 0) {
 			char[] block = myArray.get(index).get();
 			if (block == null) {
 				throw new CachedCharStorageException("Block reference in null during freeze");
 			}
-			try {
-				final OutputStreamWriter writer =
-					new OutputStreamWriter(
-						new FileOutputStream(fileName(index)),
-						"UTF-16LE"
-					);
-				writer.write(block);
-				writer.close();
-			} catch (IOException e) {
-				throw new CachedCharStorageException("Error during writing " + fileName(index));
-			}
+			writeBlock(fileName(index), block);
+		}
+	}
+
+	private static void writeBlock(String fileName, char[] block) {
+		try {
+			final OutputStreamWriter writer =
+				new OutputStreamWriter(
+					new FileOutputStream(fileName),
+					"UTF-16LE"
+				);
+			writer.write(block);
+			writer.close();
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during writing " + fileName);
+		}
+	}
+
+	// writes all the blocks in the format expected by CachedCharStorageRO
+	public static void copy(CharStorage storage, String directoryName, String fileExtension) {
+		new File(directoryName).mkdirs();
+		final int size = storage.size();
+		for (int i = 0; i < size; ++i) {
+			writeBlock(directoryName + '/' + i + '.' + fileExtension, storage.block(i));
 		}
 	}
 }
@@ -23,6 +23,8 @@ import java.lang.ref.WeakReference;
 import java.io.*;
 import java.util.ArrayList;
 
+// A file per block; the block table is guarded by the storage monitor,
+// files are read outside of it, so threads reading different blocks do not wait
 abstract class CachedCharStorageBase implements CharStorage {
 	protected final ArrayList<WeakReference<char[]>> myArray =
 		new ArrayList<WeakReference<char[]>>();
@@ -39,13 +41,30 @@ abstract class CachedCharStorageBase implements CharStorage {
 		return myDirectoryName + index + myFileExtension;
 	}
 
-	public int size() {
+	public synchronized int size() {
 		return myArray.size();
 	}
 
+	public void close() {
+		CharStorageCache.Instance().remove(this);
+	}
+
+	private int myLastUsedIndex = -1;
+
 	public char[] block(int index) {
-		char[] block = myArray.get(index).get();
-		if (block == null) {
+		char[] block;
+		synchronized (this) {
+			block = myArray.get(index).get();
+			if (block != null) {
+				if (index == myLastUsedIndex) {
+					return block;
+				}
+				myLastUsedIndex = index;
+			}
+		}
+		if (block != null) {
+			CharStorageCache.Instance().touch(this, index, block);
+		} else {
 			try {
 				File file = new File(fileName(index));
 				int size = (int)file.length();
@@ -65,7 +84,16 @@ abstract class CachedCharStorageBase implements CharStorage {
 			} catch (IOException e) {
 				throw new CachedCharStorageException("Error during reading " + fileName(index));
 			}
-			myArray.set(index, new WeakReference<char[]>(block));
+			synchronized (this) {
+				// the block can be read by another thread at the same time
+				final char[] stored = myArray.get(index).get();
+				if (stored != null) {
+					return stored;
+				}
+				myArray.set(index, new WeakReference<char[]>(block));
+				myLastUsedIndex = index;
+			}
+			CharStorageCache.Instance().add(this, index, block);
 		}
 		return block;
 	}
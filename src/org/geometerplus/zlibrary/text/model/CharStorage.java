@@ -24,4 +24,6 @@ public interface CharStorage {
 	char[] block(int index);
 	char[] createNewBlock(int minimumLength);
 	void freezeLastBlock();
+	// releases the file resources; no block can be read after that
+	void close();
 }
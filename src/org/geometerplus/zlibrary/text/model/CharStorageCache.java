@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.util.*;
+
+// LRU cache of char storage blocks shared by all the models;
+// blocks of pinned ranges are never evicted
+public final class CharStorageCache {
+	public static final int DEFAULT_LIMIT = 1 << 20;
+
+	private static final CharStorageCache ourInstance = new CharStorageCache();
+
+	public static CharStorageCache Instance() {
+		return ourInstance;
+	}
+
+	private static final class Key {
+		final CharStorage Storage;
+		final int Index;
+
+		Key(CharStorage storage, int index) {
+			Storage = storage;
+			Index = index;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			final Key k = (Key)o;
+			return Storage == k.Storage && Index == k.Index;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(Storage) + Index;
+		}
+	}
+
+	private static final class Range {
+		final CharStorage Storage;
+		final int From;
+		final int To;
+
+		Range(CharStorage storage, int from, int to) {
+			Storage = storage;
+			From = from;
+			To = to;
+		}
+
+		boolean contains(Key key) {
+			return Storage == key.Storage && From <= key.Index && key.Index <= To;
+		}
+	}
+
+	private final LinkedHashMap<Key,char[]> myBlocks = new LinkedHashMap<Key,char[]>(32, 0.75f, true);
+	private final HashMap<Object,Range> myPinnedRanges = new HashMap<Object,Range>();
+	private int myLimit = DEFAULT_LIMIT;
+	private int mySize;
+
+	private int myHitCount;
+	private int myMissCount;
+	private int myEvictionCount;
+
+	private CharStorageCache() {
+	}
+
+	// limit is measured in chars
+	public synchronized void setLimit(int limit) {
+		myLimit = limit;
+		evict();
+	}
+
+	public synchronized int getLimit() {
+		return myLimit;
+	}
+
+	// called for a block that has been just read from the disk
+	synchronized void add(CharStorage storage, int index, char[] block) {
+		++myMissCount;
+		put(new Key(storage, index), block);
+	}
+
+	// called for a block that is already in memory
+	synchronized void touch(CharStorage storage, int index, char[] block) {
+		++myHitCount;
+		put(new Key(storage, index), block);
+	}
+
+	private void put(Key key, char[] block) {
+		final char[] old = myBlocks.put(key, block);
+		if (old != null) {
+			mySize -= old.length;
+		}
+		mySize += block.length;
+		evict();
+	}
+
+	// replaces the range previously pinned by the owner
+	public synchronized void pin(Object owner, CharStorage storage, int fromIndex, int toIndex) {
+		myPinnedRanges.put(owner, new Range(storage, fromIndex, toIndex));
+		evict();
+	}
+
+	public synchronized void unpin(Object owner) {
+		if (myPinnedRanges.remove(owner) != null) {
+			evict();
+		}
+	}
+
+	private boolean isPinned(Key key) {
+		for (Range range : myPinnedRanges.values()) {
+			if (range.contains(key)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void evict() {
+		if (mySize <= myLimit) {
+			return;
+		}
+		for (Iterator<Map.Entry<Key,char[]>> it = myBlocks.entrySet().iterator(); it.hasNext(); ) {
+			final Map.Entry<Key,char[]> entry = it.next();
+			if (!isPinned(entry.getKey())) {
+				mySize -= entry.getValue().length;
+				it.remove();
+				++myEvictionCount;
+				if (mySize <= myLimit) {
+					break;
+				}
+			}
+		}
+	}
+
+	// drops the blocks of a released storage
+	synchronized void remove(CharStorage storage) {
+		for (Iterator<Map.Entry<Key,char[]>> it = myBlocks.entrySet().iterator(); it.hasNext(); ) {
+			final Map.Entry<Key,char[]> entry = it.next();
+			if (entry.getKey().Storage == storage) {
+				mySize -= entry.getValue().length;
+				it.remove();
+			}
+		}
+		for (Iterator<Range> it = myPinnedRanges.values().iterator(); it.hasNext(); ) {
+			if (it.next().Storage == storage) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		myBlocks.clear();
+		mySize = 0;
+	}
+
+	public synchronized int getSize() {
+		return mySize;
+	}
+
+	public synchronized int getHitCount() {
+		return myHitCount;
+	}
+
+	public synchronized int getMissCount() {
+		return myMissCount;
+	}
+
+	public synchronized int getEvictionCount() {
+		return myEvictionCount;
+	}
+
+	public synchronized void resetCounters() {
+		myHitCount = 0;
+		myMissCount = 0;
+		myEvictionCount = 0;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.lang.ref.WeakReference;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+
+public final class MappedCharStorage extends MappedCharStorageBase {
+	private final int myBlockSize;
+	private final FileChannel myChannel;
+	private int myFileLength;
+	private CharBuffer myBuffer;
+
+	// every storage gets a new file with a unique name, that is unlinked right after
+	// opening: no other storage can truncate a file while it is mapped (that would crash
+	// the readers), and the data is removed by the system when the storage is released
+	public MappedCharStorage(int blockSize, String directoryName, String prefix) {
+		this(blockSize, createTempFile(directoryName, prefix));
+		new File(myFileName).delete();
+	}
+
+	private MappedCharStorage(int blockSize, File file) {
+		super(file.getPath());
+		myBlockSize = blockSize;
+		try {
+			myChannel = new RandomAccessFile(file, "rw").getChannel();
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during opening " + myFileName);
+		}
+	}
+
+	private static File createTempFile(String directoryName, String prefix) {
+		try {
+			final File directory = new File(directoryName);
+			directory.mkdirs();
+			return File.createTempFile(prefix, ".blocks", directory);
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during creating a file in " + directoryName);
+		}
+	}
+
+	@Override
+	protected synchronized CharBuffer buffer() throws IOException {
+		// the file grows on each freeze; map it again only if the old mapping is too short
+		if (myBuffer == null || myBuffer.limit() < myFileLength) {
+			myBuffer = map(myChannel);
+		}
+		return myBuffer;
+	}
+
+	public synchronized char[] createNewBlock(int minimumLength) {
+		int blockSize = myBlockSize;
+		if (minimumLength > blockSize) {
+			blockSize = minimumLength;
+		}
+		char[] block = new char[blockSize];
+		myArray.add(new WeakReference<char[]>(block));
+		return block;
+	}
+
+	public synchronized void freezeLastBlock() {
+		final int index = myArray.size() - 1;
+		if (index >= myFrozenBlocksNumber) {
+			final char[] block = myArray.get(index).get();
+			if (block == null) {
+				throw new CachedCharStorageException("Block reference in null during freeze");
+			}
+			append(block);
+		}
+	}
+
+	private synchronized void append(char[] block) {
+		try {
+			writeBlock(myChannel, myFileLength, block);
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during writing " + myFileName);
+		}
+		addFrozenBlock(myFileLength + 2, block.length);
+		myFileLength += block.length + 2;
+	}
+
+	// writes all the blocks into a single file readable by MappedCharStorageRO;
+	// the data is written to a new file renamed then, so an existing file
+	// (that can be mapped by a model) is replaced but never truncated
+	public static void copy(CharStorage storage, String fileName) {
+		final File file = new File(fileName);
+		final File tempFile = new File(fileName + ".tmp");
+		tempFile.delete();
+		final MappedCharStorage copy = new MappedCharStorage(0, tempFile);
+		try {
+			final int size = storage.size();
+			for (int i = 0; i < size; ++i) {
+				copy.append(storage.block(i));
+			}
+		} finally {
+			copy.close();
+		}
+		if (!tempFile.renameTo(file)) {
+			tempFile.delete();
+			throw new CachedCharStorageException("Error during writing " + fileName);
+		}
+	}
+
+	@Override
+	public void close() {
+		super.close();
+		try {
+			myChannel.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.lang.ref.WeakReference;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// All the blocks are stored in a single file as a sequence of
+// (block length: 2 chars, block data) records in UTF-16LE;
+// the file is memory-mapped, so reading a block is a plain memory copy.
+// Blocks are read by several threads (view, paginator, prefetch, search),
+// so the block table and the mapping are guarded by the storage monitor.
+abstract class MappedCharStorageBase implements CharStorage {
+	protected final ArrayList<WeakReference<char[]>> myArray =
+		new ArrayList<WeakReference<char[]>>();
+
+	protected final String myFileName;
+
+	private int[] myOffsets = new int[16];
+	private int[] myLengths = new int[16];
+	protected int myFrozenBlocksNumber;
+
+	MappedCharStorageBase(String fileName) {
+		myFileName = fileName;
+	}
+
+	public synchronized int size() {
+		return myArray.size();
+	}
+
+	public void close() {
+		CharStorageCache.Instance().remove(this);
+	}
+
+	protected final synchronized void addFrozenBlock(int offset, int length) {
+		final int index = myFrozenBlocksNumber++;
+		if (index == myOffsets.length) {
+			myOffsets = ZLArrayUtils.createCopy(myOffsets, index, index << 1);
+			myLengths = ZLArrayUtils.createCopy(myLengths, index, index << 1);
+		}
+		myOffsets[index] = offset;
+		myLengths[index] = length;
+	}
+
+	protected static CharBuffer map(FileChannel channel) throws IOException {
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+			.order(ByteOrder.LITTLE_ENDIAN).asCharBuffer();
+	}
+
+	protected abstract CharBuffer buffer() throws IOException;
+
+	// writes (block length, block data) record at the given char position
+	protected static void writeBlock(FileChannel channel, long position, char[] block) throws IOException {
+		final ByteBuffer bytes =
+			ByteBuffer.allocate(2 * (block.length + 2)).order(ByteOrder.LITTLE_ENDIAN);
+		final CharBuffer chars = bytes.asCharBuffer();
+		chars.put((char)block.length);
+		chars.put((char)(block.length >> 16));
+		chars.put(block);
+		position *= 2;
+		while (bytes.hasRemaining()) {
+			position += channel.write(bytes, position);
+		}
+	}
+
+	// scans block headers of an existing file
+	protected final synchronized void readBlockTable() throws IOException {
+		final CharBuffer buffer = buffer();
+		final int limit = buffer.limit();
+		for (int offset = 0; offset + 2 <= limit; ) {
+			final int length = (int)buffer.get(offset) + (((int)buffer.get(offset + 1)) << 16);
+			offset += 2;
+			if (length < 0 || offset + length > limit) {
+				throw new CachedCharStorageException("Invalid block in " + myFileName);
+			}
+			addFrozenBlock(offset, length);
+			offset += length;
+		}
+	}
+
+	// returns a read-only view of the frozen block, no data is copied
+	public synchronized CharBuffer blockBuffer(int index) {
+		if (index >= myFrozenBlocksNumber) {
+			throw new CachedCharStorageException("Block " + index + " is not stored in " + myFileName);
+		}
+		try {
+			final CharBuffer view = buffer().duplicate();
+			view.position(myOffsets[index]);
+			view.limit(myOffsets[index] + myLengths[index]);
+			return view.slice();
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during reading " + myFileName);
+		}
+	}
+
+	private int myLastUsedIndex = -1;
+
+	// the shared cache is called outside of the storage monitor
+	public char[] block(int index) {
+		char[] block;
+		boolean isNew = false;
+		synchronized (this) {
+			block = myArray.get(index).get();
+			if (block != null) {
+				if (index == myLastUsedIndex) {
+					return block;
+				}
+			} else {
+				final CharBuffer view = blockBuffer(index);
+				block = new char[view.remaining()];
+				view.get(block);
+				myArray.set(index, new WeakReference<char[]>(block));
+				isNew = true;
+			}
+			myLastUsedIndex = index;
+		}
+		if (isNew) {
+			CharStorageCache.Instance().add(this, index, block);
+		} else {
+			CharStorageCache.Instance().touch(this, index, block);
+		}
+		return block;
+	}
+}
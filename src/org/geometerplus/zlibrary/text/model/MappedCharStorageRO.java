@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.lang.ref.WeakReference;
+import java.io.*;
+import java.nio.CharBuffer;
+import java.util.Collections;
+
+public final class MappedCharStorageRO extends MappedCharStorageBase {
+	private final CharBuffer myBuffer;
+
+	public MappedCharStorageRO(String fileName) {
+		super(fileName);
+		try {
+			final RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			try {
+				myBuffer = map(file.getChannel());
+			} finally {
+				file.close();
+			}
+			readBlockTable();
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during reading " + fileName);
+		}
+		myArray.addAll(Collections.nCopies(myFrozenBlocksNumber, new WeakReference<char[]>(null)));
+	}
+
+	@Override
+	protected CharBuffer buffer() {
+		return myBuffer;
+	}
+
+	public char[] createNewBlock(int minimumLength) {
+		throw new UnsupportedOperationException("MappedCharStorageRO is a read-only storage.");
+	}
+
+	public void freezeLastBlock() {
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.lang.ref.WeakReference;
+import java.io.*;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// Blocks of several storages (segments) in a single file of MappedCharStorage format;
+// each segment has its own block table, blocks of different segments can be interleaved.
+// Is used for footnote models: a book can contain thousands of small notes,
+// and a file per note is too expensive.
+public final class SegmentedCharStorage {
+	private final String myFileName;
+	private final FileChannel myChannel;
+	private CharBuffer myBuffer;
+	private int myFileLength;
+
+	// all the blocks of the file
+	private int[] myOffsets = new int[16];
+	private int[] myLengths = new int[16];
+	private int myBlocksNumber;
+
+	// creates an empty file for writing; an existing file is unlinked, not truncated,
+	// it can be still mapped by a storage opened for reading
+	public static SegmentedCharStorage create(String fileName) {
+		final File file = new File(fileName);
+		file.getParentFile().mkdirs();
+		file.delete();
+		return new SegmentedCharStorage(fileName, openChannel(file), null);
+	}
+
+	// creates a storage in a new file with a unique name, that is unlinked right after
+	// opening (see MappedCharStorage): the data lives while the storage is not closed
+	public static SegmentedCharStorage create(String directoryName, String prefix) {
+		final File file;
+		try {
+			final File directory = new File(directoryName);
+			directory.mkdirs();
+			file = File.createTempFile(prefix, ".blocks", directory);
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during creating a file in " + directoryName);
+		}
+		final FileChannel channel = openChannel(file);
+		file.delete();
+		return new SegmentedCharStorage(file.getPath(), channel, null);
+	}
+
+	private static FileChannel openChannel(File file) {
+		try {
+			return new RandomAccessFile(file, "rw").getChannel();
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during opening " + file.getPath());
+		}
+	}
+
+	// opens an existing file for reading
+	public static SegmentedCharStorage open(String fileName) {
+		try {
+			final RandomAccessFile file = new RandomAccessFile(fileName, "r");
+			final CharBuffer buffer;
+			try {
+				buffer = MappedCharStorageBase.map(file.getChannel());
+			} finally {
+				file.close();
+			}
+			final SegmentedCharStorage storage = new SegmentedCharStorage(fileName, null, buffer);
+			storage.readBlockTable();
+			return storage;
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during reading " + fileName);
+		}
+	}
+
+	private SegmentedCharStorage(String fileName, FileChannel channel, CharBuffer buffer) {
+		myFileName = fileName;
+		myChannel = channel;
+		myBuffer = buffer;
+	}
+
+	private void readBlockTable() {
+		final CharBuffer buffer = myBuffer;
+		final int limit = buffer.limit();
+		for (int offset = 0; offset + 2 <= limit; ) {
+			final int length = (int)buffer.get(offset) + (((int)buffer.get(offset + 1)) << 16);
+			offset += 2;
+			if (length < 0 || offset + length > limit) {
+				throw new CachedCharStorageException("Invalid block in " + myFileName);
+			}
+			addBlock(offset, length);
+			offset += length;
+		}
+		myFileLength = limit;
+	}
+
+	private void addBlock(int offset, int length) {
+		final int index = myBlocksNumber++;
+		if (index == myOffsets.length) {
+			myOffsets = ZLArrayUtils.createCopy(myOffsets, index, index << 1);
+			myLengths = ZLArrayUtils.createCopy(myLengths, index, index << 1);
+		}
+		myOffsets[index] = offset;
+		myLengths[index] = length;
+	}
+
+	private synchronized CharBuffer buffer() throws IOException {
+		// the file grows on each append; map it again only if the old mapping is too short
+		if (myBuffer == null || myBuffer.limit() < myFileLength) {
+			myBuffer = MappedCharStorageBase.map(myChannel);
+		}
+		return myBuffer;
+	}
+
+	// returns index of the block in the file
+	private synchronized int append(char[] block) {
+		if (myChannel == null) {
+			throw new UnsupportedOperationException("SegmentedCharStorage is opened for reading only.");
+		}
+		try {
+			MappedCharStorageBase.writeBlock(myChannel, myFileLength, block);
+		} catch (IOException e) {
+			throw new CachedCharStorageException("Error during writing " + myFileName);
+		}
+		addBlock(myFileLength + 2, block.length);
+		myFileLength += block.length + 2;
+		return myBlocksNumber - 1;
+	}
+
+	// appends all the blocks of the storage; returns index of the first appended block
+	public int appendAll(CharStorage storage) {
+		final int size = storage.size();
+		synchronized (this) {
+			final int first = myBlocksNumber;
+			for (int i = 0; i < size; ++i) {
+				append(storage.block(i));
+			}
+			return first;
+		}
+	}
+
+	// a new writable segment
+	public CharStorage createSegment(int blockSize) {
+		return new Segment(blockSize);
+	}
+
+	// a read-only segment of count blocks starting from the first one
+	public synchronized CharStorage segment(int first, int count) {
+		if (first < 0 || count < 0 || first + count > myBlocksNumber) {
+			throw new CachedCharStorageException("Invalid segment in " + myFileName);
+		}
+		final Segment segment = new Segment(0);
+		for (int i = first; i < first + count; ++i) {
+			segment.addFrozenBlock(myOffsets[i], myLengths[i]);
+		}
+		segment.myArray.addAll(Collections.nCopies(count, new WeakReference<char[]>(null)));
+		return segment;
+	}
+
+	public void close() {
+		if (myChannel != null) {
+			try {
+				myChannel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private final class Segment extends MappedCharStorageBase {
+		private final int myBlockSize;
+
+		Segment(int blockSize) {
+			super(SegmentedCharStorage.this.myFileName);
+			myBlockSize = blockSize;
+		}
+
+		@Override
+		protected CharBuffer buffer() throws IOException {
+			return SegmentedCharStorage.this.buffer();
+		}
+
+		public synchronized char[] createNewBlock(int minimumLength) {
+			if (myChannel == null) {
+				throw new UnsupportedOperationException("SegmentedCharStorage is opened for reading only.");
+			}
+			final char[] block = new char[Math.max(myBlockSize, minimumLength)];
+			myArray.add(new WeakReference<char[]>(block));
+			return block;
+		}
+
+		public synchronized void freezeLastBlock() {
+			final int index = myArray.size() - 1;
+			if (index >= myFrozenBlocksNumber) {
+				final char[] block = myArray.get(index).get();
+				if (block == null) {
+					throw new CachedCharStorageException("Block reference in null during freeze");
+				}
+				final int blockIndex = append(block);
+				synchronized (SegmentedCharStorage.this) {
+					addFrozenBlock(myOffsets[blockIndex], myLengths[blockIndex]);
+				}
+			}
+		}
+	}
+}
@@ -29,15 +29,15 @@ final class SimpleCharStorage implements CharStorage {
 		myBlockSize = blockSize;
 	}
 
-	public int size() {
+	public synchronized int size() {
 		return myArray.size();
 	}
 
-	public char[] block(int index) {
+	public synchronized char[] block(int index) {
 		return myArray.get(index);
 	}
 
-	public char[] createNewBlock(int minimumLength) {
+	public synchronized char[] createNewBlock(int minimumLength) {
 		int blockSize = myBlockSize;
 		if (minimumLength > blockSize) {
 			blockSize = minimumLength;
@@ -50,7 +50,10 @@ final class SimpleCharStorage implements CharStorage {
 	public void freezeLastBlock() {
 	}
 
-	public void clear() {
+	public synchronized void clear() {
 		myArray.clear();
 	}
+
+	public void close() {
+	}
 }
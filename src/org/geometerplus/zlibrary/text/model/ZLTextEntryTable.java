@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+// Decoded hyperlink ids, image entries and style entries of a model,
+// keyed by entry type and the encoded entry chars; a lookup does not allocate,
+// so every distinct entry is decoded once and then shared by all the iterators.
+// Search threads iterate the model concurrently: lookups do not lock, they read
+// the volatile slot array; every slot is an immutable entry that is set once,
+// and a grown table is filled before it is published. Adding is synchronized.
+final class ZLTextEntryTable {
+	private static final int MAX_SIZE = 1 << 16;
+
+	private static final class Entry {
+		final byte Type;
+		final int HashCode;
+		final char[] Key;
+		final Object Value;
+
+		Entry(byte type, int hashCode, char[] key, Object value) {
+			Type = type;
+			HashCode = hashCode;
+			Key = key;
+			Value = value;
+		}
+
+		boolean matches(byte type, int hashCode, char[] data, int offset, int length) {
+			if (HashCode != hashCode || Type != type || Key.length != length) {
+				return false;
+			}
+			final char[] key = Key;
+			for (int i = 0; i < length; ++i) {
+				if (key[i] != data[offset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private volatile Entry[] myEntries = new Entry[64];
+	private int mySize;
+
+	private static int hashCode(byte type, char[] data, int offset, int length) {
+		int hash = type;
+		for (int i = offset; i < offset + length; ++i) {
+			hash = hash * 31 + data[i];
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	Object get(byte type, char[] data, int offset, int length) {
+		final Entry[] entries = myEntries;
+		final int hash = hashCode(type, data, offset, length);
+		final int mask = entries.length - 1;
+		for (int i = hash & mask; entries[i] != null; i = (i + 1) & mask) {
+			final Entry entry = entries[i];
+			if (entry.matches(type, hash, data, offset, length)) {
+				return entry.Value;
+			}
+		}
+		return null;
+	}
+
+	// returns the value stored for the key; it differs from the given one
+	// if the same entry was added by another thread
+	synchronized Object add(byte type, char[] data, int offset, int length, Object value) {
+		if (mySize >= MAX_SIZE) {
+			return value;
+		}
+		Entry[] entries = myEntries;
+		if (mySize * 2 >= entries.length) {
+			entries = rehash(entries);
+		}
+		final int hash = hashCode(type, data, offset, length);
+		final int mask = entries.length - 1;
+		int i = hash & mask;
+		for (; entries[i] != null; i = (i + 1) & mask) {
+			if (entries[i].matches(type, hash, data, offset, length)) {
+				return entries[i].Value;
+			}
+		}
+		final char[] key = new char[length];
+		System.arraycopy(data, offset, key, 0, length);
+		entries[i] = new Entry(type, hash, key, value);
+		++mySize;
+		// the volatile write publishes the new slot (or the grown table)
+		myEntries = entries;
+		return value;
+	}
+
+	private static Entry[] rehash(Entry[] entries) {
+		final Entry[] newEntries = new Entry[entries.length << 1];
+		final int mask = newEntries.length - 1;
+		for (Entry entry : entries) {
+			if (entry != null) {
+				int i = entry.HashCode & mask;
+				while (newEntries[i] != null) {
+					i = (i + 1) & mask;
+				}
+				newEntries[i] = entry;
+			}
+		}
+		return newEntries;
+	}
+}
@@ -41,4 +41,10 @@ public interface ZLTextModel {
 	int findParagraphByTextLength(int length);
 
 	int search(final String text, int startIndex, int endIndex, boolean ignoreCase);
+	// replaces marks by the results of a background search, see ZLTextSearch
+	ZLTextSearch startSearch(String text, int startIndex, int endIndex, boolean ignoreCase, ZLTextSearch.Listener listener);
+
+	// keeps text data of the paragraphs (and of the neighbouring ones) in memory
+	// until the next call with the same owner; see CharStorageCache
+	void pinParagraphs(Object owner, int startIndex, int endIndex);
 }
@@ -34,10 +34,21 @@ public class ZLTextNativeModel extends ZLTextPlainModel {
 	) {
 		super(
 			id, language,
-			entryIndices, entryOffsets, paragraphLengths, textSizes, paragraphKinds,
+			new ZLTextParagraphIndex(
+				paragraphsNumber, entryIndices, entryOffsets,
+				paragraphLengths, textSizes, paragraphKinds
+			),
 			new CachedCharStorageRO(directoryName, fileExtension, blocksNumber),
 			imageMap
 		);
-		myParagraphsNumber = paragraphsNumber;
+	}
+
+	ZLTextNativeModel(
+		String id, String language,
+		ZLTextParagraphIndex paragraphs,
+		CharStorage storage,
+		Map<String,ZLImage> imageMap
+	) {
+		super(id, language, paragraphs, storage, imageMap);
 	}
 }
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.io.*;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// Paragraph properties (start entry block & offset, number of entries,
+// cumulative text size and kind) packed in blocks of BLOCK_SIZE paragraphs.
+// In each block, every property is stored as a separate column of varints;
+// start entry indices and text sizes are stored as deltas, the block base
+// values are kept in plain arrays and serve as a skip index.
+// The last (not yet filled) block is kept in plain arrays, so the last
+// paragraph can be changed while the model is being built.
+final class ZLTextParagraphIndex {
+	private static final int BLOCK_SHIFT = 5;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	private static final int COLUMN_ENTRY_INDEX = 0;
+	private static final int COLUMN_ENTRY_OFFSET = 1;
+	private static final int COLUMN_LENGTH = 2;
+	private static final int COLUMN_TEXT_SIZE = 3;
+	private static final int COLUMNS_NUMBER = 4;
+
+	private int mySize;
+	private byte[] myKinds;
+
+	// encoded blocks
+	private int myBlocksNumber;
+	private int[] myBaseEntryIndices;
+	private int[] myBaseTextSizes;
+	private int[] myColumnPositions;
+	private byte[] myData;
+	private int myDataSize;
+
+	// the last block
+	private final int[][] myOpenColumns = new int[COLUMNS_NUMBER][BLOCK_SIZE];
+
+	private ZLTextParagraphIndex() {
+	}
+
+	ZLTextParagraphIndex(int capacity) {
+		capacity = Math.max(capacity, 1);
+		myKinds = new byte[capacity];
+		final int blocks = (capacity >> BLOCK_SHIFT) + 1;
+		myBaseEntryIndices = new int[blocks];
+		myBaseTextSizes = new int[blocks];
+		myColumnPositions = new int[blocks * COLUMNS_NUMBER];
+		myData = new byte[blocks * BLOCK_SIZE * 4];
+	}
+
+	ZLTextParagraphIndex(
+		int size, int[] entryIndices, int[] entryOffsets,
+		int[] paragraphLengths, int[] textSizes, byte[] kinds
+	) {
+		this(size);
+		for (int i = 0; i < size; ++i) {
+			add(entryIndices[i], entryOffsets[i], paragraphLengths[i], textSizes[i], kinds[i]);
+		}
+	}
+
+	int size() {
+		return mySize;
+	}
+
+	void add(int entryIndex, int entryOffset, int length, int textSize, byte kind) {
+		if (mySize == myKinds.length) {
+			myKinds = ZLArrayUtils.createCopy(myKinds, mySize, mySize << 1);
+		}
+		myKinds[mySize] = kind;
+		if (mySize - (myBlocksNumber << BLOCK_SHIFT) == BLOCK_SIZE) {
+			encodeOpenBlock();
+		}
+		final int k = mySize - (myBlocksNumber << BLOCK_SHIFT);
+		final int[][] columns = myOpenColumns;
+		columns[COLUMN_ENTRY_INDEX][k] = entryIndex;
+		columns[COLUMN_ENTRY_OFFSET][k] = entryOffset;
+		columns[COLUMN_LENGTH][k] = length;
+		columns[COLUMN_TEXT_SIZE][k] = textSize;
+		++mySize;
+	}
+
+	// the last paragraph is changed by the model builder only
+	void addEntryToLast() {
+		++myOpenColumns[COLUMN_LENGTH][mySize - 1 - (myBlocksNumber << BLOCK_SHIFT)];
+	}
+
+	void addTextToLast(int length) {
+		myOpenColumns[COLUMN_TEXT_SIZE][mySize - 1 - (myBlocksNumber << BLOCK_SHIFT)] += length;
+	}
+
+	byte getKind(int index) {
+		return myKinds[index];
+	}
+
+	int getStartEntryIndex(int index) {
+		return getDelta(index, COLUMN_ENTRY_INDEX, myBaseEntryIndices);
+	}
+
+	int getStartEntryOffset(int index) {
+		return getValue(index, COLUMN_ENTRY_OFFSET);
+	}
+
+	int getLength(int index) {
+		return getValue(index, COLUMN_LENGTH);
+	}
+
+	int getTextSize(int index) {
+		return getDelta(index, COLUMN_TEXT_SIZE, myBaseTextSizes);
+	}
+
+	// index of the first paragraph with text size >= given one,
+	// or the last paragraph if there is no such
+	int findByTextSize(int textSize) {
+		if (mySize == 0) {
+			return 0;
+		}
+		// the last block that starts below textSize
+		final int blocks = (mySize + BLOCK_SIZE - 1) >> BLOCK_SHIFT;
+		int low = -1;
+		int high = blocks - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >> 1;
+			if (getTextSize(middle << BLOCK_SHIFT) < textSize) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (low == -1) {
+			return 0;
+		}
+
+		final int start = low << BLOCK_SHIFT;
+		final int count = Math.min(BLOCK_SIZE, mySize - start);
+		if (low < myBlocksNumber) {
+			final byte[] data = myData;
+			int position = myColumnPositions[low * COLUMNS_NUMBER + COLUMN_TEXT_SIZE];
+			int value = myBaseTextSizes[low];
+			for (int k = 1; k < count; ++k) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = data[position++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				value += delta;
+				if (value >= textSize) {
+					return start + k;
+				}
+			}
+		} else {
+			final int[] textSizes = myOpenColumns[COLUMN_TEXT_SIZE];
+			for (int k = 1; k < count; ++k) {
+				if (textSizes[k] >= textSize) {
+					return start + k;
+				}
+			}
+		}
+		return Math.min(start + count, mySize - 1);
+	}
+
+	private int getValue(int index, int column) {
+		final int block = index >> BLOCK_SHIFT;
+		final int k = index & (BLOCK_SIZE - 1);
+		if (block >= myBlocksNumber) {
+			return myOpenColumns[column][k];
+		}
+		final byte[] data = myData;
+		int position = myColumnPositions[block * COLUMNS_NUMBER + column];
+		for (int i = 0; i < k; ++i) {
+			while (data[position++] < 0);
+		}
+		int value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = data[position++];
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return value;
+	}
+
+	private int getDelta(int index, int column, int[] bases) {
+		final int block = index >> BLOCK_SHIFT;
+		final int k = index & (BLOCK_SIZE - 1);
+		if (block >= myBlocksNumber) {
+			return myOpenColumns[column][k];
+		}
+		final byte[] data = myData;
+		int position = myColumnPositions[block * COLUMNS_NUMBER + column];
+		int value = bases[block];
+		for (int i = 0; i < k; ++i) {
+			int delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				delta |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			value += delta;
+		}
+		return value;
+	}
+
+	private void encodeOpenBlock() {
+		final int block = myBlocksNumber;
+		if (block == myBaseEntryIndices.length) {
+			final int newLength = block << 1;
+			myBaseEntryIndices = ZLArrayUtils.createCopy(myBaseEntryIndices, block, newLength);
+			myBaseTextSizes = ZLArrayUtils.createCopy(myBaseTextSizes, block, newLength);
+			myColumnPositions = ZLArrayUtils.createCopy(
+				myColumnPositions, block * COLUMNS_NUMBER, newLength * COLUMNS_NUMBER
+			);
+		}
+		final int[][] columns = myOpenColumns;
+		myBaseEntryIndices[block] = columns[COLUMN_ENTRY_INDEX][0];
+		myBaseTextSizes[block] = columns[COLUMN_TEXT_SIZE][0];
+		for (int column = 0; column < COLUMNS_NUMBER; ++column) {
+			myColumnPositions[block * COLUMNS_NUMBER + column] = myDataSize;
+			final int[] values = columns[column];
+			if (column == COLUMN_ENTRY_INDEX || column == COLUMN_TEXT_SIZE) {
+				for (int k = 1; k < BLOCK_SIZE; ++k) {
+					writeVarInt(values[k] - values[k - 1]);
+				}
+			} else {
+				for (int k = 0; k < BLOCK_SIZE; ++k) {
+					writeVarInt(values[k]);
+				}
+			}
+		}
+		myBlocksNumber = block + 1;
+	}
+
+	private void writeVarInt(int value) {
+		if (myDataSize + 5 > myData.length) {
+			myData = ZLArrayUtils.createCopy(myData, myDataSize, myData.length << 1);
+		}
+		while ((value & ~0x7F) != 0) {
+			myData[myDataSize++] = (byte)((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		myData[myDataSize++] = (byte)value;
+	}
+
+	void write(DataOutputStream stream) throws IOException {
+		stream.writeInt(mySize);
+		stream.write(myKinds, 0, mySize);
+		stream.writeInt(myBlocksNumber);
+		for (int i = 0; i < myBlocksNumber; ++i) {
+			stream.writeInt(myBaseEntryIndices[i]);
+			stream.writeInt(myBaseTextSizes[i]);
+		}
+		for (int i = 0; i < myBlocksNumber * COLUMNS_NUMBER; ++i) {
+			stream.writeInt(myColumnPositions[i]);
+		}
+		stream.writeInt(myDataSize);
+		stream.write(myData, 0, myDataSize);
+		final int openSize = mySize - (myBlocksNumber << BLOCK_SHIFT);
+		for (int[] values : myOpenColumns) {
+			for (int k = 0; k < openSize; ++k) {
+				stream.writeInt(values[k]);
+			}
+		}
+	}
+
+	static ZLTextParagraphIndex read(DataInputStream stream) throws IOException {
+		final ZLTextParagraphIndex index = new ZLTextParagraphIndex();
+		final int size = stream.readInt();
+		if (size < 0) {
+			throw new IOException("Invalid paragraphs number: " + size);
+		}
+		index.mySize = size;
+		index.myKinds = new byte[Math.max(size, 1)];
+		stream.readFully(index.myKinds, 0, size);
+
+		final int blocksNumber = stream.readInt();
+		final int openSize = size - (blocksNumber << BLOCK_SHIFT);
+		if (blocksNumber < 0 || openSize < 0 || openSize > BLOCK_SIZE || (size > 0 && openSize == 0)) {
+			throw new IOException("Invalid paragraph blocks number: " + blocksNumber);
+		}
+		index.myBlocksNumber = blocksNumber;
+		index.myBaseEntryIndices = new int[Math.max(blocksNumber, 1)];
+		index.myBaseTextSizes = new int[Math.max(blocksNumber, 1)];
+		for (int i = 0; i < blocksNumber; ++i) {
+			index.myBaseEntryIndices[i] = stream.readInt();
+			index.myBaseTextSizes[i] = stream.readInt();
+		}
+		index.myColumnPositions = new int[Math.max(blocksNumber, 1) * COLUMNS_NUMBER];
+		for (int i = 0; i < blocksNumber * COLUMNS_NUMBER; ++i) {
+			index.myColumnPositions[i] = stream.readInt();
+		}
+		final int dataSize = stream.readInt();
+		if (dataSize < 0) {
+			throw new IOException("Invalid paragraph data size: " + dataSize);
+		}
+		index.myDataSize = dataSize;
+		index.myData = new byte[Math.max(dataSize, 16)];
+		stream.readFully(index.myData, 0, dataSize);
+		for (int[] values : index.myOpenColumns) {
+			for (int k = 0; k < openSize; ++k) {
+				values[k] = stream.readInt();
+			}
+		}
+		return index;
+	}
+}
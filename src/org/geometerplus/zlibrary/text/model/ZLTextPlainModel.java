@@ -19,6 +19,7 @@
 
 package org.geometerplus.zlibrary.text.model;
 
+import java.io.*;
 import java.util.*;
 
 import org.geometerplus.zlibrary.core.image.ZLImage;
@@ -28,18 +29,21 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 	private final String myId;
 	private final String myLanguage;
 
-	protected int[] myStartEntryIndices;
-	protected int[] myStartEntryOffsets;
-	protected int[] myParagraphLengths;
-	protected int[] myTextSizes;
-	protected byte[] myParagraphKinds;
-
-	protected int myParagraphsNumber;
+	protected final ZLTextParagraphIndex myParagraphs;
 
 	protected final CharStorage myStorage;
 	protected final Map<String,ZLImage> myImageMap;
 
-	private ArrayList<ZLTextMark> myMarks;
+	// marks are appended by search threads: myMarkArray is never changed below
+	// the size of published myMarks list, so the list is an immutable snapshot
+	private final Object myMarksLock = new Object();
+	private volatile List<ZLTextMark> myMarks;
+	private ZLTextMark[] myMarkArray;
+	private ZLTextSearch mySearch;
+	private volatile ZLTextSearchIndex mySearchIndex;
+	private Thread mySearchIndexThread;
+	private volatile boolean myIsClosed;
+	private final ZLTextEntryTable myEntryTable = new ZLTextEntryTable();
 
 	final class EntryIteratorImpl implements ZLTextParagraph.EntryIterator {
 		private int myCounter;
@@ -71,16 +75,16 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 		private short myFixedHSpaceLength;
 
 		EntryIteratorImpl(int index) {
-			myLength = myParagraphLengths[index];
-			myDataIndex = myStartEntryIndices[index];
-			myDataOffset = myStartEntryOffsets[index];
+			myLength = myParagraphs.getLength(index);
+			myDataIndex = myParagraphs.getStartEntryIndex(index);
+			myDataOffset = myParagraphs.getStartEntryOffset(index);
 		}
 
 		void reset(int index) {
 			myCounter = 0;
-			myLength = myParagraphLengths[index];
-			myDataIndex = myStartEntryIndices[index];
-			myDataOffset = myStartEntryOffsets[index];
+			myLength = myParagraphs.getLength(index);
+			myDataIndex = myParagraphs.getStartEntryIndex(index);
+			myDataOffset = myParagraphs.getStartEntryOffset(index);
 		}
 
 		public byte getType() {
@@ -171,18 +175,33 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 					myControlIsStart = true;
 					myHyperlinkType = (byte)(kind >> 8);
 					short labelLength = (short)data[dataOffset++];
-					myHyperlinkId = new String(data, dataOffset, labelLength);
+					String id = (String)myEntryTable.get(type, data, dataOffset, labelLength);
+					if (id == null) {
+						id = (String)myEntryTable.add(
+							type, data, dataOffset, labelLength, new String(data, dataOffset, labelLength)
+						);
+					}
+					myHyperlinkId = id;
 					dataOffset += labelLength;
 					break;
 				}
 				case ZLTextParagraph.Entry.IMAGE:
 				{
-					final short vOffset = (short)data[dataOffset++];
-					final short len = (short)data[dataOffset++];
-					final String id = new String(data, dataOffset, len);
-					dataOffset += len;
-					final boolean isCover = data[dataOffset++] != 0;
-					myImageEntry = new ZLImageEntry(myImageMap, id, vOffset, isCover);
+					// vOffset, id length, id chars & cover flag
+					final int entryLength = 3 + (short)data[dataOffset + 1];
+					ZLImageEntry entry = (ZLImageEntry)myEntryTable.get(type, data, dataOffset, entryLength);
+					if (entry == null) {
+						final short vOffset = (short)data[dataOffset];
+						final short len = (short)data[dataOffset + 1];
+						final String id = new String(data, dataOffset + 2, len);
+						final boolean isCover = data[dataOffset + 2 + len] != 0;
+						entry = (ZLImageEntry)myEntryTable.add(
+							type, data, dataOffset, entryLength,
+							new ZLImageEntry(myImageMap, id, vOffset, isCover)
+						);
+					}
+					myImageEntry = entry;
+					dataOffset += entryLength;
 					break;
 				}
 				case ZLTextParagraph.Entry.FIXED_HSPACE:
@@ -191,33 +210,16 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 				case ZLTextParagraph.Entry.STYLE_CSS:
 				case ZLTextParagraph.Entry.STYLE_OTHER:
 				{
-					final ZLTextStyleEntry entry =
-						type == ZLTextParagraph.Entry.STYLE_CSS
-							? new ZLTextCSSStyleEntry()
-							: new ZLTextOtherStyleEntry();
-
-					final short mask = (short)data[dataOffset++];
-					for (int i = 0; i < NUMBER_OF_LENGTHS; ++i) {
-						if (ZLTextStyleEntry.isFeatureSupported(mask, i)) {
-							final short size = (short)data[dataOffset++];
-							final byte unit = (byte)data[dataOffset++];
-							entry.setLength(i, size, unit);
-						}
-					}
-					if (ZLTextStyleEntry.isFeatureSupported(mask, ALIGNMENT_TYPE)) {
-						final short value = (short)data[dataOffset++];
-						entry.setAlignmentType((byte)(value & 0xFF));
-					}
-					if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_FAMILY)) {
-						final short familyLength = (short)data[dataOffset++];
-						entry.setFontFamily(new String(data, dataOffset, familyLength));
-						dataOffset += familyLength;
+					final int end = styleEntryEnd(data, dataOffset);
+					ZLTextStyleEntry entry =
+						(ZLTextStyleEntry)myEntryTable.get(type, data, dataOffset, end - dataOffset);
+					if (entry == null) {
+						entry = (ZLTextStyleEntry)myEntryTable.add(
+							type, data, dataOffset, end - dataOffset,
+							decodeStyleEntry(type, data, dataOffset)
+						);
 					}
-					if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_STYLE_MODIFIER)) {
-						final short value = (short)data[dataOffset++];
-						entry.setFontModifiers((byte)(value & 0xFF), (byte)((value >> 8) & 0xFF));
-					}
-
+					dataOffset = end;
 					myStyleEntry = entry;
 				}
 				case ZLTextParagraph.Entry.STYLE_CLOSE:
@@ -232,28 +234,126 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 		}
 	}
 
-	protected ZLTextPlainModel(
+	// offset after the style entry data that starts at given offset
+	private static int styleEntryEnd(char[] data, int offset) {
+		final short mask = (short)data[offset++];
+		for (int i = 0; i < NUMBER_OF_LENGTHS; ++i) {
+			if (ZLTextStyleEntry.isFeatureSupported(mask, i)) {
+				offset += 2;
+			}
+		}
+		if (ZLTextStyleEntry.isFeatureSupported(mask, ALIGNMENT_TYPE)) {
+			++offset;
+		}
+		if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_FAMILY)) {
+			offset += 1 + (short)data[offset];
+		}
+		if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_STYLE_MODIFIER)) {
+			++offset;
+		}
+		return offset;
+	}
+
+	private static ZLTextStyleEntry decodeStyleEntry(byte type, char[] data, int dataOffset) {
+		final ZLTextStyleEntry entry =
+			type == ZLTextParagraph.Entry.STYLE_CSS
+				? new ZLTextCSSStyleEntry()
+				: new ZLTextOtherStyleEntry();
+
+		final short mask = (short)data[dataOffset++];
+		for (int i = 0; i < NUMBER_OF_LENGTHS; ++i) {
+			if (ZLTextStyleEntry.isFeatureSupported(mask, i)) {
+				final short size = (short)data[dataOffset++];
+				final byte unit = (byte)data[dataOffset++];
+				entry.setLength(i, size, unit);
+			}
+		}
+		if (ZLTextStyleEntry.isFeatureSupported(mask, ALIGNMENT_TYPE)) {
+			final short value = (short)data[dataOffset++];
+			entry.setAlignmentType((byte)(value & 0xFF));
+		}
+		if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_FAMILY)) {
+			final short familyLength = (short)data[dataOffset++];
+			entry.setFontFamily(new String(data, dataOffset, familyLength));
+			dataOffset += familyLength;
+		}
+		if (ZLTextStyleEntry.isFeatureSupported(mask, FONT_STYLE_MODIFIER)) {
+			final short value = (short)data[dataOffset++];
+			entry.setFontModifiers((byte)(value & 0xFF), (byte)((value >> 8) & 0xFF));
+		}
+
+		return entry;
+	}
+
+	ZLTextPlainModel(
 		String id,
 		String language,
-		int[] entryIndices,
-		int[] entryOffsets,
-		int[] paragraphLenghts,
-		int[] textSizes,
-		byte[] paragraphKinds,
+		ZLTextParagraphIndex paragraphs,
 		CharStorage storage,
 		Map<String,ZLImage> imageMap
 	) {
 		myId = id;
 		myLanguage = language;
-		myStartEntryIndices = entryIndices;
-		myStartEntryOffsets = entryOffsets;
-		myParagraphLengths = paragraphLenghts;
-		myTextSizes = textSizes;
-		myParagraphKinds = paragraphKinds;
+		myParagraphs = paragraphs;
 		myStorage = storage;
 		myImageMap = imageMap;
 	}
 
+	public static ZLTextPlainModel load(
+		DataInputStream stream, String fileName, Map<String,ZLImage> imageMap
+	) throws IOException {
+		final String id = stream.readBoolean() ? stream.readUTF() : null;
+		final String language = stream.readBoolean() ? stream.readUTF() : null;
+		return new ZLTextNativeModel(
+			id, language,
+			ZLTextParagraphIndex.read(stream),
+			new MappedCharStorageRO(fileName),
+			imageMap
+		);
+	}
+
+	public static ZLTextPlainModel load(
+		DataInputStream stream, SegmentedCharStorage blocks, Map<String,ZLImage> imageMap
+	) throws IOException {
+		final String id = stream.readBoolean() ? stream.readUTF() : null;
+		final String language = stream.readBoolean() ? stream.readUTF() : null;
+		final ZLTextParagraphIndex paragraphs = ZLTextParagraphIndex.read(stream);
+		final int firstBlock = stream.readInt();
+		final int blocksNumber = stream.readInt();
+		return new ZLTextNativeModel(
+			id, language, paragraphs,
+			blocks.segment(firstBlock, blocksNumber),
+			imageMap
+		);
+	}
+
+	// stores paragraph index into the stream and text blocks into the file;
+	// the model can be restored by load() with the same file name
+	public final void save(DataOutputStream stream, String fileName) throws IOException {
+		writeIndex(stream);
+		MappedCharStorage.copy(myStorage, fileName);
+	}
+
+	// the same, but text blocks are appended to the storage shared by several models;
+	// the model can be restored by load() with the storage opened on the same file
+	public final void save(DataOutputStream stream, SegmentedCharStorage blocks) throws IOException {
+		writeIndex(stream);
+		stream.writeInt(blocks.appendAll(myStorage));
+		stream.writeInt(myStorage.size());
+	}
+
+	private void writeIndex(DataOutputStream stream) throws IOException {
+		stream.writeBoolean(myId != null);
+		if (myId != null) {
+			stream.writeUTF(myId);
+		}
+		stream.writeBoolean(myLanguage != null);
+		if (myLanguage != null) {
+			stream.writeUTF(myLanguage);
+		}
+		myParagraphs.write(stream);
+	}
+
 	public final String getId() {
 		return myId;
 	}
@@ -263,127 +363,239 @@ public class ZLTextPlainModel implements ZLTextModel, ZLTextStyleEntry.Feature {
 	}
 
 	public final ZLTextMark getFirstMark() {
-		return ((myMarks == null) || myMarks.isEmpty()) ? null : myMarks.get(0);
+		final List<ZLTextMark> marks = myMarks;
+		return ((marks == null) || marks.isEmpty()) ? null : marks.get(0);
 	}
 
 	public final ZLTextMark getLastMark() {
-		return ((myMarks == null) || myMarks.isEmpty()) ? null : myMarks.get(myMarks.size() - 1);
+		final List<ZLTextMark> marks = myMarks;
+		return ((marks == null) || marks.isEmpty()) ? null : marks.get(marks.size() - 1);
 	}
 
-	public final ZLTextMark getNextMark(ZLTextMark position) {
-		if ((position == null) || (myMarks == null)) {
-			return null;
+	// marks are sorted; returns index of the first mark >= position
+	private static int lowerBound(List<ZLTextMark> marks, ZLTextMark position) {
+		int low = 0;
+		int high = marks.size();
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (marks.get(middle).compareTo(position) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
 		}
+		return low;
+	}
 
-		ZLTextMark mark = null;
-		for (ZLTextMark current : myMarks) {
-			if (current.compareTo(position) >= 0) {
-				if ((mark == null) || (mark.compareTo(current) > 0)) {
-					mark = current;
-				}
-			}
+	public final ZLTextMark getNextMark(ZLTextMark position) {
+		final List<ZLTextMark> marks = myMarks;
+		if ((position == null) || (marks == null)) {
+			return null;
 		}
-		return mark;
+		final int index = lowerBound(marks, position);
+		return index < marks.size() ? marks.get(index) : null;
 	}
 
 	public final ZLTextMark getPreviousMark(ZLTextMark position) {
-		if ((position == null) || (myMarks == null)) {
+		final List<ZLTextMark> marks = myMarks;
+		if ((position == null) || (marks == null)) {
 			return null;
 		}
+		final int index = lowerBound(marks, position);
+		return index > 0 ? marks.get(index - 1) : null;
+	}
 
-		ZLTextMark mark = null;
-		for (ZLTextMark current : myMarks) {
-			if (current.compareTo(position) < 0) {
-				if ((mark == null) || (mark.compareTo(current) < 0)) {
-					mark = current;
-				}
+	public final int search(final String text, int startIndex, int endIndex, boolean ignoreCase) {
+		return startSearch(text, startIndex, endIndex, ignoreCase, null).waitFor(null);
+	}
+
+	public final ZLTextSearch startSearch(String text, int startIndex, int endIndex, boolean ignoreCase, ZLTextSearch.Listener listener) {
+		final int paragraphsNumber = myParagraphs.size();
+		if (startIndex > paragraphsNumber) {
+			startIndex = paragraphsNumber;
+		}
+		if (endIndex > paragraphsNumber) {
+			endIndex = paragraphsNumber;
+		}
+		final ZLTextSearchIndex index = mySearchIndex;
+		final List<ZLTextMark> indexedMarks =
+			ignoreCase && index != null ? index.find(text, startIndex, endIndex) : null;
+		final ZLTextSearch search = new ZLTextSearch(
+			this, new ZLSearchPattern(text, ignoreCase), startIndex, endIndex, listener, indexedMarks
+		);
+		synchronized (myMarksLock) {
+			if (mySearch != null) {
+				mySearch.cancel();
 			}
+			mySearch = search;
+			myMarkArray = new ZLTextMark[16];
+			myMarks = Collections.<ZLTextMark>emptyList();
 		}
-		return mark;
+		search.start();
+		return search;
 	}
 
-	public final int search(final String text, int startIndex, int endIndex, boolean ignoreCase) {
-		int count = 0;
-		ZLSearchPattern pattern = new ZLSearchPattern(text, ignoreCase);
-		myMarks = new ArrayList<ZLTextMark>();
-		if (startIndex > myParagraphsNumber) {
-			startIndex = myParagraphsNumber;
-		}
-		if (endIndex > myParagraphsNumber) {
-			endIndex = myParagraphsNumber;
-		}
-		int index = startIndex;
-		final EntryIteratorImpl it = new EntryIteratorImpl(index);
-		while (true) {
+	// loads the search index from the file, or builds & stores it there,
+	// in background; searches use the index as soon as it is ready
+	public final synchronized void attachSearchIndex(final String fileName) {
+		if (mySearchIndex != null || mySearchIndexThread != null || myIsClosed) {
+			return;
+		}
+		final Thread thread = new Thread("ZLTextSearchIndex") {
+			public void run() {
+				ZLTextSearchIndex index = ZLTextSearchIndex.load(ZLTextPlainModel.this, fileName);
+				if (index == null) {
+					try {
+						index = ZLTextSearchIndex.build(ZLTextPlainModel.this);
+						if (index == null) {
+							return;
+						}
+						index.save(ZLTextPlainModel.this, fileName);
+					} catch (CachedCharStorageException e) {
+						return;
+					} catch (IOException e) {
+						// the index is used in memory even if it is not stored
+					}
+				}
+				mySearchIndex = index;
+			}
+		};
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.setDaemon(true);
+		mySearchIndexThread = thread;
+		thread.start();
+	}
+
+	final boolean isClosed() {
+		return myIsClosed;
+	}
+
+	// returns null if the search is cancelled
+	final List<ZLTextMark> searchParagraphs(ZLSearchPattern pattern, int startIndex, int endIndex, ZLTextSearch search) {
+		final List<ZLTextMark> marks = new ArrayList<ZLTextMark>();
+		final EntryIteratorImpl it = new EntryIteratorImpl(startIndex);
+		for (int index = startIndex; index < endIndex; ++index) {
+			if (search.isCancelled()) {
+				return null;
+			}
+			if (index > startIndex) {
+				it.reset(index);
+			}
 			int offset = 0;
 			while (it.hasNext()) {
 				it.next();
 				if (it.getType() == ZLTextParagraph.Entry.TEXT) {
-					char[] textData = it.getTextData();
-					int textOffset = it.getTextOffset();
-					int textLength = it.getTextLength();
+					final char[] textData = it.getTextData();
+					final int textOffset = it.getTextOffset();
+					final int textLength = it.getTextLength();
 					for (int pos = ZLSearchUtil.find(textData, textOffset, textLength, pattern); pos != -1;
 						pos = ZLSearchUtil.find(textData, textOffset, textLength, pattern, pos + 1)) {
-						myMarks.add(new ZLTextMark(index, offset + pos, pattern.getLength()));
-						++count;
+						marks.add(new ZLTextMark(index, offset + pos, pattern.getLength()));
 					}
 					offset += textLength;
 				}
 			}
-			if (++index >= endIndex) {
-				break;
+		}
+		return marks;
+	}
+
+	final void addMarks(ZLTextSearch search, List<ZLTextMark> marks) {
+		synchronized (myMarksLock) {
+			if (search != mySearch) {
+				return;
+			}
+			final int size = myMarks.size();
+			final int newSize = size + marks.size();
+			if (newSize > myMarkArray.length) {
+				final ZLTextMark[] array = new ZLTextMark[Math.max(newSize, myMarkArray.length * 2)];
+				System.arraycopy(myMarkArray, 0, array, 0, size);
+				myMarkArray = array;
+			}
+			int index = size;
+			for (ZLTextMark mark : marks) {
+				myMarkArray[index++] = mark;
 			}
-			it.reset(index);
+			myMarks = Collections.unmodifiableList(Arrays.asList(myMarkArray).subList(0, newSize));
 		}
-		return count;
 	}
 
 	public final List<ZLTextMark> getMarks() {
-		return (myMarks != null) ? myMarks : Collections.<ZLTextMark>emptyList();
+		final List<ZLTextMark> marks = myMarks;
+		return (marks != null) ? marks : Collections.<ZLTextMark>emptyList();
 	}
 
 	public final void removeAllMarks() {
-		myMarks = null;
+		synchronized (myMarksLock) {
+			if (mySearch != null) {
+				mySearch.cancel();
+				mySearch = null;
+			}
+			myMarks = null;
+			myMarkArray = null;
+		}
+	}
+
+	// stops the background readers of the model & releases the storage;
+	// the model cannot be used after that
+	public void close() {
+		final Thread indexThread;
+		synchronized (this) {
+			myIsClosed = true;
+			indexThread = mySearchIndexThread;
+			mySearchIndexThread = null;
+		}
+		if (indexThread != null) {
+			try {
+				indexThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		final ZLTextSearch search;
+		synchronized (myMarksLock) {
+			search = mySearch;
+			mySearch = null;
+			myMarks = null;
+			myMarkArray = null;
+		}
+		if (search != null) {
+			search.cancel();
+			search.waitFor(null);
+		}
+		myStorage.close();
+	}
+
+	public final void pinParagraphs(Object owner, int startIndex, int endIndex) {
+		final int blocksNumber = myStorage.size();
+		final int paragraphsNumber = myParagraphs.size();
+		if (paragraphsNumber == 0 || blocksNumber == 0) {
+			return;
+		}
+		startIndex = Math.max(Math.min(startIndex, paragraphsNumber - 1), 0);
+		endIndex = Math.max(Math.min(endIndex, paragraphsNumber - 1), startIndex);
+		CharStorageCache.Instance().pin(
+			owner, myStorage,
+			Math.max(myParagraphs.getStartEntryIndex(startIndex) - 1, 0),
+			Math.min(myParagraphs.getStartEntryIndex(endIndex) + 1, blocksNumber - 1)
+		);
 	}
 
 	public final int getParagraphsNumber() {
-		return myParagraphsNumber;
+		return myParagraphs.size();
 	}
 
 	public final ZLTextParagraph getParagraph(int index) {
-		final byte kind = myParagraphKinds[index];
+		final byte kind = myParagraphs.getKind(index);
 		return (kind == ZLTextParagraph.Kind.TEXT_PARAGRAPH) ?
 			new ZLTextParagraphImpl(this, index) :
 			new ZLTextSpecialParagraphImpl(kind, this, index);
 	}
 
 	public final int getTextLength(int index) {
-		return myTextSizes[Math.max(Math.min(index, myParagraphsNumber - 1), 0)];
-	}
-
-	private static int binarySearch(int[] array, int length, int value) {
-		int lowIndex = 0;
-		int highIndex = length - 1;
-
-		while (lowIndex <= highIndex) {
-			int midIndex = (lowIndex + highIndex) >>> 1;
-			int midValue = array[midIndex];
-			if (midValue > value) {
-				highIndex = midIndex - 1;
-			} else if (midValue < value) {
-				lowIndex = midIndex + 1;
-			} else {
-				return midIndex;
-			}
-		}
-		return -lowIndex - 1;
+		return myParagraphs.getTextSize(Math.max(Math.min(index, myParagraphs.size() - 1), 0));
 	}
 
 	public final int findParagraphByTextLength(int length) {
-		int index = binarySearch(myTextSizes, myParagraphsNumber, length);
-		if (index >= 0) {
-			return index;
-		}
-		return Math.min(-index - 1, myParagraphsNumber - 1);
+		return myParagraphs.findByTextSize(length);
 	}
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geometerplus.zlibrary.core.util.ZLSearchPattern;
+
+// Paragraphs are split into chunks scanned by several threads;
+// found marks are passed to the model & listener in the text order,
+// as soon as all the preceding chunks are scanned; if the model has
+// a search index able to answer the query, no paragraph is scanned at all
+public final class ZLTextSearch {
+	public interface Listener {
+		// called from search threads; onSearchFinished is called exactly once
+		void onMarksFound(ZLTextSearch search, List<ZLTextMark> marks);
+		void onSearchFinished(ZLTextSearch search);
+	}
+
+	private static final int PARAGRAPHS_PER_CHUNK = 64;
+	private static final int MAX_THREADS = 4;
+
+	private final ZLTextPlainModel myModel;
+	private final ZLSearchPattern myPattern;
+	private final int myStartIndex;
+	private final int myEndIndex;
+	private final Listener myListener;
+	private final List<ZLTextMark> myIndexedMarks;
+
+	private final int myChunksNumber;
+	private final AtomicInteger myNextChunk = new AtomicInteger();
+	private final List<List<ZLTextMark>> myChunkMarks;
+	private boolean myIsDelivering;
+	private final LinkedList<List<ZLTextMark>> myPublishedMarks = new LinkedList<List<ZLTextMark>>();
+	private int myPublishedChunks;
+	private ZLTextMark myLastMark;
+	private int myCount;
+	private int myRunningThreads;
+	private boolean myIsFinished;
+	private volatile boolean myIsCancelled;
+
+	ZLTextSearch(ZLTextPlainModel model, ZLSearchPattern pattern, int startIndex, int endIndex, Listener listener, List<ZLTextMark> indexedMarks) {
+		myModel = model;
+		myIndexedMarks = indexedMarks;
+		myPattern = pattern;
+		myStartIndex = startIndex;
+		myEndIndex = Math.max(startIndex, endIndex);
+		myListener = listener;
+		// nothing to scan if the marks are taken from the search index
+		myChunksNumber = indexedMarks != null
+			? 0 : (myEndIndex - myStartIndex + PARAGRAPHS_PER_CHUNK - 1) / PARAGRAPHS_PER_CHUNK;
+		myChunkMarks = new ArrayList<List<ZLTextMark>>(Collections.<List<ZLTextMark>>nCopies(myChunksNumber, null));
+	}
+
+	void start() {
+		final int threadsNumber = Math.min(
+			Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS), myChunksNumber
+		);
+		synchronized (this) {
+			myRunningThreads = threadsNumber + 1;
+			if (myIndexedMarks != null && !myIndexedMarks.isEmpty()) {
+				addPublished(myIndexedMarks);
+				notifyAll();
+			}
+		}
+		deliver();
+		for (int i = 0; i < threadsNumber; ++i) {
+			final Thread thread = new Thread("ZLTextSearch") {
+				public void run() {
+					scan();
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		// the extra running thread counted above is the starting one
+		onThreadFinished();
+	}
+
+	private void scan() {
+		try {
+			while (!myIsCancelled) {
+				final int chunk = myNextChunk.getAndIncrement();
+				if (chunk >= myChunksNumber) {
+					break;
+				}
+				final int startIndex = myStartIndex + chunk * PARAGRAPHS_PER_CHUNK;
+				final int endIndex = Math.min(startIndex + PARAGRAPHS_PER_CHUNK, myEndIndex);
+				final List<ZLTextMark> marks = myModel.searchParagraphs(myPattern, startIndex, endIndex, this);
+				if (marks == null) {
+					break;
+				}
+				onChunkScanned(chunk, marks);
+			}
+		} catch (CachedCharStorageException e) {
+			myIsCancelled = true;
+		} finally {
+			onThreadFinished();
+		}
+	}
+
+	private void onChunkScanned(int chunk, List<ZLTextMark> marks) {
+		publish(chunk, marks);
+		deliver();
+	}
+
+	// the listener is called outside of the search monitor, so it may lock
+	// the view that waits for the search; only one thread at a time delivers
+	// the queued marks, the others go on scanning
+	private void deliver() {
+		if (myListener == null || !startDelivery()) {
+			return;
+		}
+		for (List<ZLTextMark> m = nextPublished(); m != null; m = nextPublished()) {
+			myListener.onMarksFound(this, m);
+		}
+	}
+
+	private synchronized void publish(int chunk, List<ZLTextMark> marks) {
+		myChunkMarks.set(chunk, marks);
+		boolean found = false;
+		while (myPublishedChunks < myChunksNumber && !myIsCancelled) {
+			final List<ZLTextMark> chunkMarks = myChunkMarks.get(myPublishedChunks);
+			if (chunkMarks == null) {
+				break;
+			}
+			myChunkMarks.set(myPublishedChunks++, null);
+			if (!chunkMarks.isEmpty()) {
+				addPublished(chunkMarks);
+				found = true;
+			}
+		}
+		if (found) {
+			notifyAll();
+		}
+	}
+
+	// is called with the search monitor held
+	private void addPublished(List<ZLTextMark> marks) {
+		myCount += marks.size();
+		myLastMark = marks.get(marks.size() - 1);
+		myModel.addMarks(this, marks);
+		if (myListener != null) {
+			myPublishedMarks.add(marks);
+		}
+	}
+
+	private synchronized boolean startDelivery() {
+		if (myIsDelivering) {
+			return false;
+		}
+		myIsDelivering = true;
+		return true;
+	}
+
+	private synchronized List<ZLTextMark> nextPublished() {
+		final List<ZLTextMark> marks = myPublishedMarks.poll();
+		if (marks == null) {
+			myIsDelivering = false;
+		}
+		return marks;
+	}
+
+	private void onThreadFinished() {
+		synchronized (this) {
+			if (--myRunningThreads > 0) {
+				return;
+			}
+			myIsFinished = true;
+			notifyAll();
+		}
+		if (myListener != null) {
+			myListener.onSearchFinished(this);
+		}
+	}
+
+	public void cancel() {
+		myIsCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return myIsCancelled;
+	}
+
+	public synchronized boolean isFinished() {
+		return myIsFinished;
+	}
+
+	// number of marks found so far
+	public synchronized int getCount() {
+		return myCount;
+	}
+
+	// waits until a mark at or after position is found or the search is over;
+	// null position means waiting for the end of the search
+	public synchronized int waitFor(ZLTextMark position) {
+		try {
+			while (!myIsFinished) {
+				if (position != null && myLastMark != null && myLastMark.compareTo(position) >= 0) {
+					break;
+				}
+				wait();
+			}
+		} catch (InterruptedException e) {
+			cancel();
+			Thread.currentThread().interrupt();
+		}
+		return myCount;
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.model;
+
+import java.io.*;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+// Inverted index of a text model: for every word (a maximal run of letters
+// & digits inside a text entry, in lower case) the list of its occurrences
+// as (paragraph, offset) pairs, delta-encoded into variable-length bytes.
+// Substring queries are answered by the dictionary only, so text blocks are
+// not read: all the words are kept in one array (separated by zero chars),
+// and the sorted array of their suffixes gives the words containing a pattern
+// by binary search.
+final class ZLTextSearchIndex {
+	private static final int VERSION = 1;
+
+	private final String[] myWords;
+	private final int[] myCounts;
+	private final int[] myOffsets;
+	private final byte[] myPostings;
+
+	private final char[] myText;
+	private final int[] myWordStarts;
+	private final int[] mySuffixes;
+
+	private ZLTextSearchIndex(String[] words, int[] counts, int[] offsets, byte[] postings) {
+		myWords = words;
+		myCounts = counts;
+		myOffsets = offsets;
+		myPostings = postings;
+
+		int length = 0;
+		for (String w : words) {
+			length += w.length() + 1;
+		}
+		myText = new char[length];
+		myWordStarts = new int[words.length];
+		mySuffixes = new int[length - words.length];
+		int offset = 0;
+		int suffixesNumber = 0;
+		for (int i = 0; i < words.length; ++i) {
+			final String w = words[i];
+			myWordStarts[i] = offset;
+			w.getChars(0, w.length(), myText, offset);
+			for (int j = 0; j < w.length(); ++j) {
+				mySuffixes[suffixesNumber++] = offset + j;
+			}
+			offset += w.length() + 1;
+		}
+		sortSuffixes(mySuffixes, new int[mySuffixes.length], 0, mySuffixes.length);
+	}
+
+	// compares suffixes of words up to the word ends
+	private int compareSuffixes(int s0, int s1) {
+		final char[] text = myText;
+		while (text[s0] == text[s1] && text[s0] != 0) {
+			++s0;
+			++s1;
+		}
+		return text[s0] - text[s1];
+	}
+
+	// merge sort, from inclusive, to exclusive
+	private void sortSuffixes(int[] suffixes, int[] buffer, int from, int to) {
+		if (to - from <= 8) {
+			for (int i = from + 1; i < to; ++i) {
+				final int s = suffixes[i];
+				int j = i;
+				for (; j > from && compareSuffixes(suffixes[j - 1], s) > 0; --j) {
+					suffixes[j] = suffixes[j - 1];
+				}
+				suffixes[j] = s;
+			}
+			return;
+		}
+		final int middle = (from + to) >>> 1;
+		sortSuffixes(suffixes, buffer, from, middle);
+		sortSuffixes(suffixes, buffer, middle, to);
+		if (compareSuffixes(suffixes[middle - 1], suffixes[middle]) <= 0) {
+			return;
+		}
+		System.arraycopy(suffixes, from, buffer, from, to - from);
+		int i = from;
+		int j = middle;
+		for (int k = from; k < to; ++k) {
+			if (j == to || (i < middle && compareSuffixes(buffer[i], buffer[j]) <= 0)) {
+				suffixes[k] = buffer[i++];
+			} else {
+				suffixes[k] = buffer[j++];
+			}
+		}
+	}
+
+	// compares the pattern with the beginning of the suffix; 0 if the suffix starts with it
+	private int compareWithPattern(int suffix, char[] pattern) {
+		final char[] text = myText;
+		for (int i = 0; i < pattern.length; ++i) {
+			final char ch = text[suffix + i];
+			if (ch != pattern[i]) {
+				return ch - pattern[i];
+			}
+		}
+		return 0;
+	}
+
+	private static final class Postings {
+		int[] Data = new int[4];
+		int Length;
+
+		void add(int paragraphIndex, int offset) {
+			if (Length + 2 > Data.length) {
+				Data = ZLArrayUtils.createCopy(Data, Length, Data.length * 2);
+			}
+			Data[Length++] = paragraphIndex;
+			Data[Length++] = offset;
+		}
+	}
+
+	private static boolean isWordChar(char ch) {
+		return Character.isLetterOrDigit(ch);
+	}
+
+	// returns null if the model is closed during the build
+	static ZLTextSearchIndex build(ZLTextPlainModel model) {
+		final HashMap<String,Postings> table = new HashMap<String,Postings>();
+		final int paragraphsNumber = model.getParagraphsNumber();
+		char[] word = new char[32];
+		for (int index = 0; index < paragraphsNumber; ++index) {
+			if (model.isClosed()) {
+				return null;
+			}
+			final ZLTextPlainModel.EntryIteratorImpl it = model.new EntryIteratorImpl(index);
+			int offset = 0;
+			while (it.hasNext()) {
+				it.next();
+				if (it.getType() != ZLTextParagraph.Entry.TEXT) {
+					continue;
+				}
+				final char[] data = it.getTextData();
+				final int start = it.getTextOffset();
+				final int end = start + it.getTextLength();
+				for (int i = start; i < end; ) {
+					if (!isWordChar(data[i])) {
+						++i;
+						continue;
+					}
+					int j = i;
+					for (; j < end && isWordChar(data[j]); ++j) {
+						if (j - i == word.length) {
+							word = ZLArrayUtils.createCopy(word, j - i, word.length * 2);
+						}
+						word[j - i] = Character.toLowerCase(data[j]);
+					}
+					final String key = new String(word, 0, j - i);
+					Postings postings = table.get(key);
+					if (postings == null) {
+						postings = new Postings();
+						table.put(key, postings);
+					}
+					postings.add(index, offset + i - start);
+					i = j;
+				}
+				offset += end - start;
+			}
+		}
+
+		final String[] words = table.keySet().toArray(new String[table.size()]);
+		Arrays.sort(words);
+		final int[] counts = new int[words.length];
+		final int[] offsets = new int[words.length + 1];
+		final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		for (int i = 0; i < words.length; ++i) {
+			final Postings postings = table.get(words[i]);
+			counts[i] = postings.Length / 2;
+			offsets[i] = pool.size();
+			int paragraphIndex = 0;
+			int offset = 0;
+			for (int k = 0; k < postings.Length; k += 2) {
+				final int p = postings.Data[k];
+				final int o = postings.Data[k + 1];
+				writeNumber(pool, p - paragraphIndex);
+				writeNumber(pool, p == paragraphIndex ? o - offset : o);
+				paragraphIndex = p;
+				offset = o;
+			}
+		}
+		offsets[words.length] = pool.size();
+		return new ZLTextSearchIndex(words, counts, offsets, pool.toByteArray());
+	}
+
+	// 7 bits per byte, high bit is set in all the bytes but the last one
+	private static void writeNumber(ByteArrayOutputStream stream, int number) {
+		while ((number & ~0x7F) != 0) {
+			stream.write((number & 0x7F) | 0x80);
+			number >>>= 7;
+		}
+		stream.write(number);
+	}
+
+	// the index is answerable for case-insensitive patterns made of word chars only
+	private static char[] normalize(String text) {
+		final int length = text.length();
+		if (length == 0) {
+			return null;
+		}
+		final char[] pattern = new char[length];
+		for (int i = 0; i < length; ++i) {
+			final char ch = text.charAt(i);
+			if (!isWordChar(ch)) {
+				return null;
+			}
+			pattern[i] = Character.toLowerCase(ch);
+		}
+		return pattern;
+	}
+
+	// sorted marks in paragraphs [startIndex, endIndex),
+	// or null if the pattern is not answerable
+	List<ZLTextMark> find(String text, int startIndex, int endIndex) {
+		final char[] pattern = normalize(text);
+		if (pattern == null) {
+			return null;
+		}
+		final ArrayList<ZLTextMark> marks = new ArrayList<ZLTextMark>();
+		final byte[] postings = myPostings;
+		final int[] suffixes = mySuffixes;
+		int low = 0;
+		int high = suffixes.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (compareWithPattern(suffixes[middle], pattern) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		for (int s = low; s < suffixes.length && compareWithPattern(suffixes[s], pattern) == 0; ++s) {
+			int i = Arrays.binarySearch(myWordStarts, suffixes[s]);
+			if (i < 0) {
+				i = -i - 2;
+			}
+			final int pos = suffixes[s] - myWordStarts[i];
+			int paragraphIndex = 0;
+			int offset = 0;
+			int index = myOffsets[i];
+			for (int k = 0; k < myCounts[i]; ++k) {
+				int delta = 0;
+				for (int shift = 0; ; shift += 7) {
+					final int b = postings[index++];
+					delta |= (b & 0x7F) << shift;
+					if ((b & 0x80) == 0) {
+						break;
+					}
+				}
+				int o = 0;
+				for (int shift = 0; ; shift += 7) {
+					final int b = postings[index++];
+					o |= (b & 0x7F) << shift;
+					if ((b & 0x80) == 0) {
+						break;
+					}
+				}
+				offset = delta == 0 ? offset + o : o;
+				paragraphIndex += delta;
+				if (paragraphIndex >= startIndex && paragraphIndex < endIndex) {
+					marks.add(new ZLTextMark(paragraphIndex, offset + pos, pattern.length));
+				}
+			}
+		}
+		Collections.sort(marks);
+		return marks;
+	}
+
+	void save(ZLTextPlainModel model, String fileName) throws IOException {
+		final File file = new File(fileName);
+		final File tempFile = new File(fileName + ".tmp");
+		file.getParentFile().mkdirs();
+		DataOutputStream stream = null;
+		try {
+			stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			writeHeader(stream, model);
+			stream.writeInt(myWords.length);
+			for (int i = 0; i < myWords.length; ++i) {
+				stream.writeUTF(myWords[i]);
+				stream.writeInt(myCounts[i]);
+				stream.writeInt(myOffsets[i + 1] - myOffsets[i]);
+			}
+			stream.writeInt(myPostings.length);
+			stream.write(myPostings);
+			stream.close();
+			stream = null;
+			tempFile.renameTo(file);
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+				tempFile.delete();
+			}
+		}
+	}
+
+	private static void writeHeader(DataOutputStream stream, ZLTextPlainModel model) throws IOException {
+		final int paragraphsNumber = model.getParagraphsNumber();
+		stream.writeInt(VERSION);
+		stream.writeInt(paragraphsNumber);
+		stream.writeInt(paragraphsNumber > 0 ? model.getTextLength(paragraphsNumber - 1) : 0);
+	}
+
+	// returns null if there is no index for this model in the file
+	static ZLTextSearchIndex load(ZLTextPlainModel model, String fileName) {
+		final File file = new File(fileName);
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream stream = null;
+		try {
+			stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			final int paragraphsNumber = model.getParagraphsNumber();
+			if (stream.readInt() != VERSION ||
+				stream.readInt() != paragraphsNumber ||
+				stream.readInt() != (paragraphsNumber > 0 ? model.getTextLength(paragraphsNumber - 1) : 0)) {
+				return null;
+			}
+			final int wordsNumber = stream.readInt();
+			final String[] words = new String[wordsNumber];
+			final int[] counts = new int[wordsNumber];
+			final int[] offsets = new int[wordsNumber + 1];
+			for (int i = 0; i < wordsNumber; ++i) {
+				words[i] = stream.readUTF();
+				counts[i] = stream.readInt();
+				offsets[i + 1] = offsets[i] + stream.readInt();
+			}
+			final byte[] postings = new byte[stream.readInt()];
+			if (postings.length != offsets[wordsNumber]) {
+				return null;
+			}
+			stream.readFully(postings);
+			return new ZLTextSearchIndex(words, counts, offsets, postings);
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -162,4 +162,52 @@ public abstract class ZLTextStyleEntry {
 		}
 		return (myFontModifiers & modifier) == 0 ? ZLBoolean3.B3_FALSE : ZLBoolean3.B3_TRUE;
 	}
+
+	// entries are compared by content, so equal entries from different paragraphs
+	// share the same interned decorated style
+	@Override
+	public boolean equals(Object other) {
+		if (other == this) {
+			return true;
+		}
+		if (other == null || other.getClass() != getClass()) {
+			return false;
+		}
+		final ZLTextStyleEntry entry = (ZLTextStyleEntry)other;
+		if (myFeatureMask != entry.myFeatureMask ||
+			myAlignmentType != entry.myAlignmentType ||
+			mySupportedFontModifiers != entry.mySupportedFontModifiers ||
+			myFontModifiers != entry.myFontModifiers) {
+			return false;
+		}
+		if (myFontFamily == null ? entry.myFontFamily != null : !myFontFamily.equals(entry.myFontFamily)) {
+			return false;
+		}
+		for (int i = 0; i < Feature.NUMBER_OF_LENGTHS; ++i) {
+			final Length l0 = myLengths[i];
+			final Length l1 = entry.myLengths[i];
+			if (l0 == null ? l1 != null : (l1 == null || l0.Size != l1.Size || l0.Unit != l1.Unit)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode() {
+		int hash = getClass().hashCode();
+		hash = hash * 31 + myFeatureMask;
+		hash = hash * 31 + myAlignmentType;
+		hash = hash * 31 + mySupportedFontModifiers;
+		hash = hash * 31 + myFontModifiers;
+		if (myFontFamily != null) {
+			hash = hash * 31 + myFontFamily.hashCode();
+		}
+		for (Length length : myLengths) {
+			if (length != null) {
+				hash = hash * 31 + (length.Size << 8) + length.Unit;
+			}
+		}
+		return hash;
+	}
 }
@@ -29,40 +29,28 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 	private int myBlockOffset;
 
 	public ZLTextWritablePlainModel(String id, String language, int arraySize, int dataBlockSize, String directoryName, String extension, Map<String,ZLImage> imageMap) {
-		super(
-			id, language,
-			new int[arraySize], new int[arraySize],
-			new int[arraySize], new int[arraySize],
-			new byte[arraySize],
-			new CachedCharStorage(dataBlockSize, directoryName, extension),
+		this(
+			id, language, arraySize,
+			new MappedCharStorage(dataBlockSize, directoryName, extension),
 			imageMap
 		);
 	}
 
-	private void extend() {
-		final int size = myStartEntryIndices.length;
-		myStartEntryIndices = ZLArrayUtils.createCopy(myStartEntryIndices, size, size << 1);
-		myStartEntryOffsets = ZLArrayUtils.createCopy(myStartEntryOffsets, size, size << 1);
-		myParagraphLengths = ZLArrayUtils.createCopy(myParagraphLengths, size, size << 1);
-		myTextSizes = ZLArrayUtils.createCopy(myTextSizes, size, size << 1);
-		myParagraphKinds = ZLArrayUtils.createCopy(myParagraphKinds, size, size << 1);
+	public ZLTextWritablePlainModel(String id, String language, int arraySize, CharStorage storage, Map<String,ZLImage> imageMap) {
+		super(id, language, new ZLTextParagraphIndex(arraySize), storage, imageMap);
 	}
 
 	public void createParagraph(byte kind) {
-		final int index = myParagraphsNumber++;
-		int[] startEntryIndices = myStartEntryIndices;
-		if (index == startEntryIndices.length) {
-			extend();
-			startEntryIndices = myStartEntryIndices;
-		}
-		if (index > 0) {
-			myTextSizes[index] = myTextSizes[index - 1];
-		}
+		final ZLTextParagraphIndex paragraphs = myParagraphs;
+		final int size = paragraphs.size();
 		final int dataSize = myStorage.size();
-		startEntryIndices[index] = (dataSize == 0) ? 0 : (dataSize - 1);
-		myStartEntryOffsets[index] = myBlockOffset;
-		myParagraphLengths[index] = 0;
-		myParagraphKinds[index] = kind;
+		paragraphs.add(
+			(dataSize == 0) ? 0 : (dataSize - 1),
+			myBlockOffset,
+			0,
+			size > 0 ? paragraphs.getTextSize(size - 1) : 0,
+			kind
+		);
 	}
 
 	private char[] getDataBlock(int minimumLength) {
@@ -84,20 +72,20 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 
 	public void addText(char[] text, int offset, int length) {
 		char[] block = getDataBlock(3 + length);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		int blockOffset = myBlockOffset;
 		block[blockOffset++] = (char)ZLTextParagraph.Entry.TEXT;
 		block[blockOffset++] = (char)length;
 		block[blockOffset++] = (char)(length >> 16);
 		System.arraycopy(text, offset, block, blockOffset, length);
 		myBlockOffset = blockOffset + length;
-		myTextSizes[myParagraphsNumber - 1] += length;
+		myParagraphs.addTextToLast(length);
 	}
 
 	public void addImage(String id, short vOffset, boolean isCover) {
 		final int len = id.length();
 		final char[] block = getDataBlock(4 + len);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		int blockOffset = myBlockOffset;
 		block[blockOffset++] = (char)ZLTextParagraph.Entry.IMAGE;
 		block[blockOffset++] = (char)vOffset;
@@ -110,7 +98,7 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 
 	public void addControl(byte textKind, boolean isStart) {
 		final char[] block = getDataBlock(2);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		block[myBlockOffset++] = (char)ZLTextParagraph.Entry.CONTROL;
 		short kind = textKind;
 		if (isStart) {
@@ -122,7 +110,7 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 	public void addHyperlinkControl(byte textKind, byte hyperlinkType, String label) {
 		final short labelLength = (short)label.length();
 		final char[] block = getDataBlock(3 + labelLength);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		int blockOffset = myBlockOffset;
 		block[blockOffset++] = (char)ZLTextParagraph.Entry.HYPERLINK_CONTROL;
 		block[blockOffset++] = (char)((hyperlinkType << 8) + textKind);
@@ -139,7 +127,7 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 			len += mask & 1;
 		}
 		final char[] block = getDataBlock(len);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		block[myBlockOffset++] = (char)ZLTextParagraph.Entry.STYLE; // CSS or OTHER
 		block[myBlockOffset++] = (char)entry.getMask();
 		if (entry.isLeftIndentSupported()) {
@@ -156,14 +144,14 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 
 	public void addFixedHSpace(short length) {
 		final char[] block = getDataBlock(2);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		block[myBlockOffset++] = (char)ZLTextParagraph.Entry.FIXED_HSPACE;
 		block[myBlockOffset++] = (char)length;
 	}
 
 	public void addBidiReset() {
 		final char[] block = getDataBlock(1);
-		++myParagraphLengths[myParagraphsNumber - 1];
+		myParagraphs.addEntryToLast();
 		block[myBlockOffset++] = (char)ZLTextParagraph.Entry.RESET_BIDI;
 	}
 
@@ -173,11 +161,6 @@ public final class ZLTextWritablePlainModel extends ZLTextPlainModel implements
 			myStorage.freezeLastBlock();
 			myCurrentDataBlock = null;
 		}
-		final int size = myParagraphsNumber;
-		myStartEntryIndices = ZLArrayUtils.createCopy(myStartEntryIndices, size, size);
-		myStartEntryOffsets = ZLArrayUtils.createCopy(myStartEntryOffsets, size, size);
-		myParagraphLengths = ZLArrayUtils.createCopy(myParagraphLengths, size, size);
-		myParagraphKinds = ZLArrayUtils.createCopy(myParagraphKinds, size, size);
 		*/
 	}
 }
@@ -28,10 +28,154 @@ final class ZLTextElementAreaVector {
 		Collections.synchronizedList(new ArrayList<ZLTextRegion>());
 	private ZLTextRegion myCurrentElementRegion;
 
+	// immutable lookup structures for the filled page; built on the first
+	// query after the last add() and read without locking
+	private volatile Index myIndex;
+
+	private static final int BAND_HEIGHT = 32;
+
+	private static final class Index {
+		final ZLTextElementArea[] Areas;
+		final ZLTextRegion[] Regions;
+		private final HashMap<ZLTextRegion.Soul,Integer> myRegionIndices;
+		// regions are put into horizontal bands of BAND_HEIGHT pixels
+		// they intersect; myBands[i] lists region indices in the increasing order
+		private final int myTop;
+		private final int[][] myBands;
+
+		Index(List<ZLTextElementArea> areas, List<ZLTextRegion> regions) {
+			Areas = areas.toArray(new ZLTextElementArea[areas.size()]);
+			Regions = regions.toArray(new ZLTextRegion[regions.size()]);
+			myRegionIndices = new HashMap<ZLTextRegion.Soul,Integer>(Regions.length * 2);
+
+			final int[] tops = new int[Regions.length];
+			final int[] bottoms = new int[Regions.length];
+			int top = Integer.MAX_VALUE;
+			int bottom = Integer.MIN_VALUE;
+			for (int i = 0; i < Regions.length; ++i) {
+				myRegionIndices.put(Regions[i].getSoul(), i);
+				int regionTop = Integer.MAX_VALUE;
+				int regionBottom = Integer.MIN_VALUE;
+				for (ZLTextElementArea area : Regions[i].textAreas()) {
+					regionTop = Math.min(regionTop, area.YStart);
+					regionBottom = Math.max(regionBottom, area.YEnd);
+				}
+				tops[i] = regionTop;
+				bottoms[i] = regionBottom;
+				top = Math.min(top, regionTop);
+				bottom = Math.max(bottom, regionBottom);
+			}
+
+			myTop = top;
+			final int bandsNumber = Regions.length > 0 ? (bottom - top) / BAND_HEIGHT + 1 : 0;
+			final int[] sizes = new int[bandsNumber];
+			for (int i = 0; i < Regions.length; ++i) {
+				for (int b = band(tops[i]); b <= band(bottoms[i]); ++b) {
+					++sizes[b];
+				}
+			}
+			myBands = new int[bandsNumber][];
+			for (int b = 0; b < bandsNumber; ++b) {
+				myBands[b] = new int[sizes[b]];
+				sizes[b] = 0;
+			}
+			for (int i = 0; i < Regions.length; ++i) {
+				for (int b = band(tops[i]); b <= band(bottoms[i]); ++b) {
+					myBands[b][sizes[b]++] = i;
+				}
+			}
+		}
+
+		private int band(int y) {
+			return (y - myTop) / BAND_HEIGHT;
+		}
+
+		int indexOf(ZLTextRegion region) {
+			if (region == null) {
+				return -1;
+			}
+			final Integer index = myRegionIndices.get(region.getSoul());
+			return index != null && Regions[index] == region ? index : -1;
+		}
+
+		ZLTextRegion getRegion(ZLTextRegion.Soul soul) {
+			final Integer index = myRegionIndices.get(soul);
+			return index != null ? Regions[index] : null;
+		}
+
+		// vertical distance from y to the band
+		private int gap(int b, int y) {
+			final int top = myTop + b * BAND_HEIGHT;
+			return y < top ? top - y : Math.max(0, y - (top + BAND_HEIGHT - 1));
+		}
+
+		// the distance from a point to a region is not less than the vertical
+		// distance to its band, so bands are visited in the order of that distance
+		// until no closer region can be found; the first region in the text order
+		// wins for equal distances, as in the plain scan
+		ZLTextRegion findRegion(int x, int y, int maxDistance, ZLTextRegion.Filter filter) {
+			final int bandsNumber = myBands.length;
+			if (bandsNumber == 0) {
+				return null;
+			}
+			final boolean[] visited = new boolean[Regions.length];
+			int bestIndex = -1;
+			int distance = maxDistance + 1;
+			final int center = Math.max(0, Math.min(band(y), bandsNumber - 1));
+			for (int k = 0; ; ++k) {
+				boolean found = false;
+				for (int b = center - k; b <= center + k; b += Math.max(1, 2 * k)) {
+					if (b < 0 || b >= bandsNumber || gap(b, y) > distance) {
+						continue;
+					}
+					found = true;
+					for (int i : myBands[b]) {
+						if (visited[i]) {
+							continue;
+						}
+						visited[i] = true;
+						final ZLTextRegion region = Regions[i];
+						if (filter.accepts(region)) {
+							final int d = region.distanceTo(x, y);
+							if (d < distance || (d == distance && i < bestIndex)) {
+								bestIndex = i;
+								distance = d;
+							}
+						}
+					}
+				}
+				if (!found && (center - k < 0 || gap(center - k, y) > distance) &&
+					(center + k >= bandsNumber || gap(center + k, y) > distance)) {
+					break;
+				}
+			}
+			return bestIndex != -1 ? Regions[bestIndex] : null;
+		}
+	}
+
+	private Index index() {
+		Index index = myIndex;
+		if (index == null) {
+			synchronized (myAreas) {
+				index = new Index(myAreas, myElementRegions);
+				myIndex = index;
+			}
+		}
+		return index;
+	}
+
 	void clear() {
-		myElementRegions.clear();
-		myCurrentElementRegion = null;
-		myAreas.clear();
+		synchronized (myAreas) {
+			myElementRegions.clear();
+			myCurrentElementRegion = null;
+			myAreas.clear();
+			myIndex = null;
+		}
+	}
+
+	// is called when the page is filled
+	void freeze() {
+		index();
 	}
 
 	public int size() {
@@ -44,19 +188,18 @@ final class ZLTextElementAreaVector {
 	}
 
 	public ZLTextElementArea getFirstArea() {
-		synchronized (myAreas) {
-			return myAreas.isEmpty() ? null : myAreas.get(0);
-		}
+		final ZLTextElementArea[] areas = index().Areas;
+		return areas.length == 0 ? null : areas[0];
 	}
 
 	public ZLTextElementArea getLastArea() {
-		synchronized (myAreas) {
-			return myAreas.isEmpty() ? null : myAreas.get(myAreas.size() - 1);
-		}
+		final ZLTextElementArea[] areas = index().Areas;
+		return areas.length == 0 ? null : areas[areas.length - 1];
 	}
 
 	public boolean add(ZLTextElementArea area) {
 		synchronized (myAreas) {
+			myIndex = null;
 			if (myCurrentElementRegion != null
 				&& myCurrentElementRegion.getSoul().accepts(area)) {
 				myCurrentElementRegion.extend();
@@ -81,174 +224,158 @@ final class ZLTextElementAreaVector {
 		}
 	}
 
+	// areas go in the text order, so the first area at or after position
+	// is found by binary search
+	private static int firstNotBefore(ZLTextElementArea[] areas, ZLTextPosition position) {
+		int low = 0;
+		int high = areas.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (position.compareTo(areas[middle]) > 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
 	ZLTextElementArea getFirstAfter(ZLTextPosition position) {
 		if (position == null) {
 			return null;
 		}
-		synchronized (myAreas) {
-			for (ZLTextElementArea area : myAreas) {
-				if (position.compareTo(area) <= 0) {
-					return area;
-				}
-			}
-		}
-		return null;
+		final ZLTextElementArea[] areas = index().Areas;
+		final int index = firstNotBefore(areas, position);
+		return index < areas.length ? areas[index] : null;
 	}
 
 	ZLTextElementArea getLastBefore(ZLTextPosition position) {
 		if (position == null) {
 			return null;
 		}
-		synchronized (myAreas) {
-			for (int i = myAreas.size() - 1; i >= 0; --i) {
-				final ZLTextElementArea area = myAreas.get(i);
-				if (position.compareTo(area) > 0) {
-					return area;
-				}
-			}
-		}
-		return null;
+		final ZLTextElementArea[] areas = index().Areas;
+		final int index = firstNotBefore(areas, position);
+		return index > 0 ? areas[index - 1] : null;
 	}
 
 	ZLTextElementArea binarySearch(int x, int y) {
-		synchronized (myAreas) {
-			int left = 0;
-			int right = myAreas.size();
-			while (left < right) {
-				final int middle = (left + right) / 2;
-				final ZLTextElementArea candidate = myAreas.get(middle);
-				if (candidate.YStart > y) {
-					right = middle;
-				} else if (candidate.YEnd < y) {
-					left = middle + 1;
-				} else if (candidate.XStart > x) {
-					right = middle;
-				} else if (candidate.XEnd < x) {
-					left = middle + 1;
-				} else {
-					return candidate;
-				}
+		final ZLTextElementArea[] areas = index().Areas;
+		int left = 0;
+		int right = areas.length;
+		while (left < right) {
+			final int middle = (left + right) / 2;
+			final ZLTextElementArea candidate = areas[middle];
+			if (candidate.YStart > y) {
+				right = middle;
+			} else if (candidate.YEnd < y) {
+				left = middle + 1;
+			} else if (candidate.XStart > x) {
+				right = middle;
+			} else if (candidate.XEnd < x) {
+				left = middle + 1;
+			} else {
+				return candidate;
 			}
-			return null;
 		}
+		return null;
 	}
 
 	ZLTextRegion getRegion(ZLTextRegion.Soul soul) {
 		if (soul == null) {
 			return null;
 		}
-		synchronized (myElementRegions) {
-			for (ZLTextRegion region : myElementRegions) {
-				if (soul.equals(region.getSoul())) {
-					return region;
-				}
-			}
-		}
-		return null;
+		return index().getRegion(soul);
 	}
 
 	ZLTextRegion findRegion(int x, int y, int maxDistance, ZLTextRegion.Filter filter) {
-		ZLTextRegion bestRegion = null;
-		int distance = maxDistance + 1;
-		synchronized (myElementRegions) {
-			for (ZLTextRegion region : myElementRegions) {
-				if (filter.accepts(region)) {
-					final int d = region.distanceTo(x, y);
-					if (d < distance) {
-						bestRegion = region;
-						distance = d;
-					}
-				}
-			}
-		}
-		return bestRegion;
+		return index().findRegion(x, y, maxDistance, filter);
 	}
 
 	protected ZLTextRegion nextRegion(ZLTextRegion currentRegion, ZLTextView.Direction direction, ZLTextRegion.Filter filter) {
-		synchronized (myElementRegions) {
-			if (myElementRegions.isEmpty()) {
-				return null;
-			}
+		final Index snapshot = index();
+		final List<ZLTextRegion> regions = Arrays.asList(snapshot.Regions);
+		if (regions.isEmpty()) {
+			return null;
+		}
 
-			int index = currentRegion != null ? myElementRegions.indexOf(currentRegion) : -1;
-
-			switch (direction) {
-				case rightToLeft:
-				case up:
-					if (index == -1) {
-						index = myElementRegions.size() - 1;
-					} else if (index == 0) {
-						return null;
-					} else {
-						--index;
-					}
-					break;
-				case leftToRight:
-				case down:
-					if (index == myElementRegions.size() - 1) {
-						return null;
-					} else {
-						++index;
-					}
-					break;
-			}
+		int index = snapshot.indexOf(currentRegion);
 
-			switch (direction) {
-				case rightToLeft:
-					for (; index >= 0; --index) {
-						final ZLTextRegion candidate = myElementRegions.get(index);
-						if (filter.accepts(candidate) && candidate.isAtLeftOf(currentRegion)) {
-							return candidate;
-						}
+		switch (direction) {
+			case rightToLeft:
+			case up:
+				if (index == -1) {
+					index = regions.size() - 1;
+				} else if (index == 0) {
+					return null;
+				} else {
+					--index;
+				}
+				break;
+			case leftToRight:
+			case down:
+				if (index == regions.size() - 1) {
+					return null;
+				} else {
+					++index;
+				}
+				break;
+		}
+
+		switch (direction) {
+			case rightToLeft:
+				for (; index >= 0; --index) {
+					final ZLTextRegion candidate = regions.get(index);
+					if (filter.accepts(candidate) && candidate.isAtLeftOf(currentRegion)) {
+						return candidate;
 					}
-					break;
-				case leftToRight:
-					for (; index < myElementRegions.size(); ++index) {
-						final ZLTextRegion candidate = myElementRegions.get(index);
-						if (filter.accepts(candidate) && candidate.isAtRightOf(currentRegion)) {
-							return candidate;
-						}
+				}
+				break;
+			case leftToRight:
+				for (; index < regions.size(); ++index) {
+					final ZLTextRegion candidate = regions.get(index);
+					if (filter.accepts(candidate) && candidate.isAtRightOf(currentRegion)) {
+						return candidate;
 					}
-					break;
-				case down:
-				{
-					ZLTextRegion firstCandidate = null;
-					for (; index < myElementRegions.size(); ++index) {
-						final ZLTextRegion candidate = myElementRegions.get(index);
-						if (!filter.accepts(candidate)) {
-							continue;
-						}
-						if (candidate.isExactlyUnder(currentRegion)) {
-							return candidate;
-						}
-						if (firstCandidate == null && candidate.isUnder(currentRegion)) {
-							firstCandidate = candidate;
-						}
+				}
+				break;
+			case down:
+			{
+				ZLTextRegion firstCandidate = null;
+				for (; index < regions.size(); ++index) {
+					final ZLTextRegion candidate = regions.get(index);
+					if (!filter.accepts(candidate)) {
+						continue;
 					}
-					if (firstCandidate != null) {
-						return firstCandidate;
+					if (candidate.isExactlyUnder(currentRegion)) {
+						return candidate;
+					}
+					if (firstCandidate == null && candidate.isUnder(currentRegion)) {
+						firstCandidate = candidate;
 					}
-					break;
 				}
-				case up:
-					ZLTextRegion firstCandidate = null;
-					for (; index >= 0; --index) {
-						final ZLTextRegion candidate = myElementRegions.get(index);
-						if (!filter.accepts(candidate)) {
-							continue;
-						}
-						if (candidate.isExactlyOver(currentRegion)) {
-							return candidate;
-						}
-						if (firstCandidate == null && candidate.isOver(currentRegion)) {
-							firstCandidate = candidate;
-						}
+				if (firstCandidate != null) {
+					return firstCandidate;
+				}
+				break;
+			}
+			case up:
+				ZLTextRegion firstCandidate = null;
+				for (; index >= 0; --index) {
+					final ZLTextRegion candidate = regions.get(index);
+					if (!filter.accepts(candidate)) {
+						continue;
 					}
-					if (firstCandidate != null) {
-						return firstCandidate;
+					if (candidate.isExactlyOver(currentRegion)) {
+						return candidate;
 					}
-					break;
-			}
+					if (firstCandidate == null && candidate.isOver(currentRegion)) {
+						firstCandidate = candidate;
+					}
+				}
+				if (firstCandidate != null) {
+					return firstCandidate;
+				}
+				break;
 		}
 		return null;
 	}
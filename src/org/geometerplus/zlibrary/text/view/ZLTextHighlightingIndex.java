@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.util.*;
+
+// Immutable snapshot of highlightings sorted by start position; MaxEnds[i]
+// is the greatest end position among the first i + 1 highlightings, so
+// the ones that may intersect a range are found by two binary searches.
+// Changes create a new snapshot, readers need no lock.
+final class ZLTextHighlightingIndex {
+	static final ZLTextHighlightingIndex EMPTY =
+		new ZLTextHighlightingIndex(new ZLTextHighlighting[0]);
+
+	private final ZLTextHighlighting[] myHighlightings;
+	private final ZLTextPosition[] myMaxEnds;
+
+	// highlightings must be sorted and contain no equal elements
+	private ZLTextHighlightingIndex(ZLTextHighlighting[] highlightings) {
+		myHighlightings = highlightings;
+		myMaxEnds = new ZLTextPosition[highlightings.length];
+		ZLTextPosition maxEnd = null;
+		for (int i = 0; i < highlightings.length; ++i) {
+			final ZLTextPosition end = highlightings[i].getEndPosition();
+			if (maxEnd == null || end.compareTo(maxEnd) > 0) {
+				maxEnd = end;
+			}
+			myMaxEnds[i] = maxEnd;
+		}
+	}
+
+	boolean isEmpty() {
+		return myHighlightings.length == 0;
+	}
+
+	// equal highlightings are not added twice, as in a TreeSet
+	ZLTextHighlightingIndex add(Collection<? extends ZLTextHighlighting> highlightings) {
+		if (highlightings.isEmpty()) {
+			return this;
+		}
+		final TreeSet<ZLTextHighlighting> set =
+			new TreeSet<ZLTextHighlighting>(Arrays.asList(myHighlightings));
+		set.addAll(highlightings);
+		return new ZLTextHighlightingIndex(set.toArray(new ZLTextHighlighting[set.size()]));
+	}
+
+	ZLTextHighlightingIndex remove(Class<? extends ZLTextHighlighting> type) {
+		final ArrayList<ZLTextHighlighting> rest = new ArrayList<ZLTextHighlighting>(myHighlightings.length);
+		for (ZLTextHighlighting h : myHighlightings) {
+			if (!type.isInstance(h)) {
+				rest.add(h);
+			}
+		}
+		if (rest.size() == myHighlightings.length) {
+			return this;
+		}
+		return new ZLTextHighlightingIndex(rest.toArray(new ZLTextHighlighting[rest.size()]));
+	}
+
+	// highlightings with start <= end and end position >= start, in the start order;
+	// callers check the exact intersection
+	List<ZLTextHighlighting> candidates(ZLTextPosition start, ZLTextPosition end) {
+		final ZLTextHighlighting[] highlightings = myHighlightings;
+
+		// the first one with start position > end
+		int low = 0;
+		int high = highlightings.length;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (highlightings[middle].getStartPosition().compareTo(end) <= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		final int toIndex = low;
+
+		// the first one with max end >= start; max ends are not decreasing
+		low = 0;
+		high = toIndex;
+		while (low < high) {
+			final int middle = (low + high) >>> 1;
+			if (myMaxEnds[middle].compareTo(start) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		if (low == toIndex) {
+			return Collections.emptyList();
+		}
+		final ArrayList<ZLTextHighlighting> result = new ArrayList<ZLTextHighlighting>();
+		for (int i = low; i < toIndex; ++i) {
+			if (highlightings[i].getEndPosition().compareTo(start) >= 0) {
+				result.add(highlightings[i]);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.io.*;
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+import org.geometerplus.zlibrary.text.model.ZLTextModel;
+
+// Line breaking results, per paragraph & layout signature (text width,
+// metrics, style options); limited by the total number of stored ints.
+// Lines of the current model can be stored in a file & read back
+// when the same model is opened again; the file I/O is done by FileData
+// out of the view lock.
+final class ZLTextLayoutCache {
+	private static final int VERSION = 1;
+	private static final int RECORD_SIZE = 13;
+	private static final int MAX_SIZE = 256 * 1024;
+
+	private static final class Key {
+		final ZLTextModel Model;
+		final int ParagraphIndex;
+		final long Signature;
+
+		Key(ZLTextModel model, int paragraphIndex, long signature) {
+			Model = model;
+			ParagraphIndex = paragraphIndex;
+			Signature = signature;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			final Key k = (Key)o;
+			return
+				Model == k.Model &&
+				ParagraphIndex == k.ParagraphIndex &&
+				Signature == k.Signature;
+		}
+
+		@Override
+		public int hashCode() {
+			return Model.hashCode() + 239 * ParagraphIndex + (int)(Signature ^ (Signature >>> 32));
+		}
+	}
+
+	// records are sorted by line start (element index, char index)
+	private static final class Lines {
+		final int ParagraphLength;
+		int[] Data;
+		int Size;
+
+		Lines(int paragraphLength, int capacity) {
+			ParagraphLength = paragraphLength;
+			Data = new int[RECORD_SIZE * Math.max(capacity, 1)];
+		}
+
+		int find(int elementIndex, int charIndex) {
+			int low = 0;
+			int high = Size - 1;
+			while (low <= high) {
+				final int middle = (low + high) >>> 1;
+				final int offset = middle * RECORD_SIZE;
+				int diff = Data[offset] - elementIndex;
+				if (diff == 0) {
+					diff = Data[offset + 1] - charIndex;
+				}
+				if (diff < 0) {
+					low = middle + 1;
+				} else if (diff > 0) {
+					high = middle - 1;
+				} else {
+					return middle;
+				}
+			}
+			return -low - 1;
+		}
+
+		void insert(int index, ZLTextLineInfo info) {
+			if (Data.length == Size * RECORD_SIZE) {
+				Data = ZLArrayUtils.createCopy(Data, Size * RECORD_SIZE, Size * RECORD_SIZE * 2);
+			}
+			final int offset = index * RECORD_SIZE;
+			System.arraycopy(Data, offset, Data, offset + RECORD_SIZE, (Size - index) * RECORD_SIZE);
+			Data[offset] = info.StartElementIndex;
+			Data[offset + 1] = info.StartCharIndex;
+			Data[offset + 2] = info.RealStartElementIndex;
+			Data[offset + 3] = info.RealStartCharIndex;
+			Data[offset + 4] = info.EndElementIndex;
+			Data[offset + 5] = info.EndCharIndex;
+			Data[offset + 6] = info.IsVisible ? 1 : 0;
+			Data[offset + 7] = info.LeftIndent;
+			Data[offset + 8] = info.Width;
+			Data[offset + 9] = info.Height;
+			Data[offset + 10] = info.Descent;
+			Data[offset + 11] = info.VSpaceAfter;
+			Data[offset + 12] = info.SpaceCounter;
+			++Size;
+		}
+
+		void restore(int index, ZLTextLineInfo info) {
+			final int offset = index * RECORD_SIZE;
+			info.RealStartElementIndex = Data[offset + 2];
+			info.RealStartCharIndex = Data[offset + 3];
+			info.EndElementIndex = Data[offset + 4];
+			info.EndCharIndex = Data[offset + 5];
+			info.IsVisible = Data[offset + 6] != 0;
+			info.LeftIndent = Data[offset + 7];
+			info.Width = Data[offset + 8];
+			info.Height = Data[offset + 9];
+			info.Descent = Data[offset + 10];
+			info.VSpaceAfter = Data[offset + 11];
+			info.SpaceCounter = Data[offset + 12];
+		}
+	}
+
+	private final LinkedHashMap<Key,Lines> myMap = new LinkedHashMap<Key,Lines>(64, 0.75f, true);
+	private int myDataSize;
+
+	private ZLTextModel myModel;
+	private String myFileName;
+	private boolean myIsChanged;
+
+	// fills the line end & sizes for info if the line is known;
+	// StartStyle is not stored, it is up to the caller
+	boolean restore(ZLTextLineInfo info, long signature, int endIndex) {
+		final Lines lines = myMap.get(new Key(info.ParagraphCursor.Model, info.ParagraphCursor.Index, signature));
+		if (lines == null || lines.ParagraphLength != info.ParagraphCursorLength) {
+			return false;
+		}
+		final int index = lines.find(info.StartElementIndex, info.StartCharIndex);
+		if (index < 0 || lines.Data[index * RECORD_SIZE + 4] > endIndex) {
+			return false;
+		}
+		lines.restore(index, info);
+		return true;
+	}
+
+	void store(ZLTextLineInfo info, long signature) {
+		final ZLTextParagraphCursor cursor = info.ParagraphCursor;
+		final Key key = new Key(cursor.Model, cursor.Index, signature);
+		Lines lines = myMap.get(key);
+		if (lines == null || lines.ParagraphLength != info.ParagraphCursorLength) {
+			if (lines != null) {
+				myDataSize -= lines.Data.length;
+			}
+			lines = new Lines(info.ParagraphCursorLength, 4);
+			myMap.put(key, lines);
+			myDataSize += lines.Data.length;
+		}
+		final int index = lines.find(info.StartElementIndex, info.StartCharIndex);
+		if (index >= 0) {
+			return;
+		}
+		myDataSize -= lines.Data.length;
+		lines.insert(-index - 1, info);
+		myDataSize += lines.Data.length;
+		if (cursor.Model == myModel) {
+			myIsChanged = true;
+		}
+		removeOldEntries();
+	}
+
+	private void removeOldEntries() {
+		if (myDataSize <= MAX_SIZE) {
+			return;
+		}
+		for (Iterator<Lines> it = myMap.values().iterator(); it.hasNext() && myDataSize > MAX_SIZE; ) {
+			myDataSize -= it.next().Data.length;
+			it.remove();
+		}
+	}
+
+	void clear() {
+		myMap.clear();
+		myDataSize = 0;
+	}
+
+	// switches the cache to the model; returns the file to be read by
+	// FileData.load() & passed to addLoaded(), or null if there is no file;
+	// the lines of the previous model are to be taken by changedLines() before
+	FileData setModel(ZLTextModel model, String fileName) {
+		myModel = model;
+		myFileName = fileName;
+		myIsChanged = false;
+		return model != null && fileName != null ? new FileData(model, fileName) : null;
+	}
+
+	// copies the lines of the current model to be written by FileData.save();
+	// null if nothing is changed since the last call
+	FileData changedLines() {
+		if (myModel == null || myFileName == null || !myIsChanged) {
+			return null;
+		}
+		myIsChanged = false;
+
+		final FileData data = new FileData(myModel, myFileName);
+		for (Map.Entry<Key,Lines> entry : myMap.entrySet()) {
+			if (entry.getKey().Model != myModel) {
+				continue;
+			}
+			final Lines lines = entry.getValue();
+			final Lines copy = new Lines(lines.ParagraphLength, lines.Size);
+			System.arraycopy(lines.Data, 0, copy.Data, 0, lines.Size * RECORD_SIZE);
+			copy.Size = lines.Size;
+			data.Entries.put(entry.getKey(), copy);
+		}
+		return data;
+	}
+
+	// lines computed while the file was read are kept
+	void addLoaded(FileData data) {
+		if (data.Model != myModel) {
+			return;
+		}
+		for (Map.Entry<Key,Lines> entry : data.Entries.entrySet()) {
+			if (!myMap.containsKey(entry.getKey())) {
+				myMap.put(entry.getKey(), entry.getValue());
+				myDataSize += entry.getValue().Data.length;
+			}
+		}
+		removeOldEntries();
+	}
+
+	private static int textLength(ZLTextModel model) {
+		final int paragraphsNumber = model.getParagraphsNumber();
+		return paragraphsNumber > 0 ? model.getTextLength(paragraphsNumber - 1) : 0;
+	}
+
+	static final class FileData {
+		final ZLTextModel Model;
+		final String FileName;
+		final int ParagraphsNumber;
+		final int TextLength;
+		final HashMap<Key,Lines> Entries = new HashMap<Key,Lines>();
+
+		// is created under the view lock, the model is not read after that
+		private FileData(ZLTextModel model, String fileName) {
+			Model = model;
+			FileName = fileName;
+			ParagraphsNumber = model.getParagraphsNumber();
+			TextLength = textLength(model);
+		}
+
+		void save() {
+			final File file = new File(FileName);
+			final File tempFile = new File(FileName + ".tmp");
+			file.getParentFile().mkdirs();
+			DataOutputStream stream = null;
+			try {
+				stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+				stream.writeInt(VERSION);
+				stream.writeInt(ParagraphsNumber);
+				stream.writeInt(TextLength);
+				for (Map.Entry<Key,Lines> entry : Entries.entrySet()) {
+					final Key key = entry.getKey();
+					final Lines lines = entry.getValue();
+					stream.writeBoolean(true);
+					stream.writeInt(key.ParagraphIndex);
+					stream.writeLong(key.Signature);
+					stream.writeInt(lines.ParagraphLength);
+					stream.writeInt(lines.Size);
+					for (int i = 0; i < lines.Size * RECORD_SIZE; ++i) {
+						stream.writeInt(lines.Data[i]);
+					}
+				}
+				stream.writeBoolean(false);
+				stream.close();
+				stream = null;
+				tempFile.renameTo(file);
+			} catch (IOException e) {
+				// the cache is optional, so just drop the file
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException ioe) {
+					}
+				}
+				tempFile.delete();
+			}
+		}
+
+		void load() {
+			final File file = new File(FileName);
+			if (!file.exists()) {
+				return;
+			}
+
+			int loadedSize = 0;
+			boolean isValid = false;
+			DataInputStream stream = null;
+			try {
+				stream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				if (stream.readInt() != VERSION ||
+					stream.readInt() != ParagraphsNumber ||
+					stream.readInt() != TextLength) {
+					return;
+				}
+				// save() writes no more than MAX_SIZE ints, so any greater size is garbage
+				while (stream.readBoolean()) {
+					final int paragraphIndex = stream.readInt();
+					final long signature = stream.readLong();
+					final int paragraphLength = stream.readInt();
+					final int size = stream.readInt();
+					if (paragraphIndex < 0 || paragraphIndex >= ParagraphsNumber ||
+						paragraphLength < 0 ||
+						size < 0 || size > (MAX_SIZE - loadedSize) / RECORD_SIZE) {
+						return;
+					}
+					final Lines lines = new Lines(paragraphLength, size);
+					for (int i = 0; i < size * RECORD_SIZE; ++i) {
+						lines.Data[i] = stream.readInt();
+					}
+					lines.Size = size;
+					if (!isValid(lines)) {
+						return;
+					}
+					Entries.put(new Key(Model, paragraphIndex, signature), lines);
+					loadedSize += lines.Data.length;
+				}
+				isValid = true;
+			} catch (Exception e) {
+				// IOException for truncated files, anything else for broken ones
+			} finally {
+				if (stream != null) {
+					try {
+						stream.close();
+					} catch (IOException e) {
+					}
+				}
+				if (!isValid) {
+					Entries.clear();
+					file.delete();
+				}
+			}
+		}
+	}
+
+	// checks everything restore() & find() rely on: element indices are
+	// in the paragraph, char indices are non-negative, records are sorted
+	private static boolean isValid(Lines lines) {
+		final int[] data = lines.Data;
+		for (int i = 0; i < lines.Size; ++i) {
+			final int offset = i * RECORD_SIZE;
+			for (int j = 0; j < 6; j += 2) {
+				if (data[offset + j] < 0 || data[offset + j] > lines.ParagraphLength ||
+					data[offset + j + 1] < 0) {
+					return false;
+				}
+			}
+			if (i > 0) {
+				final int diff = data[offset] != data[offset - RECORD_SIZE]
+					? data[offset] - data[offset - RECORD_SIZE]
+					: data[offset + 1] - data[offset + 1 - RECORD_SIZE];
+				if (diff <= 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
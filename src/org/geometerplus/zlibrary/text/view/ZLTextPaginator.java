@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.util.*;
+
+import org.geometerplus.zlibrary.core.util.ZLArrayUtils;
+
+import org.geometerplus.zlibrary.text.model.ZLTextModel;
+
+// Splits the whole model into pages on a background thread, using the same
+// layout code as the view; all the fields are guarded by the view lock,
+// the thread takes it for one paragraph at a time. The thread uses its own
+// line cache and paragraph cursors, the caches of the view are not touched.
+final class ZLTextPaginator {
+	private static final int MAX_CACHED_LINES = 512;
+
+	private final ZLTextView myView;
+
+	private ZLTextModel myModel;
+	private int myColumnWidth;
+	private int myHeight;
+	private boolean myTwoColumnView;
+
+	private int myGeneration;
+	private Thread myThread;
+	private boolean myIsComplete;
+	// all the running threads, including ones of the outdated generations
+	private final List<Thread> myThreads = new LinkedList<Thread>();
+
+	private int myPagesNumber;
+	private int[] myParagraphIndices = new int[64];
+	private int[] myElementIndices = new int[64];
+	private int[] myCharIndices = new int[64];
+
+	ZLTextPaginator(ZLTextView view) {
+		myView = view;
+	}
+
+	void reset() {
+		synchronized (myView) {
+			++myGeneration;
+			myThread = null;
+			myIsComplete = false;
+			myPagesNumber = 0;
+			myModel = null;
+		}
+	}
+
+	// resets the index and returns the threads that can still read the model;
+	// is called with the view lock held, the threads are joined after releasing it
+	Thread[] cancel() {
+		reset();
+		return myThreads.toArray(new Thread[myThreads.size()]);
+	}
+
+	static void join(Thread[] threads) {
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private boolean sameLayout(ZLTextModel model, int columnWidth, int height, boolean twoColumnView) {
+		return
+			myModel == model &&
+			myColumnWidth == columnWidth &&
+			myHeight == height &&
+			myTwoColumnView == twoColumnView;
+	}
+
+	// returns true if the page index for given layout is complete;
+	// otherwise starts building it (if it is not in progress yet)
+	boolean isReady(ZLTextModel model, int columnWidth, int height, boolean twoColumnView) {
+		if (sameLayout(model, columnWidth, height, twoColumnView)) {
+			if (myIsComplete || myThread != null) {
+				return myIsComplete;
+			}
+		}
+		reset();
+		if (model == null || model.getParagraphsNumber() == 0 || columnWidth <= 0 || height <= 0) {
+			return false;
+		}
+		myModel = model;
+		myColumnWidth = columnWidth;
+		myHeight = height;
+		myTwoColumnView = twoColumnView;
+
+		final int generation = myGeneration;
+		myThread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					paginate(generation);
+				} finally {
+					synchronized (myView) {
+						myThreads.remove(this);
+					}
+				}
+			}
+		};
+		myThreads.add(myThread);
+		myThread.setPriority(Thread.MIN_PRIORITY);
+		myThread.start();
+		return false;
+	}
+
+	int getPagesNumber() {
+		return myPagesNumber;
+	}
+
+	// 1-based number of the page containing given position
+	int getPageNumber(ZLTextWordCursor cursor) {
+		int paragraphIndex = cursor.getParagraphIndex();
+		int elementIndex = cursor.getElementIndex();
+		int charIndex = cursor.getCharIndex();
+		if (cursor.isEndOfParagraph() && !cursor.getParagraphCursor().isLast()) {
+			++paragraphIndex;
+			elementIndex = 0;
+			charIndex = 0;
+		}
+
+		int low = 0;
+		int high = myPagesNumber - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) / 2;
+			if (compare(middle, paragraphIndex, elementIndex, charIndex) <= 0) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low + 1;
+	}
+
+	ZLTextPosition getPageStart(int pageNumber) {
+		final int index = Math.max(0, Math.min(pageNumber, myPagesNumber) - 1);
+		return new ZLTextFixedPosition(
+			myParagraphIndices[index], myElementIndices[index], myCharIndices[index]
+		);
+	}
+
+	private int compare(int page, int paragraphIndex, int elementIndex, int charIndex) {
+		if (myParagraphIndices[page] != paragraphIndex) {
+			return myParagraphIndices[page] < paragraphIndex ? -1 : 1;
+		}
+		if (myElementIndices[page] != elementIndex) {
+			return myElementIndices[page] < elementIndex ? -1 : 1;
+		}
+		if (myCharIndices[page] != charIndex) {
+			return myCharIndices[page] < charIndex ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private void addPage(ZLTextWordCursor start) {
+		if (myPagesNumber == myParagraphIndices.length) {
+			final int newLength = myPagesNumber * 2;
+			myParagraphIndices = ZLArrayUtils.createCopy(myParagraphIndices, myPagesNumber, newLength);
+			myElementIndices = ZLArrayUtils.createCopy(myElementIndices, myPagesNumber, newLength);
+			myCharIndices = ZLArrayUtils.createCopy(myCharIndices, myPagesNumber, newLength);
+		}
+		if (start.isEndOfParagraph() && !start.getParagraphCursor().isLast()) {
+			myParagraphIndices[myPagesNumber] = start.getParagraphIndex() + 1;
+			myElementIndices[myPagesNumber] = 0;
+			myCharIndices[myPagesNumber] = 0;
+		} else {
+			myParagraphIndices[myPagesNumber] = start.getParagraphIndex();
+			myElementIndices[myPagesNumber] = start.getElementIndex();
+			myCharIndices[myPagesNumber] = start.getCharIndex();
+		}
+		++myPagesNumber;
+	}
+
+	private void paginate(int generation) {
+		final ZLTextPage page = new ZLTextPage();
+		final ZLTextWordCursor start = new ZLTextWordCursor();
+		final ZLTextWordCursor end = new ZLTextWordCursor();
+		final HashMap<ZLTextLineInfo,ZLTextLineInfo> lineCache = new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
+		final ZLTextView.PageBuilder builder;
+
+		synchronized (myView) {
+			if (generation != myGeneration) {
+				return;
+			}
+			page.setSize(myColumnWidth, myHeight, myTwoColumnView, false);
+			start.setCursor(ZLTextParagraphCursor.build(myModel, 0));
+			builder = myView.new PageBuilder(page, end, lineCache, true);
+		}
+
+		while (true) {
+			// lines of the previous page only are needed for the next one
+			if (lineCache.size() > MAX_CACHED_LINES) {
+				lineCache.clear();
+			}
+			builder.start(start);
+			boolean hasMoreParagraphs = true;
+			while (hasMoreParagraphs) {
+				synchronized (myView) {
+					if (generation != myGeneration) {
+						return;
+					}
+					hasMoreParagraphs = builder.step();
+					myView.resetTextStyle();
+				}
+			}
+			page.LineInfos.clear();
+			synchronized (myView) {
+				if (generation != myGeneration) {
+					return;
+				}
+				addPage(start);
+				if (end.isEndOfText() || end.samePositionAs(start)) {
+					myIsComplete = true;
+					myThread = null;
+					return;
+				}
+			}
+			start.setCursor(end);
+		}
+	}
+}
@@ -114,16 +114,16 @@ public final class ZLTextParagraphCursor {
 			}
 		}
 
-		private static byte[] ourBreaks = new byte[1024];
+		private byte[] myBreaks;
 		private static final int NO_SPACE = 0;
 		private static final int SPACE = 1;
 		//private static final int NON_BREAKABLE_SPACE = 2;
 		private void processTextEntry(final char[] data, final int offset, final int length, ZLTextHyperlink hyperlink) {
 			if (length != 0) {
-				if (ourBreaks.length < length) {
-					ourBreaks = new byte[length];
+				if (myBreaks == null || myBreaks.length < length) {
+					myBreaks = new byte[Math.max(length, 1024)];
 				}
-				final byte[] breaks = ourBreaks;
+				final byte[] breaks = myBreaks;
 				myLineBreaker.setLineBreaks(data, offset, length, breaks);
 
 				final ZLTextElement hSpace = ZLTextElement.HSpace;
@@ -205,12 +205,16 @@ public final class ZLTextParagraphCursor {
 	static ZLTextParagraphCursor cursor(ZLTextModel model, int index) {
 		ZLTextParagraphCursor result = ZLTextParagraphCursorCache.get(model, index);
 		if (result == null) {
-			result = new ZLTextParagraphCursor(model, index);
-			ZLTextParagraphCursorCache.put(model, index, result);
+			result = ZLTextParagraphCursorCache.put(model, index, new ZLTextParagraphCursor(model, index));
 		}
 		return result;
 	}
 
+	// builds a new cursor without caching it; can be called from any thread
+	static ZLTextParagraphCursor build(ZLTextModel model, int index) {
+		return new ZLTextParagraphCursor(model, index);
+	}
+
 	private static final char[] SPACE_ARRAY = { ' ' };
 	void fill() {
 		ZLTextParagraph	paragraph = Model.getParagraph(Index);
@@ -19,12 +19,18 @@
 
 package org.geometerplus.zlibrary.text.view;
 
-import java.lang.ref.WeakReference;
 import java.util.*;
 
 import org.geometerplus.zlibrary.text.model.ZLTextModel;
 
+// LRU of recently used paragraph cursors; cursors for paragraphs around
+// the prepared pages are built in advance by a background thread.
+// A cursor built for a cleared cache generation is never stored.
 class ZLTextParagraphCursorCache {
+	private static final int MAX_SIZE = 256;
+	private static final int PREFETCH_AHEAD = 24;
+	private static final int PREFETCH_BEHIND = 8;
+
 	private final static class Key {
 		private final ZLTextModel myModel;
 		private final int myIndex;
@@ -44,18 +50,195 @@ class ZLTextParagraphCursorCache {
 		}
 	}
 
-	private static final HashMap<Key,WeakReference<ZLTextParagraphCursor>> ourMap = new HashMap<Key,WeakReference<ZLTextParagraphCursor>>();
+	private static final LinkedHashMap<Key,ZLTextParagraphCursor> ourMap =
+		new LinkedHashMap<Key,ZLTextParagraphCursor>(MAX_SIZE, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,ZLTextParagraphCursor> eldest) {
+				return size() > MAX_SIZE;
+			}
+		};
+	private static int ourGeneration;
+
+	private static int ourHitCount;
+	private static int ourMissCount;
+	private static int ourPrefetchCount;
+
+	private static ZLTextModel ourPrefetchModel;
+	private static int ourPrefetchStart;
+	private static int ourPrefetchEnd;
+	private static Thread ourPrefetchThread;
+	// the paragraph read by the prefetch thread right now
+	private static ZLTextModel ourBuildingModel;
+	private static int ourBuildingIndex;
+	private static boolean ourBuildingIsOutdated;
 
-	public static void put(ZLTextModel model, int index, ZLTextParagraphCursor cursor) {
-		ourMap.put(new Key(model, index), new WeakReference<ZLTextParagraphCursor>(cursor));
+	// returns the cursor stored in the cache, it can differ from the given one
+	// if the same paragraph has been built by another thread at the same time
+	public static synchronized ZLTextParagraphCursor put(ZLTextModel model, int index, ZLTextParagraphCursor cursor) {
+		final Key key = new Key(model, index);
+		final ZLTextParagraphCursor stored = ourMap.get(key);
+		if (stored != null) {
+			return stored;
+		}
+		ourMap.put(key, cursor);
+		return cursor;
 	}
 
-	public static ZLTextParagraphCursor get(ZLTextModel model, int index) {
-		WeakReference<ZLTextParagraphCursor> ref = ourMap.get(new Key(model, index));
-		return (ref != null) ? ref.get() : null;
+	public static synchronized ZLTextParagraphCursor get(ZLTextModel model, int index) {
+		final ZLTextParagraphCursor cursor = ourMap.get(new Key(model, index));
+		if (cursor != null) {
+			++ourHitCount;
+		} else {
+			++ourMissCount;
+		}
+		return cursor;
+	}
+
+	// drops cursors of paragraphs from..to (e.g. new search marks are found there);
+	// a cursor for the paragraphs being prefetched now is not stored
+	public static synchronized void remove(ZLTextModel model, int from, int to) {
+		for (Iterator<Key> it = ourMap.keySet().iterator(); it.hasNext(); ) {
+			final Key key = it.next();
+			if (key.myModel == model && from <= key.myIndex && key.myIndex <= to) {
+				it.remove();
+			}
+		}
+		if (ourBuildingModel == model && from <= ourBuildingIndex && ourBuildingIndex <= to) {
+			ourBuildingIsOutdated = true;
+		}
 	}
 
-	public static void clear() {
+	public static synchronized void clear() {
+		++ourGeneration;
 		ourMap.clear();
+		ourPrefetchModel = null;
+	}
+
+	public static synchronized int getHitCount() {
+		return ourHitCount;
+	}
+
+	public static synchronized int getMissCount() {
+		return ourMissCount;
+	}
+
+	public static synchronized int getPrefetchCount() {
+		return ourPrefetchCount;
+	}
+
+	public static synchronized void resetCounters() {
+		ourHitCount = 0;
+		ourMissCount = 0;
+		ourPrefetchCount = 0;
+	}
+
+	// asks to build cursors for paragraphs around [start, end] (the prepared pages)
+	static synchronized void prefetch(ZLTextModel model, int start, int end) {
+		ourPrefetchModel = model;
+		ourPrefetchStart = start;
+		ourPrefetchEnd = end;
+		if (ourPrefetchThread == null) {
+			ourPrefetchThread = new Thread() {
+				@Override
+				public void run() {
+					runPrefetch();
+				}
+			};
+			ourPrefetchThread.setPriority(Thread.MIN_PRIORITY);
+			ourPrefetchThread.setDaemon(true);
+			ourPrefetchThread.start();
+		} else {
+			ZLTextParagraphCursorCache.class.notifyAll();
+		}
+	}
+
+	// drops the prefetch request for the model and waits until the prefetch thread
+	// does not read it anymore; is called before the model storage is released
+	static synchronized void waitForPrefetch(ZLTextModel model) {
+		if (ourPrefetchModel == model) {
+			ourPrefetchModel = null;
+		}
+		while (ourBuildingModel == model) {
+			try {
+				ZLTextParagraphCursorCache.class.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	private static void runPrefetch() {
+		while (true) {
+			final ZLTextModel model;
+			final int start;
+			final int end;
+			final int generation;
+			synchronized (ZLTextParagraphCursorCache.class) {
+				while (ourPrefetchModel == null) {
+					try {
+						ZLTextParagraphCursorCache.class.wait();
+					} catch (InterruptedException e) {
+					}
+				}
+				model = ourPrefetchModel;
+				start = ourPrefetchStart;
+				end = ourPrefetchEnd;
+				generation = ourGeneration;
+				ourPrefetchModel = null;
+			}
+
+			final int paragraphsNumber = model.getParagraphsNumber();
+			final int last = Math.min(end + PREFETCH_AHEAD, paragraphsNumber - 1);
+			final int first = Math.max(start - PREFETCH_BEHIND, 0);
+			for (int index = end + 1; index <= last; ++index) {
+				if (!prefetchParagraph(model, index, generation)) {
+					break;
+				}
+			}
+			for (int index = start - 1; index >= first; --index) {
+				if (!prefetchParagraph(model, index, generation)) {
+					break;
+				}
+			}
+		}
+	}
+
+	// returns false if the request is outdated
+	private static boolean prefetchParagraph(ZLTextModel model, int index, int generation) {
+		final Key key = new Key(model, index);
+		synchronized (ZLTextParagraphCursorCache.class) {
+			if (ourPrefetchModel != null || generation != ourGeneration) {
+				return false;
+			}
+			if (ourMap.containsKey(key)) {
+				return true;
+			}
+			ourBuildingModel = model;
+			ourBuildingIndex = index;
+			ourBuildingIsOutdated = false;
+		}
+		ZLTextParagraphCursor cursor;
+		try {
+			cursor = ZLTextParagraphCursor.build(model, index);
+		} catch (RuntimeException e) {
+			// the model (e.g. its marks) has been changed in the meantime
+			cursor = null;
+		}
+		synchronized (ZLTextParagraphCursorCache.class) {
+			ourBuildingModel = null;
+			ZLTextParagraphCursorCache.class.notifyAll();
+			if (cursor == null || generation != ourGeneration) {
+				return false;
+			}
+			if (ourBuildingIsOutdated) {
+				return true;
+			}
+			if (!ourMap.containsKey(key)) {
+				ourMap.put(key, cursor);
+				++ourPrefetchCount;
+			}
+		}
+		return true;
 	}
 }
@@ -54,6 +54,11 @@ public final class ZLTextRegion {
 				EndElementIndex == soul.EndElementIndex;
 		}
 
+		@Override
+		public final int hashCode() {
+			return (ParagraphIndex * 31 + StartElementIndex) * 31 + EndElementIndex;
+		}
+
 		public final int compareTo(Soul soul) {
 			if (ParagraphIndex != soul.ParagraphIndex) {
 				return ParagraphIndex < soul.ParagraphIndex ? -1 : 1;
@@ -145,7 +150,7 @@ public final class ZLTextRegion {
 		return mySoul;
 	}
 
-	private ZLTextElementArea[] textAreas() {
+	ZLTextElementArea[] textAreas() {
 		if (myAreas == null || myAreas.length != myToIndex - myFromIndex) {
 			synchronized (myAreaList) {
 				myAreas = new ZLTextElementArea[myToIndex - myFromIndex];
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2007-2013 Geometer Plus <contact@geometerplus.com>
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA
+ * 02110-1301, USA.
+ */
+
+
+package org.geometerplus.zlibrary.text.view;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.geometerplus.zlibrary.text.model.ZLTextStyleEntry;
+
+import org.geometerplus.zlibrary.text.view.style.*;
+
+// Decorated styles are interned per view: the same (base style, entry or decoration,
+// hyperlink) triple resolves to the same style object, so lazily computed values
+// (font size, indents, etc.) are shared by all the paragraphs and pages.
+// The cache is used under the view lock only; it must be cleared
+// when style options are changed, because decorated styles never re-read them.
+final class ZLTextStyleCache {
+	private static final int MAX_SIZE = 512;
+
+	private static final class Key {
+		final ZLTextStyle Base;
+		final Object Detail;
+		final ZLTextHyperlink Hyperlink;
+		private final int myHashCode;
+
+		Key(ZLTextStyle base, Object detail, ZLTextHyperlink hyperlink) {
+			Base = base;
+			Detail = detail;
+			Hyperlink = hyperlink;
+			myHashCode =
+				(System.identityHashCode(base) * 31 + detail.hashCode()) * 31 +
+				System.identityHashCode(hyperlink);
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if (other == this) {
+				return true;
+			}
+			if (!(other instanceof Key)) {
+				return false;
+			}
+			final Key key = (Key)other;
+			return
+				Base == key.Base &&
+				Hyperlink == key.Hyperlink &&
+				Detail.equals(key.Detail);
+		}
+
+		@Override
+		public int hashCode() {
+			return myHashCode;
+		}
+	}
+
+	private final LinkedHashMap<Key,ZLTextStyle> myStyles =
+		new LinkedHashMap<Key,ZLTextStyle>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,ZLTextStyle> eldest) {
+				return size() > MAX_SIZE;
+			}
+		};
+
+	ZLTextStyle explicitlyDecorated(ZLTextStyle base, ZLTextStyleEntry entry) {
+		final Key key = new Key(base, entry, null);
+		ZLTextStyle style = myStyles.get(key);
+		if (style == null) {
+			style = new ZLTextExplicitlyDecoratedStyle(base, entry);
+			myStyles.put(key, style);
+		}
+		return style;
+	}
+
+	ZLTextStyle decorated(ZLTextStyle base, ZLTextStyleDecoration decoration, ZLTextHyperlink hyperlink) {
+		final Key key = new Key(base, decoration, hyperlink);
+		ZLTextStyle style = myStyles.get(key);
+		if (style == null) {
+			style = decoration.createDecoratedStyle(base, hyperlink);
+			myStyles.put(key, style);
+		}
+		return style;
+	}
+
+	void clear() {
+		myStyles.clear();
+	}
+}
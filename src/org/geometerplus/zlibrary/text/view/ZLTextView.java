@@ -55,41 +55,109 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	private ZLTextPage myNextPage = new ZLTextPage();
 
 	private final HashMap<ZLTextLineInfo,ZLTextLineInfo> myLineInfoCache = new HashMap<ZLTextLineInfo,ZLTextLineInfo>();
+	private final ZLTextPaginator myPaginator = new ZLTextPaginator(this);
+	private final ZLTextLayoutCache myLayoutCache = new ZLTextLayoutCache();
+	private int myLayoutHash;
+	private boolean myLayoutHashIsValid;
 
 	private ZLTextRegion.Soul mySelectedRegionSoul;
 	private boolean myHighlightSelectedRegion = true;
 
 	private final ZLTextSelection mySelection = new ZLTextSelection(this);
-	private final Set<ZLTextHighlighting> myHighlightings =
-		Collections.synchronizedSet(new TreeSet<ZLTextHighlighting>());
+	// replaced on every change, so painting reads it without locking
+	private volatile ZLTextHighlightingIndex myHighlightings = ZLTextHighlightingIndex.EMPTY;
+	private final Object myHighlightingsLock = new Object();
+	// the last search started by the view, is cancelled when the model is changed
+	private ZLTextSearch mySearch;
 
 	public ZLTextView(ZLApplication application) {
 		super(application);
 	}
 
-	public synchronized void setModel(ZLTextModel model) {
-		ZLTextParagraphCursorCache.clear();
+	// waits for the background readers of the previous model (the paginator
+	// and the prefetcher), so the model can be released after the call;
+	// must not be called with the view lock held
+	public void setModel(ZLTextModel model) {
+		final ZLTextModel oldModel;
+		final Thread[] paginatorThreads;
+		final ZLTextLayoutCache.FileData savedLayout;
+		final ZLTextLayoutCache.FileData loadedLayout;
+		synchronized (this) {
+			oldModel = myModel;
+			if (mySearch != null) {
+				mySearch.cancel();
+				mySearch = null;
+			}
+			ZLTextParagraphCursorCache.clear();
+			CharStorageCache.Instance().unpin(this);
 
-		mySelection.clear();
-		myHighlightings.clear();
+			mySelection.clear();
+			synchronized (myHighlightingsLock) {
+				myHighlightings = ZLTextHighlightingIndex.EMPTY;
+			}
+			paginatorThreads = myPaginator.cancel();
+			clearStyleCache();
+			savedLayout = myLayoutCache.changedLines();
+			loadedLayout = myLayoutCache.setModel(model, model != null ? getLayoutCacheFileName(model) : null);
 
-		myModel = model;
-		myCurrentPage.reset();
-		myPreviousPage.reset();
-		myNextPage.reset();
-		if (myModel != null) {
-			final int paragraphsNumber = myModel.getParagraphsNumber();
-			if (paragraphsNumber > 0) {
-				myCurrentPage.moveStartCursor(ZLTextParagraphCursor.cursor(myModel, 0));
+			myModel = model;
+			myCurrentPage.reset();
+			myPreviousPage.reset();
+			myNextPage.reset();
+			if (myModel != null) {
+				final int paragraphsNumber = myModel.getParagraphsNumber();
+				if (paragraphsNumber > 0) {
+					myCurrentPage.moveStartCursor(ZLTextParagraphCursor.cursor(myModel, 0));
+				}
+			}
+			Application.getViewWidget().reset();
+		}
+		ZLTextPaginator.join(paginatorThreads);
+		if (oldModel != null && oldModel != model) {
+			ZLTextParagraphCursorCache.waitForPrefetch(oldModel);
+		}
+		// up to a megabyte each way, so the files are not touched under the lock
+		if (savedLayout != null) {
+			savedLayout.save();
+		}
+		if (loadedLayout != null) {
+			loadedLayout.load();
+			synchronized (this) {
+				myLayoutCache.addLoaded(loadedLayout);
 			}
 		}
-		Application.getViewWidget().reset();
 	}
 
 	public ZLTextModel getModel() {
 		return myModel;
 	}
 
+	// file to keep line breaking results of the model between sessions; null = do not keep
+	protected String getLayoutCacheFileName(ZLTextModel model) {
+		return null;
+	}
+
+	public void saveLayoutCache() {
+		final ZLTextLayoutCache.FileData data;
+		synchronized (this) {
+			data = myLayoutCache.changedLines();
+		}
+		if (data != null) {
+			data.save();
+		}
+	}
+
+	private long layoutSignature(ZLTextPage page) {
+		if (!myLayoutHashIsValid) {
+			myLayoutHash = 31 * ZLTextStyleCollection.Instance().getLayoutHash() + metrics().hashCode();
+			myLayoutHashIsValid = true;
+		}
+		// paint options & image fitting are read every time, they are changed without clearCaches()
+		final int hash =
+			31 * (31 * myLayoutHash + getContext().getTextRenderingFlags()) + getImageFitting().ordinal();
+		return ((long)page.getTextWidth() << 32) + (hash & 0xFFFFFFFFL);
+	}
+
 	public ZLTextWordCursor getStartCursor() {
 		if (myCurrentPage.StartCursor.isNull()) {
 			preparePaintInfo(myCurrentPage);
@@ -174,30 +242,90 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
-	public synchronized int search(final String text, boolean ignoreCase, boolean wholeText, boolean backward, boolean thisSectionOnly) {
+	// the search is waited for outside of the view lock: search threads take it
+	// to deliver marks (see SearchListener); must not be called with the lock held
+	public int search(final String text, boolean ignoreCase, boolean wholeText, boolean backward, boolean thisSectionOnly) {
 		if (text.length() == 0) {
 			return 0;
 		}
-		int startIndex = 0;
-		int endIndex = myModel.getParagraphsNumber();
-		if (thisSectionOnly) {
-			// TODO: implement
+		final ZLTextModel model;
+		final ZLTextMark mark;
+		final ZLTextSearch search;
+		synchronized (this) {
+			model = myModel;
+			if (model == null) {
+				return 0;
+			}
+			int startIndex = 0;
+			int endIndex = model.getParagraphsNumber();
+			if (thisSectionOnly) {
+				// TODO: implement
+			}
+			mark = myCurrentPage.StartCursor.isNull() ? null : myCurrentPage.StartCursor.getMark();
+			search = model.startSearch(text, startIndex, endIndex, ignoreCase, new SearchListener(model));
+			mySearch = search;
+		}
+		// the scan goes on in background, we wait for the mark to go to only;
+		// backward search needs the marks before the current page, i.e. the full scan
+		final int count = search.waitFor(
+			backward || mark == null ? null : (wholeText ? new ZLTextMark(0, 0, 0) : mark)
+		);
+		synchronized (this) {
+			// the model is changed or a newer search is started in the meantime
+			if (myModel != model || mySearch != search) {
+				return count;
+			}
+			myPreviousPage.reset();
+			myNextPage.reset();
+			if (!myCurrentPage.StartCursor.isNull()) {
+				rebuildPaintInfo();
+				if (count > 0) {
+					gotoMark(wholeText ?
+						(backward ? model.getLastMark() : model.getFirstMark()) :
+						(backward ? model.getPreviousMark(mark) : model.getNextMark(mark)));
+				}
+				Application.getViewWidget().reset();
+				Application.getViewWidget().repaint();
+			}
 		}
-		int count = myModel.search(text, startIndex, endIndex, ignoreCase);
-		myPreviousPage.reset();
-		myNextPage.reset();
-		if (!myCurrentPage.StartCursor.isNull()) {
-			rebuildPaintInfo();
-			if (count > 0) {
-				ZLTextMark mark = myCurrentPage.StartCursor.getMark();
-				gotoMark(wholeText ?
-					(backward ? myModel.getLastMark() : myModel.getFirstMark()) :
-					(backward ? myModel.getPreviousMark(mark) : myModel.getNextMark(mark)));
+		return count;
+	}
+
+	// marks found after search() has returned are painted as soon as
+	// they appear on the visible pages
+	private final class SearchListener implements ZLTextSearch.Listener {
+		private final ZLTextModel myTextModel;
+
+		SearchListener(ZLTextModel model) {
+			myTextModel = model;
+		}
+
+		public void onMarksFound(ZLTextSearch search, List<ZLTextMark> marks) {
+			final ZLTextMark first = marks.get(0);
+			final ZLTextMark last = marks.get(marks.size() - 1);
+			synchronized (ZLTextView.this) {
+				if (myModel != myTextModel || search.isCancelled()) {
+					return;
+				}
+				// cursors of these paragraphs (e.g. prefetched ones) keep the old marks
+				ZLTextParagraphCursorCache.remove(myTextModel, first.ParagraphIndex, last.ParagraphIndex);
+				final ZLTextWordCursor start = myPreviousPage.StartCursor.isNull()
+					? myCurrentPage.StartCursor : myPreviousPage.StartCursor;
+				final ZLTextWordCursor end = myNextPage.EndCursor.isNull()
+					? myCurrentPage.EndCursor : myNextPage.EndCursor;
+				if (start.isNull() || end.isNull() ||
+					first.ParagraphIndex > end.getParagraphIndex() ||
+					last.ParagraphIndex < start.getParagraphIndex()) {
+					return;
+				}
+				rebuildPaintInfo();
 			}
 			Application.getViewWidget().reset();
 			Application.getViewWidget().repaint();
 		}
-		return count;
+
+		public void onSearchFinished(ZLTextSearch search) {
+		}
 	}
 
 	public boolean canFindNext() {
@@ -287,17 +415,14 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	}
 
 	public boolean removeHighlightings(Class<? extends ZLTextHighlighting> type) {
-		boolean result = false;
-		synchronized (myHighlightings) {
-			for (Iterator<ZLTextHighlighting> it = myHighlightings.iterator(); it.hasNext(); ) {
-				final ZLTextHighlighting h = it.next();
-				if (type.isInstance(h)) {
-					it.remove();
-					result = true;
-				}
+		synchronized (myHighlightingsLock) {
+			final ZLTextHighlightingIndex index = myHighlightings.remove(type);
+			if (index == myHighlightings) {
+				return false;
 			}
+			myHighlightings = index;
+			return true;
 		}
-		return result;
 	}
 
 	public void highlight(ZLTextPosition start, ZLTextPosition end) {
@@ -306,13 +431,17 @@ public abstract class ZLTextView extends ZLTextViewBase {
 	}
 
 	public final void addHighlighting(ZLTextHighlighting h) {
-		myHighlightings.add(h);
+		synchronized (myHighlightingsLock) {
+			myHighlightings = myHighlightings.add(Collections.singletonList(h));
+		}
 		Application.getViewWidget().reset();
 		Application.getViewWidget().repaint();
 	}
 
 	public final void addHighlightings(Collection<ZLTextHighlighting> hilites) {
-		myHighlightings.addAll(hilites);
+		synchronized (myHighlightingsLock) {
+			myHighlightings = myHighlightings.add(hilites);
+		}
 		Application.getViewWidget().reset();
 		Application.getViewWidget().repaint();
 	}
@@ -488,6 +617,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		if (page.StartCursor.isNull() || page.EndCursor.isNull()) {
 			return;
 		}
+		pinPreparedPages();
 
 		final ArrayList<ZLTextLineInfo> lineInfos = page.LineInfos;
 		final int[] labels = new int[lineInfos.size() + 1];
@@ -503,6 +633,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 				x += page.getTextWidth() + getSpaceBetweenColumns();
 			}
 		}
+		page.TextElementMap.freeze();
 
 		x = getLeftMargin();
 		y = getTopMargin();
@@ -539,6 +670,23 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		drawSelectionCursor(context, getSelectionCursorPoint(page, ZLTextSelectionCursor.Right));
 	}
 
+	private void pinPreparedPages() {
+		int start = Integer.MAX_VALUE;
+		int end = -1;
+		for (ZLTextPage page : new ZLTextPage[] { myPreviousPage, myCurrentPage, myNextPage }) {
+			if (!page.StartCursor.isNull()) {
+				start = Math.min(start, page.StartCursor.getParagraphIndex());
+			}
+			if (!page.EndCursor.isNull()) {
+				end = Math.max(end, page.EndCursor.getParagraphIndex());
+			}
+		}
+		if (start <= end) {
+			myModel.pinParagraphs(this, start, end);
+			ZLTextParagraphCursorCache.prefetch(myModel, start, end);
+		}
+	}
+
 	private ZLTextPage getPage(PageIndex pageIndex) {
 		switch (pageIndex) {
 			default:
@@ -721,7 +869,19 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
+	private boolean isPaginationReady() {
+		return myPaginator.isReady(myModel, getTextColumnWidth(), getTextAreaHeight(), twoColumnView());
+	}
+
 	public final synchronized PagePosition pagePosition() {
+		if (isPaginationReady()) {
+			preparePaintInfo(myCurrentPage);
+			final ZLTextWordCursor cursor = myCurrentPage.StartCursor;
+			if (cursor != null && !cursor.isNull()) {
+				return new PagePosition(myPaginator.getPageNumber(cursor), myPaginator.getPagesNumber());
+			}
+		}
+
 		int current = computeTextPageNumber(getCurrentCharNumber(PageIndex.current, false));
 		int total = computeTextPageNumber(sizeOfFullText());
 
@@ -772,6 +932,11 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			return;
 		}
 
+		if (isPaginationReady()) {
+			gotoPosition(myPaginator.getPageStart(page));
+			return;
+		}
+
 		final float factor = computeCharsPerPage();
 		final float textSize = page * factor;
 
@@ -823,8 +988,8 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		if (mySelection.intersects(page)) {
 			hilites.add(mySelection);
 		}
-		synchronized (myHighlightings) {
-			for (ZLTextHighlighting h : myHighlightings) {
+		if (!page.StartCursor.isNull() && !page.EndCursor.isNull()) {
+			for (ZLTextHighlighting h : myHighlightings.candidates(page.StartCursor, page.EndCursor)) {
 				if (h.intersects(page)) {
 					hilites.add(h);
 				}
@@ -932,13 +1097,45 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
-	private void buildInfos(ZLTextPage page, ZLTextWordCursor start, ZLTextWordCursor result) {
-		result.setCursor(start);
-		int textAreaHeight = page.getTextHeight();
-		page.LineInfos.clear();
-		page.Column0Height = 0;
-		boolean nextParagraph;
-		do {
+	void buildInfos(ZLTextPage page, ZLTextWordCursor start, ZLTextWordCursor result) {
+		final PageBuilder builder = new PageBuilder(page, result, myLineInfoCache, false);
+		builder.start(start);
+		while (builder.step());
+		resetTextStyle();
+	}
+
+	// lays out a page paragraph by paragraph, so the paginator can release the view lock
+	// between the paragraphs; a private builder (used by the paginator) has its own
+	// line cache, builds paragraph cursors without caching them and does not use
+	// the layout cache, so it does not evict anything used by the visible pages
+	final class PageBuilder {
+		private final ZLTextPage myPage;
+		private final ZLTextWordCursor myResult;
+		private final HashMap<ZLTextLineInfo,ZLTextLineInfo> myLineCache;
+		private final boolean myIsPrivate;
+		private int myTextAreaHeight;
+
+		PageBuilder(ZLTextPage page, ZLTextWordCursor result, HashMap<ZLTextLineInfo,ZLTextLineInfo> lineCache, boolean isPrivate) {
+			myPage = page;
+			myResult = result;
+			myLineCache = lineCache;
+			myIsPrivate = isPrivate;
+		}
+
+		void start(ZLTextWordCursor start) {
+			myResult.setCursor(start);
+			myTextAreaHeight = myPage.getTextHeight();
+			myPage.LineInfos.clear();
+			myPage.Column0Height = 0;
+		}
+
+		// lays out the current paragraph (or its part fitting the page);
+		// returns false if the page is complete
+		boolean step() {
+			final ZLTextPage page = myPage;
+			final ZLTextWordCursor result = myResult;
+			int textAreaHeight = myTextAreaHeight;
+
 			resetTextStyle();
 			final ZLTextParagraphCursor paragraphCursor = result.getParagraphCursor();
 			final int wordIndex = result.getElementIndex();
@@ -946,7 +1143,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 			ZLTextLineInfo info = new ZLTextLineInfo(paragraphCursor, wordIndex, result.getCharIndex(), getTextStyle());
 			final int endIndex = info.ParagraphCursorLength;
 			while (info.EndElementIndex != endIndex) {
-				info = processTextLine(page, paragraphCursor, info.EndElementIndex, info.EndCharIndex, endIndex);
+				info = processTextLine(page, paragraphCursor, info.EndElementIndex, info.EndCharIndex, endIndex, myLineCache, !myIsPrivate);
 				textAreaHeight -= info.Height + info.Descent;
 				if (textAreaHeight < 0 && page.LineInfos.size() > page.Column0Height) {
 					if (page.Column0Height == 0 && page.twoColumnView()) {
@@ -969,18 +1166,30 @@ public abstract class ZLTextView extends ZLTextViewBase {
 					}
 				}
 			}
-			nextParagraph = result.isEndOfParagraph() && result.nextParagraph();
+			final boolean nextParagraph = result.isEndOfParagraph() && nextParagraph();
 			if (nextParagraph && result.getParagraphCursor().isEndOfSection()) {
 				if (page.Column0Height == 0 && page.twoColumnView() && !page.LineInfos.isEmpty()) {
 					textAreaHeight = page.getTextHeight();
 					page.Column0Height = page.LineInfos.size();
 				}
 			}
-		} while (nextParagraph && textAreaHeight >= 0 &&
-				 (!result.getParagraphCursor().isEndOfSection() ||
-				  page.LineInfos.size() == page.Column0Height)
-				);
-		resetTextStyle();
+			myTextAreaHeight = textAreaHeight;
+			return nextParagraph && textAreaHeight >= 0 &&
+				(!result.getParagraphCursor().isEndOfSection() ||
+				 page.LineInfos.size() == page.Column0Height);
+		}
+
+		private boolean nextParagraph() {
+			if (!myIsPrivate) {
+				return myResult.nextParagraph();
+			}
+			final ZLTextParagraphCursor cursor = myResult.getParagraphCursor();
+			if (cursor.isLast()) {
+				return false;
+			}
+			myResult.setCursor(ZLTextParagraphCursor.build(cursor.Model, cursor.Index + 1));
+			return true;
+		}
 	}
 
 	private boolean isHyphenationPossible() {
@@ -993,19 +1202,34 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		ZLTextParagraphCursor paragraphCursor,
 		final int startIndex,
 		final int startCharIndex,
-		final int endIndex
+		final int endIndex,
+		final HashMap<ZLTextLineInfo,ZLTextLineInfo> lineCache,
+		final boolean useLayoutCache
 	) {
 		final ZLPaintContext context = getContext();
 		final ZLTextLineInfo info = new ZLTextLineInfo(paragraphCursor, startIndex, startCharIndex, getTextStyle());
-		final ZLTextLineInfo cachedInfo = myLineInfoCache.get(info);
+		final ZLTextLineInfo cachedInfo = lineCache.get(info);
 		if (cachedInfo != null) {
 			applyStyleChanges(paragraphCursor, startIndex, cachedInfo.EndElementIndex);
 			return cachedInfo;
 		}
 
+		final long signature = layoutSignature(page);
+		final boolean isFirstLine = startIndex == 0 && startCharIndex == 0;
+		if (useLayoutCache && myLayoutCache.restore(info, signature, endIndex)) {
+			if (isFirstLine) {
+				applyStyleChanges(paragraphCursor, startIndex, info.RealStartElementIndex);
+				info.StartStyle = getTextStyle();
+				applyStyleChanges(paragraphCursor, info.RealStartElementIndex, info.EndElementIndex);
+			} else {
+				applyStyleChanges(paragraphCursor, startIndex, info.EndElementIndex);
+			}
+			lineCache.put(info, info);
+			return info;
+		}
+
 		int currentElementIndex = startIndex;
 		int currentCharIndex = startCharIndex;
-		final boolean isFirstLine = startIndex == 0 && startCharIndex == 0;
 
 		if (isFirstLine) {
 			ZLTextElement element = paragraphCursor.getElement(currentElementIndex);
@@ -1175,7 +1399,10 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 
 		if (info.EndElementIndex != endIndex || endIndex == info.ParagraphCursorLength) {
-			myLineInfoCache.put(info, info);
+			lineCache.put(info, info);
+			if (useLayoutCache) {
+				myLayoutCache.store(info, signature);
+			}
 		}
 
 		return info;
@@ -1452,7 +1679,10 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		}
 	}
 
-	public void clearCaches() {
+	public synchronized void clearCaches() {
+		myPaginator.reset();
+		myLayoutHashIsValid = false;
+		clearStyleCache();
 		resetMetrics();
 		rebuildPaintInfo();
 		Application.getViewWidget().reset();
@@ -1499,7 +1729,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		int wordIndex = 0;
 		int charIndex = 0;
 		while (wordIndex != endElementIndex) {
-			ZLTextLineInfo info = processTextLine(page, paragraphCursor, wordIndex, charIndex, endElementIndex);
+			ZLTextLineInfo info = processTextLine(page, paragraphCursor, wordIndex, charIndex, endElementIndex, myLineInfoCache, true);
 			wordIndex = info.EndElementIndex;
 			charIndex = info.EndCharIndex;
 			size += infoSize(info, unit);
@@ -1519,7 +1749,7 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		applyStyleChanges(paragraphCursor, 0, cursor.getElementIndex());
 
 		while (!cursor.isEndOfParagraph() && (size > 0)) {
-			ZLTextLineInfo info = processTextLine(page, paragraphCursor, cursor.getElementIndex(), cursor.getCharIndex(), endElementIndex);
+			ZLTextLineInfo info = processTextLine(page, paragraphCursor, cursor.getElementIndex(), cursor.getCharIndex(), endElementIndex, myLineInfoCache, true);
 			cursor.moveTo(info.EndElementIndex, info.EndCharIndex);
 			size -= infoSize(info, unit);
 		}
@@ -1589,11 +1819,14 @@ public abstract class ZLTextView extends ZLTextViewBase {
 		if (region == null) {
 			return null;
 		}
-		synchronized (myHighlightings) {
-			for (ZLTextHighlighting h : myHighlightings) {
-				if (h.getBackgroundColor() != null && h.intersects(region)) {
-					return h;
-				}
+		final ZLTextRegion.Soul soul = region.getSoul();
+		final List<ZLTextHighlighting> candidates = myHighlightings.candidates(
+			new ZLTextFixedPosition(soul.ParagraphIndex, soul.StartElementIndex, 0),
+			new ZLTextFixedPosition(soul.ParagraphIndex, soul.EndElementIndex, Integer.MAX_VALUE)
+		);
+		for (ZLTextHighlighting h : candidates) {
+			if (h.getBackgroundColor() != null && h.intersects(region)) {
+				return h;
 			}
 		}
 		return null;
@@ -38,6 +38,7 @@ abstract class ZLTextViewBase extends ZLView {
 	private ZLTextStyle myTextStyle;
 	private int myWordHeight = -1;
 	private ZLTextMetrics myMetrics;
+	private final ZLTextStyleCache myStyleCache = new ZLTextStyleCache();
 
 	ZLTextViewBase(ZLApplication application) {
 		super(application);
@@ -48,7 +49,7 @@ abstract class ZLTextViewBase extends ZLView {
 		myMetrics = null;
 	}
 
-	private ZLTextMetrics metrics() {
+	final ZLTextMetrics metrics() {
 		if (myMetrics == null) {
 			final ZLTextStyleCollection collection = ZLTextStyleCollection.Instance();
 			final ZLTextBaseStyle base = collection.getBaseStyle();
@@ -119,6 +120,10 @@ abstract class ZLTextViewBase extends ZLView {
 		getContext().setFont(style.getFontFamily(), style.getFontSize(metrics()), style.isBold(), style.isItalic(), style.isUnderline(), style.isStrikeThrough());
 	}
 
+	final void clearStyleCache() {
+		myStyleCache.clear();
+	}
+
 	final void resetTextStyle() {
 		setTextStyle(ZLTextStyleCollection.Instance().getBaseStyle());
 	}
@@ -151,9 +156,9 @@ abstract class ZLTextViewBase extends ZLView {
 			final ZLTextStyleDecoration decoration =
 				ZLTextStyleCollection.Instance().getDecoration(control.Kind);
 			if (control instanceof ZLTextHyperlinkControlElement) {
-				setTextStyle(decoration.createDecoratedStyle(myTextStyle, ((ZLTextHyperlinkControlElement)control).Hyperlink));
+				setTextStyle(myStyleCache.decorated(myTextStyle, decoration, ((ZLTextHyperlinkControlElement)control).Hyperlink));
 			} else {
-				setTextStyle(decoration.createDecoratedStyle(myTextStyle));
+				setTextStyle(myStyleCache.decorated(myTextStyle, decoration, null));
 			}
 		} else {
 			setTextStyle(myTextStyle.Base);
@@ -161,7 +166,7 @@ abstract class ZLTextViewBase extends ZLView {
 	}
 
 	private void applyStyle(ZLTextStyleElement element) {
-		setTextStyle(new ZLTextExplicitlyDecoratedStyle(myTextStyle, element.Entry));
+		setTextStyle(myStyleCache.explicitlyDecorated(myTextStyle, element.Entry));
 	}
 
 	private void applyStyleClose() {
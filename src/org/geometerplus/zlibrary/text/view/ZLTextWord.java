@@ -26,6 +26,7 @@ public final class ZLTextWord extends ZLTextElement {
 	public final int Offset;
 	public final int Length;
 	private int myWidth = -1;
+	private Object myWidthFontId;
 	private Mark myMark;
 	private int myParagraphOffset;
 
@@ -89,10 +90,12 @@ public final class ZLTextWord extends ZLTextElement {
 	}
 
 	public int getWidth(ZLPaintContext context) {
+		final Object fontId = context.getFontId();
 		int width = myWidth;
-		if (width <= 1) {
+		if (width == -1 || fontId != myWidthFontId) {
 			width = context.getStringWidth(Data, Offset, Length);
 			myWidth = width;
+			myWidthFontId = fontId;
 		}
 		return width;
 	}
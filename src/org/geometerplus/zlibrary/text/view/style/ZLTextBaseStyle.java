@@ -57,6 +57,18 @@ public class ZLTextBaseStyle extends ZLTextStyle {
 		FontSizeOption = new ZLIntegerRangeOption(GROUP, "Base:fontSize", 5, Math.max(144, fontSize * 2), fontSize);
 	}
 
+	int layoutHash() {
+		int hash = FontFamilyOption.getValue().hashCode();
+		hash = 31 * hash + FontSizeOption.getValue();
+		hash = 31 * hash + (AutoHyphenationOption.getValue() ? 1 : 0);
+		hash = 31 * hash + (BoldOption.getValue() ? 1 : 0);
+		hash = 31 * hash + (ItalicOption.getValue() ? 1 : 0);
+		hash = 31 * hash + (UnderlineOption.getValue() ? 1 : 0);
+		hash = 31 * hash + (StrikeThroughOption.getValue() ? 1 : 0);
+		hash = 31 * hash + AlignmentOption.getValue();
+		return 31 * hash + LineSpaceOption.getValue();
+	}
+
 	@Override
 	public String getFontFamily() {
 		return FontFamilyOption.getValue();
@@ -48,6 +48,18 @@ public class ZLTextFullStyleDecoration extends ZLTextStyleDecoration {
 		LineSpacePercentOption = new ZLIntegerOption(STYLE, name + ":lineSpacePercent", lineSpace);
 	}
 
+	@Override
+	int layoutHash() {
+		int hash = super.layoutHash();
+		hash = 31 * hash + SpaceBeforeOption.getValue();
+		hash = 31 * hash + SpaceAfterOption.getValue();
+		hash = 31 * hash + LeftIndentOption.getValue();
+		hash = 31 * hash + RightIndentOption.getValue();
+		hash = 31 * hash + FirstLineIndentDeltaOption.getValue();
+		hash = 31 * hash + AlignmentOption.getValue();
+		return 31 * hash + LineSpacePercentOption.getValue();
+	}
+
 	@Override
 	public ZLTextStyle createDecoratedStyle(ZLTextStyle base, ZLTextHyperlink hyperlink) {
 		return new ZLTextFullyDecoratedStyle(base, this, hyperlink);
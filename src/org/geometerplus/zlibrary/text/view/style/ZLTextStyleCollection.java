@@ -65,6 +65,19 @@ public class ZLTextStyleCollection {
 		return myDecorationMap[kind & 0xFF];
 	}
 
+	// the same value means the same text layout for the same text area & metrics
+	public int getLayoutHash() {
+		int hash = myBaseStyle.layoutHash();
+		hash = 31 * hash + (UseCSSTextAlignmentOption.getValue() ? 1 : 0);
+		hash = 31 * hash + (UseCSSFontSizeOption.getValue() ? 1 : 0);
+		for (ZLTextStyleDecoration decoration : myDecorationMap) {
+			if (decoration != null) {
+				hash = 31 * hash + decoration.layoutHash();
+			}
+		}
+		return hash;
+	}
+
 	private static class TextStyleReader extends ZLXMLReaderAdapter {
 		private final int myDpi = ZLibrary.Instance().getDisplayDPI();
 		private ZLTextStyleCollection myCollection;
@@ -62,4 +62,16 @@ public class ZLTextStyleDecoration {
 	public String getName() {
 		return myName;
 	}
+
+	// depends on all the option values affecting text layout
+	int layoutHash() {
+		int hash = FontFamilyOption.getValue().hashCode();
+		hash = 31 * hash + FontSizeDeltaOption.getValue();
+		hash = 31 * hash + BoldOption.getValue().ordinal();
+		hash = 31 * hash + ItalicOption.getValue().ordinal();
+		hash = 31 * hash + UnderlineOption.getValue().ordinal();
+		hash = 31 * hash + StrikeThroughOption.getValue().ordinal();
+		hash = 31 * hash + VerticalShiftOption.getValue();
+		return 31 * hash + AllowHyphenationsOption.getValue().ordinal();
+	}
 }
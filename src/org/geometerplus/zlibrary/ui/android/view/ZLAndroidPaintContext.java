@@ -50,6 +50,9 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 
 	private ZLColor myBackgroundColor = new ZLColor(0, 0, 0);
 
+	private static int ourTextRenderingFlags = -1;
+	private final int myTextRenderingFlags;
+
 	ZLAndroidPaintContext(Canvas canvas, int width, int height, int scrollbarWidth) {
 		myCanvas = canvas;
 		myWidth = width - scrollbarWidth;
@@ -66,6 +69,20 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 		myTextPaint.setDither(DitheringOption.getValue());
 		myTextPaint.setSubpixelText(SubpixelOption.getValue());
 
+		final int flags =
+			(DeviceKerningOption.getValue() ? TEXT_KERNING : 0) |
+			(SubpixelOption.getValue() ? TEXT_SUBPIXEL : 0) |
+			(AntiAliasOption.getValue() ? TEXT_ANTIALIAS : 0);
+		synchronized (ZLAndroidPaintContext.class) {
+			if (flags != ourTextRenderingFlags) {
+				if (ourTextRenderingFlags != -1) {
+					clearFontWidthCaches();
+				}
+				ourTextRenderingFlags = flags;
+			}
+		}
+		myTextRenderingFlags = flags;
+
 		myLinePaint.setStyle(Paint.Style.STROKE);
 
 		myOutlinePaint.setColor(Color.rgb(255, 127, 0));
@@ -132,6 +149,11 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 		}
 	}
 
+	@Override
+	public int getTextRenderingFlags() {
+		return myTextRenderingFlags;
+	}
+
 	@Override
 	public void clear(ZLColor color) {
 		myBackgroundColor = color;
@@ -232,7 +254,12 @@ public final class ZLAndroidPaintContext extends ZLPaintContext {
 	}
 
 	@Override
-	public int getStringWidth(char[] string, int offset, int length) {
+	protected float getCharWidthInternal(char ch) {
+		return myTextPaint.measureText(String.valueOf(ch));
+	}
+
+	@Override
+	protected int getStringWidthInternal(char[] string, int offset, int length) {
 		boolean containsSoftHyphen = false;
 		for (int i = offset; i < offset + length; ++i) {
 			if (string[i] == (char)0xAD) {